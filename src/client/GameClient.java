@@ -1,14 +1,22 @@
 package client;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import shared.Protocol;
+import shared.WireCodec;
+import shared.WireDecoder;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -17,15 +25,27 @@ import java.util.concurrent.CopyOnWriteArrayList;
 public class GameClient {
     private static final String SERVER_HOST = "26.3.190.0";
     private static final int SERVER_PORT = 8888;
+    private static final int MAX_MESSAGE_BYTES = 4 * 1024 * 1024; // Snapshot roster/leaderboard có thể lớn
     
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private String host = SERVER_HOST;
+    private int port = SERVER_PORT; // Đổi khi server REDIRECT sang shard khác
+    private volatile Socket socket;
+    private OutputStream out; // Guard bởi chính nó (heartbeat thread + GUI thread cùng ghi)
+    private InputStream in;
+    // Server xác nhận capability "binary" trong LOGIN_RESPONSE thì gửi SCORE_UPDATE/HEARTBEAT dạng frame
+    private volatile boolean binaryFrames = false;
     // BUG FIX #8: CopyOnWriteArrayList để tránh ConcurrentModificationException
     private List<MessageListener> listeners;
     private Thread receiveThread;
     private Thread heartbeatThread;
-    private boolean connected;
+    private volatile boolean connected;
+    // Đang đăng nhập lại bằng handoff token sau REDIRECT: LOGIN_RESPONSE kế tiếp không chuyển cho GUI
+    private volatile boolean handoffPending = false;
+    
+    // Bản sao danh sách người chơi phía client, áp dụng PRESENCE_DELTA theo seq
+    private final Map<Integer, JSONObject> roster = new LinkedHashMap<>();
+    private long rosterSeq = -1; // -1: chưa nhận snapshot
+    private boolean rosterResyncPending = false;
     
     public GameClient() {
         // Thread-safe list - safe để iterate khi đang modify
@@ -35,15 +55,9 @@ public class GameClient {
     
     public boolean connect() {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            open(host, port);
             connected = true;
             
-            // Thread nhận message
-            receiveThread = new Thread(this::receiveMessages);
-            receiveThread.start();
-            
             // Thread heartbeat
             startHeartbeat();
             
@@ -55,24 +69,227 @@ public class GameClient {
         }
     }
     
-    private void receiveMessages() {
+    /**
+     * Mở socket mới và thread nhận cho nó (thread của socket cũ tự dừng khi socket bị thay)
+     */
+    private void open(String host, int port) throws IOException {
+        Socket newSocket = new Socket(host, port);
+        // Server luôn encode UTF-8, không phụ thuộc charset mặc định của máy
+        OutputStream newOut = new BufferedOutputStream(newSocket.getOutputStream());
+        InputStream newIn = newSocket.getInputStream();
+        binaryFrames = false;
+        this.host = host;
+        this.port = port;
+        socket = newSocket;
+        out = newOut;
+        in = newIn;
+        
+        // Thread nhận message
+        receiveThread = new Thread(() -> receiveMessages(newSocket, newIn));
+        receiveThread.start();
+    }
+    
+    private void receiveMessages(Socket source, InputStream stream) {
+        WireDecoder decoder = new WireDecoder(MAX_MESSAGE_BYTES);
+        byte[] chunk = new byte[8192];
         try {
-            String line;
-            while (connected && (line = in.readLine()) != null) {
-                final String message = line;
-                // Notify listeners
-                for (MessageListener listener : listeners) {
-                    listener.onMessageReceived(message);
-                }
+            int n;
+            while (connected && source == socket && (n = stream.read(chunk)) >= 0) {
+                // Frame nhị phân được decoder đổi về JSON, listener không phân biệt
+                decoder.feed(ByteBuffer.wrap(chunk, 0, n), this::dispatch);
+            }
+            if (connected && source == socket) {
+                System.err.println("❌ Mất kết nối server");
+                disconnect();
             }
         } catch (IOException e) {
-            if (connected) {
+            if (connected && source == socket) {
                 System.err.println("❌ Mất kết nối server");
                 disconnect();
             }
         }
     }
     
+    private void dispatch(String line) {
+        // contains chỉ để lọc nhanh; quyết định theo field "type" (chat/lời mời có thể chứa các chuỗi này trong nội dung)
+        if (line.contains(Protocol.REDIRECT) || line.contains(Protocol.LOGIN_RESPONSE)) {
+            JSONObject packet = parse(line);
+            String type = packet != null ? packet.optString("type") : "";
+            if (Protocol.REDIRECT.equals(type)) {
+                handleRedirect(packet);
+                return;
+            }
+            if (Protocol.LOGIN_RESPONSE.equals(type)) {
+                checkCapabilities(packet);
+                if (handoffPending) {
+                    finishHandoff(packet);
+                    return;
+                }
+            }
+        }
+        final String message = applyPresence(line);
+        if (message == null) {
+            return;
+        }
+        // Notify listeners
+        for (MessageListener listener : listeners) {
+            listener.onMessageReceived(message);
+        }
+    }
+    
+    private static JSONObject parse(String message) {
+        try {
+            return new JSONObject(message);
+        } catch (Exception e) {
+            return null; // Không phải JSON: để listener tự xử lý như trước
+        }
+    }
+    
+    /**
+     * Phòng nằm ở shard khác: kết nối sang đó, đăng nhập bằng handoff token rồi gửi lại packet vừa bị chuyển.
+     * GUI không biết việc đổi kết nối, chỉ nhận phản hồi của packet như bình thường
+     */
+    private void handleRedirect(JSONObject packet) {
+        Socket old = socket;
+        try {
+            open(packet.optString("host", host), packet.getInt("port"));
+        } catch (IOException e) {
+            System.err.println("❌ Không thể chuyển sang server " + packet.optInt("port") + ": " + e.getMessage());
+            return; // Vẫn giữ kết nối cũ
+        }
+        // Shard mới có seq roster riêng: bỏ delta cho tới khi nhận snapshot
+        rosterSeq = -1;
+        rosterResyncPending = false;
+        handoffPending = true;
+        
+        JSONObject login = new JSONObject();
+        login.put("type", Protocol.LOGIN);
+        login.put("handoff_token", packet.getString("handoff_token"));
+        login.put("capabilities", getCapabilities());
+        sendMessage(login.toString());
+        JSONObject resend = packet.optJSONObject("resend");
+        if (resend != null) {
+            sendMessage(resend.toString());
+        }
+        try {
+            old.close();
+        } catch (IOException ignored) {
+        }
+        System.out.println("🔀 Đã chuyển sang server port " + port);
+    }
+    
+    /**
+     * LOGIN_RESPONSE của lần đăng nhập bằng handoff token: thành công thì nuốt luôn, lỗi thì báo GUI như mất kết nối
+     */
+    private void finishHandoff(JSONObject packet) {
+        handoffPending = false;
+        if ("success".equals(packet.optString("status"))) {
+            return;
+        }
+        System.err.println("❌ Chuyển server thất bại: " + packet.optString("message"));
+        JSONObject error = new JSONObject();
+        error.put("type", Protocol.ERROR);
+        error.put("error_code", Protocol.ERR_CONNECTION_LOST);
+        error.put("message", packet.optString("message"));
+        for (MessageListener listener : listeners) {
+            listener.onMessageReceived(error.toString());
+        }
+    }
+    
+    /**
+     * Bật frame nhị phân nếu LOGIN_RESPONSE thành công có echo lại capability "binary"
+     */
+    private void checkCapabilities(JSONObject packet) {
+        JSONArray accepted = packet.optJSONArray("capabilities");
+        boolean binary = false;
+        if (accepted != null) {
+            for (int i = 0; i < accepted.length(); i++) {
+                binary |= Protocol.CAP_BINARY.equals(accepted.optString(i));
+            }
+        }
+        binaryFrames = binary;
+    }
+    
+    /**
+     * Capability client hỗ trợ, gửi kèm LOGIN
+     */
+    public JSONArray getCapabilities() {
+        JSONArray capabilities = new JSONArray();
+        capabilities.put(Protocol.CAP_BINARY);
+        capabilities.put(Protocol.CAP_DEFLATE); // Decoder tự giải nén frame T_DEFLATE
+        capabilities.put(Protocol.CAP_BOARD_SEED); // GameplayFrame tự dựng bàn bằng BoardGenerator
+        capabilities.put(Protocol.CAP_SERVER_SCORE); // GameplayFrame chỉ gửi GRAIN_DROP, điểm do server tính
+        return capabilities;
+    }
+    
+    /**
+     * Giữ roster cục bộ đồng bộ với server.
+     * Snapshot (ONLINE_USERS_UPDATE có seq) thay toàn bộ roster; PRESENCE_DELTA được áp dụng rồi
+     * chuyển thành ONLINE_USERS_UPDATE đầy đủ cho GUI, nên các màn hình không cần biết về delta.
+     * @return message để chuyển cho listener, null nếu bỏ qua
+     */
+    private String applyPresence(String message) {
+        if (!message.contains(Protocol.PRESENCE_DELTA) && !message.contains(Protocol.ONLINE_USERS_UPDATE)) {
+            return message;
+        }
+        try {
+            JSONObject packet = new JSONObject(message);
+            String type = packet.optString("type");
+            
+            if (Protocol.ONLINE_USERS_UPDATE.equals(type) && packet.has("seq")) {
+                roster.clear();
+                JSONArray users = packet.getJSONArray("users");
+                for (int i = 0; i < users.length(); i++) {
+                    JSONObject u = users.getJSONObject(i);
+                    roster.put(u.getInt("user_id"), u);
+                }
+                rosterSeq = packet.getLong("seq");
+                rosterResyncPending = false;
+                return message;
+            }
+            
+            if (Protocol.PRESENCE_DELTA.equals(type)) {
+                long seq = packet.getLong("seq");
+                if (rosterSeq < 0 || seq <= rosterSeq) {
+                    return null; // Chưa có snapshot hoặc delta cũ đã nằm trong snapshot
+                }
+                if (seq != rosterSeq + 1) {
+                    // Hụt delta -> xin snapshot mới
+                    if (!rosterResyncPending) {
+                        rosterResyncPending = true;
+                        System.out.println("⚠️ Presence seq gap (" + rosterSeq + " -> " + seq + "), đồng bộ lại");
+                        JSONObject request = new JSONObject();
+                        request.put("type", Protocol.GET_ALL_USERS);
+                        sendMessage(request.toString());
+                    }
+                    return null;
+                }
+                
+                JSONArray changed = packet.getJSONArray("users");
+                for (int i = 0; i < changed.length(); i++) {
+                    JSONObject u = changed.getJSONObject(i);
+                    roster.put(u.getInt("user_id"), u);
+                }
+                rosterSeq = seq;
+                return buildRosterMessage();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return message;
+    }
+    
+    private String buildRosterMessage() {
+        List<JSONObject> users = new ArrayList<>(roster.values());
+        users.sort((a, b) -> Integer.compare(b.optInt("total_score"), a.optInt("total_score")));
+        
+        JSONObject update = new JSONObject();
+        update.put("type", Protocol.ONLINE_USERS_UPDATE);
+        update.put("seq", rosterSeq);
+        update.put("users", new JSONArray(users));
+        return update.toString();
+    }
+    
     private void startHeartbeat() {
         heartbeatThread = new Thread(() -> {
             while (connected) {
@@ -89,18 +306,50 @@ public class GameClient {
     }
     
     public void sendMessage(String message) {
-        if (out != null && connected) {
-            out.println(message);
+        write((message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void write(byte[] bytes) {
+        OutputStream stream = out;
+        if (stream == null || !connected) {
+            return;
+        }
+        synchronized (stream) {
+            try {
+                stream.write(bytes);
+                stream.flush();
+            } catch (IOException e) {
+                // Mất kết nối - receive thread sẽ xử lý
+            }
         }
     }
     
     public void sendHeartbeat() {
+        if (binaryFrames) {
+            write(WireCodec.heartbeat(System.currentTimeMillis()));
+            return;
+        }
         JSONObject packet = new JSONObject();
         packet.put("type", Protocol.HEARTBEAT);
         packet.put("timestamp", System.currentTimeMillis());
         sendMessage(packet.toString());
     }
     
+    /**
+     * Báo server 1 hạt đã thả vào giỏ; server tự kiểm tra và tính điểm
+     */
+    public void sendGrainDrop(int grainId, String basket) {
+        if (binaryFrames) {
+            write(WireCodec.grainDrop(grainId, basket));
+            return;
+        }
+        JSONObject packet = new JSONObject();
+        packet.put("type", Protocol.GRAIN_DROP);
+        packet.put("grain_id", grainId);
+        packet.put("basket", basket);
+        sendMessage(packet.toString());
+    }
+    
     public void addMessageListener(MessageListener listener) {
         listeners.add(listener);
     }
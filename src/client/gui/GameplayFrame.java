@@ -1,9 +1,10 @@
 package client.gui;
 
 import client.GameClient;
-import org.json.JSONArray;
 import org.json.JSONObject;
+import shared.BoardGenerator;
 import shared.Grain;
+import shared.GrainStore;
 import shared.Protocol;
 
 import javax.swing.*;
@@ -90,18 +91,15 @@ public class GameplayFrame extends JFrame implements GameClient.MessageListener
     }
     
     private void parseGrainsData(JSONObject data) {
-        grains = new ArrayList<>();
-        JSONArray grainsArray = data.getJSONArray("grains");
-        
-        for (int i = 0; i < grainsArray.length(); i++) {
-            JSONObject grainObj = grainsArray.getJSONObject(i);
-            Grain grain = new Grain(
-                grainObj.getInt("id"),
-                grainObj.getString("type"),
-                grainObj.getInt("x"),
-                grainObj.getInt("y")
-            );
-            grains.add(grain);
+        if (data.has("seed")) {
+            // Server chỉ gửi seed (capability board_seed): tự dựng bàn giống hệt phía server
+            if (data.getInt("board_version") != BoardGenerator.VERSION) {
+                throw new IllegalStateException("Board version không khớp: " + data.getInt("board_version"));
+            }
+            grains = BoardGenerator.generate(data.getLong("seed"),
+                    data.getInt("rice_count"), data.getInt("paddy_count")).toGrainList();
+        } else {
+            grains = GrainStore.fromJson(data.getJSONArray("grains")).toGrainList();
         }
     }
     
@@ -547,12 +545,8 @@ public class GameplayFrame extends JFrame implements GameClient.MessageListener
                 // Xóa hạt
                 grains.remove(grain);
                 
-                // Gửi điểm lên server
-                JSONObject packet = new JSONObject();
-                packet.put("type", Protocol.SCORE_UPDATE);
-                packet.put("new_score", myScore);
-                System.out.println("📤 Sending SCORE_UPDATE: " + myScore);
-                client.sendMessage(packet.toString());
+                // Báo hạt vừa thả, server tự kiểm tra và tính điểm (frame nhị phân nếu đã thỏa thuận)
+                client.sendGrainDrop(grain.getId(), basketType);
                 
                 // Kiểm tra nếu đạt điểm tối đa (tất cả hạt)
                 if (myScore >= totalGrains) {
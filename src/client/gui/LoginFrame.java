@@ -145,6 +145,7 @@ public class LoginFrame extends JFrame implements GameClient.MessageListener {
         packet.put("type", Protocol.LOGIN);
         packet.put("username", username);
         packet.put("password", hashedPassword);
+        packet.put("capabilities", client.getCapabilities());
         
         client.sendMessage(packet.toString());
         
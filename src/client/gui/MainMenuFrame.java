@@ -41,6 +41,13 @@ public class MainMenuFrame extends JFrame implements GameClient.MessageListener
     private JButton cancelFindMatchButton;
     private boolean isFindingMatch = false;
     
+    // Dialog lịch sử đấu (phân trang: "Tải thêm" gửi next_cursor của trang trước)
+    private JDialog historyDialog;
+    private DefaultTableModel historyModel;
+    private JButton historyMoreButton;
+    private JSONObject historyNextCursor;
+    private boolean historyLoadingMore = false;
+    
     public MainMenuFrame(GameClient client, JSONObject user) {
         // Đóng instance cũ nếu có
         if (currentInstance != null && currentInstance != this) {
@@ -263,11 +270,24 @@ public class MainMenuFrame extends JFrame implements GameClient.MessageListener
     }
     
     private void handleHistory() {
+        historyLoadingMore = false;
         JSONObject packet = new JSONObject();
         packet.put("type", Protocol.GET_HISTORY);
         client.sendMessage(packet.toString());
     }
     
+    private void handleHistoryMore() {
+        if (historyNextCursor == null) return;
+        
+        historyLoadingMore = true;
+        historyMoreButton.setEnabled(false);
+        JSONObject packet = new JSONObject();
+        packet.put("type", Protocol.GET_HISTORY);
+        packet.put("before_ts", historyNextCursor.getLong("before_ts"));
+        packet.put("before_id", historyNextCursor.getString("before_id"));
+        client.sendMessage(packet.toString());
+    }
+    
     private void handleProfile() {
         ProfileFrame profileFrame = new ProfileFrame(client, currentUser);
         profileFrame.setVisible(true);
@@ -506,10 +526,54 @@ public class MainMenuFrame extends JFrame implements GameClient.MessageListener
     
     private void showHistory(JSONObject response) {
         JSONArray matches = response.getJSONArray("matches");
+        historyNextCursor = response.optBoolean("has_more") ? response.optJSONObject("next_cursor") : null;
+        
+        // Trang tiếp theo: nối thêm vào bảng đang mở
+        if (historyLoadingMore && historyDialog != null && historyDialog.isVisible()) {
+            historyLoadingMore = false;
+            addHistoryRows(historyModel, matches);
+            historyMoreButton.setEnabled(historyNextCursor != null);
+            return;
+        }
+        historyLoadingMore = false;
+        if (historyDialog != null) {
+            historyDialog.dispose();
+        }
         
         String[] columns = {"Thời gian", "Đối thủ", "Điểm", "Kết quả"};
-        DefaultTableModel model = new DefaultTableModel(columns, 0);
+        historyModel = new DefaultTableModel(columns, 0);
+        addHistoryRows(historyModel, matches);
         
+        JTable table = new JTable(historyModel);
+        table.setEnabled(false);
+        // Set column widths
+        table.getColumn("Thời gian").setPreferredWidth(150);
+        table.getColumn("Đối thủ").setPreferredWidth(120);
+        table.getColumn("Điểm").setPreferredWidth(100);
+        table.getColumn("Kết quả").setPreferredWidth(100);
+        JScrollPane scrollPane = new JScrollPane(table);
+        scrollPane.setPreferredSize(new Dimension(600, 400));
+        
+        historyMoreButton = new JButton("Tải thêm");
+        historyMoreButton.setEnabled(historyNextCursor != null);
+        historyMoreButton.addActionListener(e -> handleHistoryMore());
+        JButton closeButton = new JButton("Đóng");
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(historyMoreButton);
+        buttonPanel.add(closeButton);
+        
+        historyDialog = new JDialog(this, "Lịch Sử Đấu", false);
+        closeButton.addActionListener(e -> historyDialog.dispose());
+        historyDialog.setLayout(new BorderLayout());
+        historyDialog.add(scrollPane, BorderLayout.CENTER);
+        historyDialog.add(buttonPanel, BorderLayout.SOUTH);
+        historyDialog.pack();
+        historyDialog.setLocationRelativeTo(this);
+        historyDialog.setVisible(true);
+    }
+    
+    private void addHistoryRows(DefaultTableModel model, JSONArray matches) {
         String myUsername = currentUser.getString("username");
         SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm");
         
@@ -546,19 +610,6 @@ public class MainMenuFrame extends JFrame implements GameClient.MessageListener
                 result
             });
         }
-        
-        JTable table = new JTable(model);
-        table.setEnabled(false);
-        // Set column widths
-        table.getColumn("Thời gian").setPreferredWidth(150);
-        table.getColumn("Đối thủ").setPreferredWidth(120);
-        table.getColumn("Điểm").setPreferredWidth(100);
-        table.getColumn("Kết quả").setPreferredWidth(100);
-        JScrollPane scrollPane = new JScrollPane(table);
-        scrollPane.setPreferredSize(new Dimension(600, 400));
-        
-        JOptionPane.showMessageDialog(this, scrollPane, 
-            "Lịch Sử Đấu", JOptionPane.INFORMATION_MESSAGE);
     }
     
     private void handleError(JSONObject response) {
@@ -1,6 +1,7 @@
 package client.gui;
 
 import client.GameClient;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import shared.Protocol;
 
@@ -14,6 +15,7 @@ import java.security.MessageDigest;
 public class ProfileFrame extends JFrame implements GameClient.MessageListener {
     private GameClient client;
     private JSONObject currentUser;
+    private JSONObject rankData; // RANK_DATA gần nhất (null khi chưa nhận)
     
     private JLabel usernameLabel;
     private JLabel statsLabel;
@@ -91,7 +93,7 @@ public class ProfileFrame extends JFrame implements GameClient.MessageListener {
             "Thống kê trận đấu",
             0, 0, new Font("Arial", Font.BOLD, 16)
         ));
-        statsPanel.setMaximumSize(new Dimension(500, 200));
+        statsPanel.setMaximumSize(new Dimension(500, 260));
         
         statsLabel = new JLabel();
         statsLabel.setFont(new Font("Arial", Font.PLAIN, 14));
@@ -159,6 +161,11 @@ public class ProfileFrame extends JFrame implements GameClient.MessageListener {
         JSONObject request = new JSONObject();
         request.put("type", Protocol.GET_PROFILE);
         client.sendMessage(request.toString());
+        
+        JSONObject rankRequest = new JSONObject();
+        rankRequest.put("type", Protocol.GET_RANK);
+        rankRequest.put("k", 1); // Chỉ cần người ngay trên/dưới
+        client.sendMessage(rankRequest.toString());
     }
     
     private void updateStats() {
@@ -177,13 +184,35 @@ public class ProfileFrame extends JFrame implements GameClient.MessageListener {
             "<b>❌ Thua:</b> %d trận | " +
             "<b>🤝 Hòa:</b> %d trận<br><br>" +
             "<b>📈 Tỷ lệ thắng:</b> %.1f%%<br>" +
+            "%s" +
             "</div></html>",
-            totalScore, totalMatches, wins, losses, draws, winRate
+            totalScore, totalMatches, wins, losses, draws, winRate, rankText()
         );
         
         statsLabel.setText(statsText);
     }
     
+    private String rankText() {
+        if (rankData == null || rankData.optInt("rank", 0) <= 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder(String.format(
+            "<br><b>🥇 Hạng:</b> #%d / %d (hơn %.1f%% người chơi)<br>",
+            rankData.getInt("rank"), rankData.getInt("total_players"), rankData.getDouble("percentile")));
+        
+        JSONArray entries = rankData.optJSONArray("entries");
+        if (entries != null) {
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                if (entry.optBoolean("is_me")) continue;
+                String arrow = entry.getInt("rank") < rankData.getInt("rank") ? "⬆" : "⬇";
+                text.append(String.format("%s #%d %s - %d điểm<br>", arrow, entry.getInt("rank"),
+                        entry.getString("username"), entry.getInt("total_score")));
+            }
+        }
+        return text.toString();
+    }
+    
     private void handleChangeUsername() {
         String newUsername = usernameField.getText().trim();
         String currentUsername = currentUser.optString("username", "");
@@ -334,6 +363,10 @@ public class ProfileFrame extends JFrame implements GameClient.MessageListener {
                     case Protocol.PROFILE_DATA:
                         handleProfileData(response);
                         break;
+                    case Protocol.RANK_DATA:
+                        rankData = response;
+                        updateStats();
+                        break;
                     case Protocol.UPDATE_SUCCESS:
                         handleUpdateSuccess(response);
                         break;
@@ -0,0 +1,227 @@
+package database;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Cache có giới hạn số phần tử trên 1 ConcurrentHashMap, bỏ entry theo thuật toán clock (second chance):
+ * đọc không khóa và không sửa map, chỉ bật cờ accessed trên entry; khi vượt giới hạn, kim đồng hồ
+ * (iterator của map) đi vòng, entry có cờ thì được tha 1 lần (xóa cờ), entry không có cờ thì bị bỏ.
+ * Giới hạn tính trên toàn cache. Hỗ trợ TTL (hết hạn sau khi ghi), refresh nền sau khi ghi và thống kê hit/miss/eviction/load.
+ */
+public class BoundedCache<K, V> {
+    private final ConcurrentHashMap<K, Node<V>> map = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private final long ttlNanos; // 0 = không hết hạn
+    private final long refreshNanos; // 0 = không refresh
+    private final Function<K, V> loader; // Có thể null: chỉ dùng getIfPresent/put
+
+    private final ReentrantLock evictionLock = new ReentrantLock(); // Chỉ put khi vượt giới hạn mới lấy
+    private Iterator<Map.Entry<K, Node<V>>> hand; // Kim đồng hồ, guard bởi evictionLock
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+
+    public BoundedCache(int maxEntries, long ttlMs, long refreshAfterMs, Function<K, V> loader) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlNanos = ttlMs * 1_000_000L;
+        this.refreshNanos = refreshAfterMs * 1_000_000L;
+        this.loader = loader;
+    }
+
+    /**
+     * Lấy từ cache, không load khi miss
+     */
+    public V getIfPresent(K key) {
+        Node<V> node = map.get(key);
+        if (node != null && isExpired(node, System.nanoTime())) {
+            if (map.remove(key, node)) {
+                evictions.incrementAndGet();
+            }
+            node = null;
+        }
+        if (node == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (!node.accessed) {
+            node.accessed = true; // Chỉ ghi khi cờ chưa bật, entry nóng không bị ghi mỗi lần đọc
+        }
+        hits.incrementAndGet();
+        maybeRefresh(key, node);
+        return node.value;
+    }
+
+    /**
+     * Lấy từ cache, miss thì gọi loader (load trả về null thì không cache)
+     */
+    public V get(K key) {
+        V value = getIfPresent(key);
+        if (value != null || loader == null) {
+            return value;
+        }
+        value = load(key);
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        map.put(key, new Node<>(value, System.nanoTime()));
+        if (map.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    public void invalidate(K key) {
+        map.remove(key);
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public Stats stats() {
+        return new Stats(hits.get(), misses.get(), evictions.get(), loads.get(), loadNanos.get(), size());
+    }
+
+    private boolean isExpired(Node<V> node, long now) {
+        return ttlNanos > 0 && now - node.writeTime >= ttlNanos;
+    }
+
+    /**
+     * Bỏ entry tới khi về lại giới hạn. Entry vừa được đọc được tha 1 vòng; sau 2 vòng quét
+     * (nhiều thread đọc liên tục bật lại cờ) thì bỏ luôn để put không bị kẹt.
+     */
+    private void evict() {
+        evictionLock.lock();
+        try {
+            long now = System.nanoTime();
+            long spared = 0;
+            while (map.size() > maxEntries) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<K, Node<V>> entry = hand.next();
+                Node<V> node = entry.getValue();
+                if (node.accessed && !isExpired(node, now) && spared < 2L * maxEntries) {
+                    node.accessed = false;
+                    spared++;
+                    continue;
+                }
+                if (map.remove(entry.getKey(), node)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private V load(K key) {
+        long start = System.nanoTime();
+        try {
+            return loader.apply(key);
+        } finally {
+            loads.incrementAndGet();
+            loadNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Entry quá refreshAfter: vẫn trả giá trị cũ, load lại ở nền (mỗi entry tối đa 1 lần refresh cùng lúc)
+     */
+    private void maybeRefresh(K key, Node<V> node) {
+        if (loader == null || refreshNanos <= 0 || System.nanoTime() - node.writeTime < refreshNanos) {
+            return;
+        }
+        if (!node.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                V fresh = load(key);
+                if (fresh != null) {
+                    // Chỉ thay nếu entry chưa bị ghi đè/xóa trong lúc refresh
+                    map.replace(key, node, new Node<>(fresh, System.nanoTime()));
+                }
+            } catch (Exception e) {
+                System.err.println("⚠️ Cache refresh failed for " + key + ": " + e.getMessage());
+            } finally {
+                node.refreshing.set(false);
+            }
+        });
+    }
+
+    private static final class Node<V> {
+        final V value;
+        final long writeTime;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        volatile boolean accessed; // Cờ của thuật toán clock
+
+        Node(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    /**
+     * Snapshot thống kê cache
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long loads;
+        private final long loadNanos;
+        private final int size;
+
+        Stats(long hits, long misses, long evictions, long loads, long loadNanos, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.loads = loads;
+            this.loadNanos = loadNanos;
+            this.size = size;
+        }
+
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getEvictions() { return evictions; }
+        public long getLoads() { return loads; }
+        public long getTotalLoadTimeNanos() { return loadNanos; }
+        public int getSize() { return size; }
+
+        public double getHitRate() {
+            long total = hits + misses;
+            return total == 0 ? 0.0 : hits * 100.0 / total;
+        }
+
+        public double getAverageLoadMs() {
+            return loads == 0 ? 0.0 : loadNanos / 1_000_000.0 / loads;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("size=%d, hits=%d, misses=%d (%.1f%% hit), evictions=%d, loads=%d (avg %.2f ms)",
+                    size, hits, misses, getHitRate(), evictions, loads, getAverageLoadMs());
+        }
+    }
+}
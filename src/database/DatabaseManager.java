@@ -1,17 +1,21 @@
 package database;
 
+import com.mongodb.MongoWriteException;
 import com.mongodb.client.*;
 import com.mongodb.client.model.*;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import shared.User;
 import shared.Match;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Quản lý kết nối và thao tác với MongoDB
@@ -24,10 +28,35 @@ public class DatabaseManager {
     private MongoCollection<Document> matchHistoryCollection;
     
     // BUG FIX #1: Cache để tránh O(n) query performance issue
-    private Map<String, User> userCache;
+    // Giới hạn số user + TTL để cache không phình theo mọi user từng login
+    private BoundedCache<String, User> userCache;
+    private static final int CACHE_MAX_ENTRIES = Integer.getInteger("db.cache.max", 10_000);
+    private static final long CACHE_TTL_MS = Long.getLong("db.cache.ttl.ms", 30 * 60 * 1000L);
+    private static final long CACHE_REFRESH_MS = Long.getLong("db.cache.refresh.ms", 5 * 60 * 1000L);
     
-    private static final String DB_NAME = "tam_nhat_thoc";
-    private static final String CONNECTION_STRING = "mongodb://localhost:27017";
+    // Ghi kết quả trận bất đồng bộ, theo lô
+    private MatchResultWriter resultWriter;
+    
+    // Bảng xếp hạng trong bộ nhớ, cập nhật theo từng thay đổi điểm
+    private final Leaderboard leaderboard = new Leaderboard();
+    
+    // Trang lịch sử đầu tiên của từng user (trang được mở nhiều nhất), xóa khi có trận mới
+    public static final int RECENT_HISTORY_SIZE = 50;
+    
+    // -Ddb.history.buckets=true: ghi thêm + đọc lịch sử từ user_history_buckets (null = tắt)
+    private static final boolean BUCKETED_HISTORY = Boolean.getBoolean("db.history.buckets");
+    private HistoryBuckets historyBuckets;
+    private final BoundedCache<String, List<Match>> recentHistoryCache =
+        new BoundedCache<>(Integer.getInteger("db.history.cache.max", 2_000), 10 * 60 * 1000L, 0, null);
+    // Thế hệ lịch sử theo user (chia theo hash, trùng ô chỉ làm bỏ cache thừa): tăng mỗi lần có trận mới,
+    // để lần đọc bắt đầu trước khi trận được ghi không đưa trang cũ trở lại cache
+    private final AtomicLongArray historyGenerations = new AtomicLongArray(1024);
+    
+    // -Ddb.name / -Ddb.uri: trỏ sang database khác (test/ dùng database riêng, không đụng dữ liệu thật)
+    private static final String DB_NAME = System.getProperty("db.name", "tam_nhat_thoc");
+    private static final String CONNECTION_STRING = System.getProperty("db.uri", "mongodb://localhost:27017");
+    // Số lần thử lại khi user_id sinh ra bị trùng (ObjectId.hashCode có thể va chạm)
+    private static final int MAX_REGISTER_ATTEMPTS = 3;
     
     private DatabaseManager() {
         try {
@@ -36,10 +65,26 @@ public class DatabaseManager {
             usersCollection = database.getCollection("users");
             matchHistoryCollection = database.getCollection("match_history");
             
-            // Initialize cache (thread-safe)
-            userCache = new ConcurrentHashMap<>();
+            // Initialize cache (thread-safe, LRU theo segment)
+            userCache = new BoundedCache<>(CACHE_MAX_ENTRIES, CACHE_TTL_MS, CACHE_REFRESH_MS, this::loadUserById);
             
             System.out.println("✅ Kết nối MongoDB thành công!");
+            
+            ensureUserIdIndex(usersCollection);
+            backfillUserIds(usersCollection);
+            ensureHistoryIndexes(matchHistoryCollection);
+            if (BUCKETED_HISTORY) {
+                historyBuckets = new HistoryBuckets(database.getCollection(HistoryBuckets.COLLECTION));
+                historyBuckets.ensureIndexes();
+                System.out.println("📚 Bucketed match history enabled");
+            }
+            
+            leaderboard.load(getAllUsers());
+            System.out.println("🏆 Leaderboard loaded: " + leaderboard.size() + " users");
+            
+            resultWriter = new MatchResultWriter(usersCollection, matchHistoryCollection, historyBuckets,
+                this::onMatchesPersisted);
+            resultWriter.start();
         } catch (Exception e) {
             System.err.println("❌ Lỗi kết nối MongoDB: " + e.getMessage());
             e.printStackTrace();
@@ -66,23 +111,27 @@ public class DatabaseManager {
                 return false; // Username đã tồn tại
             }
             
-            Document newUser = new Document()
-                    .append("username", username)
-                    .append("password", hashedPassword)
-                    .append("email", email)
-                    .append("total_score", 0)
-                    .append("total_wins", 0)
-                    .append("total_losses", 0)
-                    .append("total_draws", 0)
-                    .append("win_rate", 0.0)
-                    .append("is_admin", false)
-                    .append("created_at", new Date());
-            
-            usersCollection.insertOne(newUser);
+            for (int attempt = 1; attempt <= MAX_REGISTER_ATTEMPTS; attempt++) {
+                // Tự sinh ObjectId để biết trước user_id (= hashCode, giữ tương thích ID cũ)
+                ObjectId objectId = new ObjectId();
+                try {
+                    Document userDoc = newUserDocument(objectId, username, hashedPassword, email);
+                    usersCollection.insertOne(userDoc);
+                    leaderboard.update(documentToUser(userDoc));
+                    break;
+                } catch (MongoWriteException e) {
+                    String msg = e.getMessage();
+                    if (msg != null && msg.contains("user_id") && attempt < MAX_REGISTER_ATTEMPTS) {
+                        System.out.println("⚠️ user_id collision, retrying: " + objectId.hashCode());
+                        continue;
+                    }
+                    throw e;
+                }
+            }
             
             // BUG FIX #1: Cache user mới ngay sau khi tạo
             // (Tối ưu cho trường hợp register → login → play game ngay)
-            // Note: Không cache ngay vì chưa có ObjectId, sẽ cache khi login
+            // Note: Không cache ngay, sẽ cache khi login
             
             System.out.println("✅ User registered successfully: " + username);
             return true;
@@ -103,6 +152,23 @@ public class DatabaseManager {
         }
     }
     
+    private Document newUserDocument(ObjectId objectId, String username, String hashedPassword, String email) {
+        return new Document()
+                .append("_id", objectId)
+                .append("user_id", objectId.hashCode())
+                .append("username", username)
+                .append("password", hashedPassword)
+                .append("email", email)
+                .append("total_score", 0)
+                .append("total_wins", 0)
+                .append("total_losses", 0)
+                .append("total_draws", 0)
+                .append("win_rate", 0.0)
+                .append("rating", User.DEFAULT_RATING)
+                .append("is_admin", false)
+                .append("created_at", new Date());
+    }
+    
     /**
      * Đăng nhập
      * BUG FIX #1: Cache user sau khi login thành công
@@ -150,17 +216,53 @@ public class DatabaseManager {
     
     /**
      * Helper method: Tìm Document của user theo userId
-     * BUG FIX #1: Centralized method để dễ optimize sau
+     * Truy vấn qua unique index user_id thay cho quét toàn bộ collection
      */
     private Document findUserDocument(String userId) throws NumberFormatException {
-        int userIdHash = Integer.parseInt(userId);
-        FindIterable<Document> results = usersCollection.find();
-        for (Document doc : results) {
-            if (doc.getObjectId("_id").hashCode() == userIdHash) {
-                return doc;
+        return usersCollection.find(Filters.eq("user_id", Integer.parseInt(userId))).first();
+    }
+    
+    /**
+     * Unique index cho user_id (partial: bỏ qua document cũ chưa có user_id)
+     */
+    static void ensureUserIdIndex(MongoCollection<Document> users) {
+        try {
+            users.createIndex(
+                new Document("user_id", 1),
+                new IndexOptions()
+                    .unique(true)
+                    .partialFilterExpression(Filters.exists("user_id"))
+            );
+        } catch (Exception e) {
+            System.err.println("⚠️ Không tạo được index user_id: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Gán user_id (= ObjectId.hashCode, giữ nguyên ID cũ) cho các document chưa có.
+     * Chỉ quét document thiếu field nên sau lần migrate đầu tiên gần như không tốn gì.
+     * @return số document đã cập nhật
+     */
+    static int backfillUserIds(MongoCollection<Document> users) {
+        int updated = 0;
+        try {
+            for (Document doc : users.find(Filters.exists("user_id", false)).projection(Projections.include("_id"))) {
+                ObjectId objectId = doc.getObjectId("_id");
+                try {
+                    users.updateOne(Filters.eq("_id", objectId), Updates.set("user_id", objectId.hashCode()));
+                    updated++;
+                } catch (MongoWriteException e) {
+                    // Trùng hashCode với user khác - cần xử lý tay
+                    System.err.println("❌ user_id trùng cho document " + objectId + ": " + e.getMessage());
+                }
             }
+            if (updated > 0) {
+                System.out.println("🔑 Backfilled user_id cho " + updated + " users");
+            }
+        } catch (Exception e) {
+            System.err.println("⚠️ Không backfill được user_id: " + e.getMessage());
         }
-        return null;
+        return updated;
     }
     
     /**
@@ -169,27 +271,8 @@ public class DatabaseManager {
      */
     public User getUserById(String userId) {
         try {
-            // Check cache trước (O(1))
-            User cachedUser = userCache.get(userId);
-            if (cachedUser != null) {
-                System.out.println("🎯 Cache hit for userId: " + userId);
-                return cachedUser;
-            }
-            
-            System.out.println("💾 Cache miss for userId: " + userId + ", querying database...");
-            
-            // Cache miss → Query database
-            Document userDoc = findUserDocument(userId);
-            if (userDoc != null) {
-                User user = documentToUser(userDoc);
-                
-                // Lưu vào cache cho lần sau
-                userCache.put(userId, user);
-                System.out.println("✅ Cached user: " + user.getUsername());
-                
-                return user;
-            }
-            return null;
+            // Cache hit O(1), miss thì loadUserById rồi lưu lại
+            return userCache.get(userId);
         } catch (NumberFormatException e) {
             System.out.println("❌ Invalid userId format: " + userId);
             return null;
@@ -199,73 +282,171 @@ public class DatabaseManager {
         }
     }
     
+    /**
+     * Loader của userCache (cache miss và refresh nền)
+     */
+    private User loadUserById(String userId) {
+        Document userDoc = findUserDocument(userId);
+        return userDoc != null ? documentToUser(userDoc) : null;
+    }
+    
     /**
      * Cập nhật điểm sau trận đấu
-     * BUG FIX #1: Dùng helper method để tránh duplicate O(n) scan
+     * 1 lệnh findOneAndUpdate atomic (pipeline update) thay cho đọc - tính - ghi đè,
+     * nên các update song song cho cùng 1 user không bị mất.
+     * @return User sau khi cập nhật (đã ghi vào cache), null nếu thất bại
      */
-    public void updateUserScore(String userId, int scoreToAdd, String result) {
+    public User updateUserScore(String userId, int scoreToAdd, String result) {
         try {
-            // Tìm user document (optimized)
-            Document userDoc = findUserDocument(userId);
-            if (userDoc == null) {
-                System.out.println("❌ User not found for score update: " + userId);
-                return;
-            }
-            
-            ObjectId userObjectId = userDoc.getObjectId("_id");
+            Document updatedDoc = usersCollection.findOneAndUpdate(
+                Filters.eq("user_id", Integer.parseInt(userId)),
+                scoreUpdatePipeline(scoreToAdd, result),
+                new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)
+            );
             
-            int currentScore = userDoc.getInteger("total_score", 0);
-            int wins = userDoc.getInteger("total_wins", 0);
-            int losses = userDoc.getInteger("total_losses", 0);
-            int draws = userDoc.getInteger("total_draws", 0);
-            int newScore = currentScore;
-            
-            // Cập nhật kết quả và điểm
-            System.out.println("🔍 DEBUG DatabaseManager: User " + userId + ", result: " + result + 
-                             ", scoreToAdd: " + scoreToAdd + ", currentScore: " + currentScore);
-            
-            if ("win".equals(result)) {
-                wins++;
-                newScore = currentScore + scoreToAdd; // Người thắng: cộng toàn bộ điểm
-                System.out.println("✅ WIN: " + scoreToAdd + " points added, new score: " + newScore);
-            } else if ("lose".equals(result)) {
-                losses++;
-                int halfScore = (scoreToAdd + 1) / 2; // Làm tròn lên
-                newScore = currentScore + halfScore; // Người thua: cộng 50% điểm
-                System.out.println("❌ LOSE: " + halfScore + " points added (50% of " + scoreToAdd + "), new score: " + newScore);
-            } else if ("draw".equals(result)) {
-                draws++;
-                newScore = currentScore + scoreToAdd; // Hòa: cộng toàn bộ điểm
-                System.out.println("🤝 DRAW: " + scoreToAdd + " points added, new score: " + newScore);
+            if (updatedDoc == null) {
+                System.out.println("❌ User not found for score update: " + userId);
+                return null;
             }
             
-            // Tính tỷ lệ thắng
-            int totalMatches = wins + losses + draws;
-            double winRate = totalMatches > 0 ? (wins * 100.0 / totalMatches) : 0.0;
-            
-            usersCollection.updateOne(
-                Filters.eq("_id", userObjectId),
-                Updates.combine(
-                    Updates.set("total_score", newScore),
-                    Updates.set("total_wins", wins),
-                    Updates.set("total_losses", losses),
-                    Updates.set("total_draws", draws),
-                    Updates.set("win_rate", winRate)
-                )
-            );
-            
-            // BUG FIX #1: Invalidate cache sau khi update
-            userCache.remove(userId);
-            System.out.println("🗑️ Cache invalidated for userId: " + userId);
+            User user = documentToUser(updatedDoc);
+            System.out.println("✅ " + result + ": +" + effectivePoints(scoreToAdd, result) + " points for " + user.getUsername()
+                    + ", new score: " + user.getTotalScore());
             
+            // Ghi đè cache bằng document mới thay vì invalidate
+            userCache.put(userId, user);
+            leaderboard.update(user);
+            return user;
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+    
+    /**
+     * Điểm thực cộng vào total_score: thua chỉ được 50% (làm tròn lên)
+     */
+    static int effectivePoints(int scoreToAdd, String result) {
+        if ("win".equals(result) || "draw".equals(result)) {
+            return scoreToAdd;
+        }
+        if ("lose".equals(result)) {
+            return (scoreToAdd + 1) / 2;
+        }
+        return 0;
+    }
+    
+    private static String counterField(String result) {
+        switch (result) {
+            case "win": return "total_wins";
+            case "lose": return "total_losses";
+            case "draw": return "total_draws";
+            default: return null;
+        }
+    }
+    
+    static List<Document> scoreUpdatePipeline(int scoreToAdd, String result) {
+        return scoreUpdatePipeline(scoreToAdd, result, 0);
+    }
+    
+    /**
+     * Pipeline update atomic cho 1 kết quả trận (dùng chung cho updateUserScore và MatchResultWriter)
+     * @param ratingDelta thay đổi rating Elo (EloRating.delta), cộng dồn như điểm
+     */
+    static List<Document> scoreUpdatePipeline(int scoreToAdd, String result, int ratingDelta) {
+        // Stage 1: cộng dồn điểm + bộ đếm + rating (tương đương $inc, $ifNull cho document thiếu field)
+        Document increments = new Document("total_score", incrementExpr("total_score", effectivePoints(scoreToAdd, result)));
+        increments.append("rating", new Document("$add", List.of(
+            new Document("$ifNull", List.of("$rating", User.DEFAULT_RATING)), ratingDelta)));
+        String counterField = counterField(String.valueOf(result));
+        if (counterField != null) {
+            increments.append(counterField, incrementExpr(counterField, 1));
         }
+        // Stage 2: tính lại win_rate từ giá trị mới
+        Document wins = incrementExpr("total_wins", 0);
+        Document totalMatches = new Document("$add", List.of(
+            wins, incrementExpr("total_losses", 0), incrementExpr("total_draws", 0)));
+        Document winRate = new Document("$cond", List.of(
+            new Document("$gt", List.of(totalMatches, 0)),
+            new Document("$divide", List.of(new Document("$multiply", List.of(wins, 100.0)), totalMatches)),
+            0.0
+        ));
+        
+        List<Document> pipeline = new ArrayList<>();
+        pipeline.add(new Document("$set", increments));
+        pipeline.add(new Document("$set", new Document("win_rate", winRate)));
+        return pipeline;
+    }
+    
+    /**
+     * Áp dụng trước kết quả trận vào cache (ghi DB chạy nền qua MatchResultWriter)
+     * @return User với điểm/bộ đếm mới, null nếu không tìm thấy user
+     */
+    public User applyScoreToCache(String userId, int scoreToAdd, String result) {
+        return applyScoreToCache(userId, scoreToAdd, result, 0);
+    }
+    
+    /**
+     * Như trên, kèm thay đổi rating Elo (cùng giá trị với MatchResult gửi cho MatchResultWriter)
+     */
+    public User applyScoreToCache(String userId, int scoreToAdd, String result, int ratingDelta) {
+        User current = getUserById(userId);
+        if (current == null) {
+            return null;
+        }
+        User updated = new User(current.getUserId(), current.getUsername(), 
+                current.getTotalScore() + effectivePoints(scoreToAdd, result),
+                current.getTotalWins() + ("win".equals(result) ? 1 : 0),
+                current.getTotalLosses() + ("lose".equals(result) ? 1 : 0),
+                current.getTotalDraws() + ("draw".equals(result) ? 1 : 0),
+                0.0, current.getStatus());
+        int totalMatches = updated.getTotalMatches();
+        updated.setWinRate(totalMatches > 0 ? updated.getTotalWins() * 100.0 / totalMatches : 0.0);
+        updated.setRating(current.getRating() + ratingDelta);
+        userCache.put(userId, updated);
+        leaderboard.update(updated);
+        return updated;
+    }
+    
+    /**
+     * Đưa kết quả trận vào hàng đợi ghi nền (insertMany + bulkWrite theo lô)
+     */
+    public void submitMatchResult(MatchResult result) {
+        resultWriter.submit(result);
+        invalidateRecentHistory(result.getPlayer1Id(), result.getPlayer2Id());
+    }
+    
+    /**
+     * Gọi từ MatchResultWriter sau khi lô đã ghi: xóa cache lần nữa phòng khi có người đọc lịch sử trước lúc ghi xong
+     */
+    private void onMatchesPersisted(List<MatchResult> results) {
+        for (MatchResult result : results) {
+            invalidateRecentHistory(result.getPlayer1Id(), result.getPlayer2Id());
+        }
+    }
+    
+    private void invalidateRecentHistory(String player1Id, String player2Id) {
+        historyGenerations.incrementAndGet(generationSlot(player1Id));
+        historyGenerations.incrementAndGet(generationSlot(player2Id));
+        recentHistoryCache.invalidate(player1Id);
+        recentHistoryCache.invalidate(player2Id);
+    }
+    
+    private int generationSlot(String userId) {
+        return (userId.hashCode() & 0x7fffffff) % historyGenerations.length();
+    }
+    
+    public MatchResultWriter getResultWriter() {
+        return resultWriter;
+    }
+    
+    private static Document incrementExpr(String field, int amount) {
+        return new Document("$add", List.of(new Document("$ifNull", List.of("$" + field, 0)), amount));
     }
     
     /**
      * Đổi mật khẩu (yêu cầu xác thực mật khẩu cũ)
-     * BUG FIX #1: Dùng helper method để tránh duplicate O(n) scan
+     * BUG FIX #1: Dùng helper method (lookup qua index user_id)
      * @param userId ID của user
      * @param oldHashedPassword Mật khẩu cũ đã hash (để verify)
      * @param newHashedPassword Mật khẩu mới đã hash
@@ -273,7 +454,7 @@ public class DatabaseManager {
      */
     public boolean changePassword(String userId, String oldHashedPassword, String newHashedPassword) {
         try {
-            // Tìm user document (optimized)
+            // Tìm user document (index user_id)
             Document userDoc = findUserDocument(userId);
             if (userDoc == null) {
                 System.out.println("❌ User not found for password change");
@@ -296,7 +477,7 @@ public class DatabaseManager {
             );
             
             // BUG FIX #1: Invalidate cache sau khi update password
-            userCache.remove(userId);
+            userCache.invalidate(userId);
             System.out.println("🗑️ Cache invalidated for userId: " + userId);
             
             System.out.println("✅ Password changed successfully for user: " + userDoc.getString("username"));
@@ -341,7 +522,8 @@ public class DatabaseManager {
             );
             
             // BUG FIX #1: Invalidate cache sau khi update username
-            userCache.remove(userId);
+            userCache.invalidate(userId);
+            leaderboard.rename(Integer.parseInt(userId), newUsername);
             System.out.println("🗑️ Cache invalidated for userId: " + userId);
             
             System.out.println("✅ Username changed successfully to: " + newUsername);
@@ -358,28 +540,18 @@ public class DatabaseManager {
     public void updateUserCache(User updatedUser) {
         String userId = String.valueOf(updatedUser.getUserId());
         userCache.put(userId, updatedUser);
+        leaderboard.update(updatedUser);
         System.out.println("✅ User cache updated: " + updatedUser.getUsername());
     }
     
     /**
-     * Lấy bảng xếp hạng
+     * Lấy bảng xếp hạng (từ leaderboard trong bộ nhớ, không query DB)
      */
     public List<User> getLeaderboard(int limit) {
-        List<User> leaderboard = new ArrayList<>();
-        try {
-            FindIterable<Document> results = usersCollection.find()
-                    .sort(Sorts.orderBy(
-                        Sorts.descending("total_score"),
-                        Sorts.descending("total_wins")
-                    ))
-                    .limit(limit);
-            
-            for (Document doc : results) {
-                leaderboard.add(documentToUser(doc));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return leaderboard.top(limit);
+    }
+    
+    public Leaderboard getLeaderboardIndex() {
         return leaderboard;
     }
     
@@ -426,6 +598,10 @@ public class DatabaseManager {
                     .append("created_at", new Date());
             
             matchHistoryCollection.insertOne(match);
+            if (historyBuckets != null) {
+                historyBuckets.append(List.of(match), Collections.emptySet());
+            }
+            invalidateRecentHistory(player1Id, player2Id);
             System.out.println("✅ Match saved: " + player1Name + " vs " + player2Name);
         } catch (Exception e) {
             e.printStackTrace();
@@ -433,22 +609,55 @@ public class DatabaseManager {
     }
     
     /**
-     * Lấy lịch sử đấu của user
-     * BUG FIX #3 & #8: Lấy player names từ DB thay vì query getUserById() (N+1 problem)
+     * Lấy lịch sử đấu của user (trang đầu, mới nhất trước)
      */
     public List<Match> getUserMatchHistory(String userId, int limit) {
+        return getUserMatchHistory(userId, limit, null, null);
+    }
+    
+    /**
+     * Lấy lịch sử đấu của user theo keyset pagination: các trận cũ hơn cursor (created_at, _id).
+     * Mỗi nhánh $or đi theo compound index {playerX_id, created_at, _id} nên không phải sort trong bộ nhớ.
+     * BUG FIX #3 & #8: Lấy player names từ DB thay vì query getUserById() (N+1 problem)
+     * @param beforeCreatedAt null = trang đầu
+     */
+    public List<Match> getUserMatchHistory(String userId, int limit, Date beforeCreatedAt, ObjectId beforeId) {
+        boolean firstPage = beforeCreatedAt == null || beforeId == null;
+        // Trang đầu cache dư 1 trận để caller lấy limit + 1 (kiểm tra còn trang sau) vẫn trúng cache
+        if (firstPage && limit <= RECENT_HISTORY_SIZE + 1) {
+            List<Match> cached = recentHistoryCache.getIfPresent(userId);
+            if (cached != null) {
+                return cached.subList(0, Math.min(limit, cached.size()));
+            }
+        }
+        
+        int fetchLimit = firstPage ? Math.max(limit, RECENT_HISTORY_SIZE + 1) : limit;
+        long generation = historyGenerations.get(generationSlot(userId)); // Đọc trước khi query
         List<Match> history = new ArrayList<>();
         try {
-            FindIterable<Document> results = matchHistoryCollection.find(
-                Filters.or(
-                    Filters.eq("player1_id", userId),
-                    Filters.eq("player2_id", userId)
-                )
-            ).sort(Sorts.descending("created_at")).limit(limit);
+            Iterable<Document> results;
+            if (historyBuckets != null) {
+                // Đọc 1-2 bucket của user thay vì $or trên match_history
+                results = historyBuckets.read(userId, fetchLimit, firstPage ? null : beforeCreatedAt, beforeId);
+            } else {
+                Bson cursor = firstPage ? null : Filters.or(
+                    Filters.lt("created_at", beforeCreatedAt),
+                    Filters.and(Filters.eq("created_at", beforeCreatedAt), Filters.lt("_id", beforeId))
+                );
+                
+                results = matchHistoryCollection.find(
+                    Filters.or(
+                        playerFilter("player1_id", userId, cursor),
+                        playerFilter("player2_id", userId, cursor)
+                    )
+                ).sort(Sorts.descending("created_at", "_id")).limit(fetchLimit);
+            }
             
             for (Document doc : results) {
                 Match match = new Match();
-                match.setMatchId(doc.getObjectId("_id").hashCode());
+                ObjectId historyId = doc.getObjectId("_id");
+                match.setMatchId(historyId.hashCode());
+                match.setHistoryId(historyId.toHexString());
                 match.setPlayer1Id(doc.getString("player1_id").hashCode());
                 match.setPlayer2Id(doc.getString("player2_id").hashCode());
                 match.setPlayer1Score(doc.getInteger("player1_score", 0));
@@ -457,38 +666,84 @@ public class DatabaseManager {
                 match.setCreatedAt(new java.sql.Timestamp(doc.getDate("created_at").getTime()));
                 
                 // BUG FIX #3: Lấy tên từ DB thay vì query
+                // Trận cũ thiếu tên: chạy "MongoDBSetup backfill-names" 1 lần
                 String player1Name = doc.getString("player1_name");
                 String player2Name = doc.getString("player2_name");
-                
-                // Fallback cho matches cũ (không có player names trong DB)
-                if (player1Name == null || player2Name == null) {
-                    System.out.println("⚠️ Old match without names, querying users (one-time)...");
-                    User p1 = getUserById(doc.getString("player1_id"));
-                    User p2 = getUserById(doc.getString("player2_id"));
-                    player1Name = p1 != null ? p1.getUsername() : "Unknown";
-                    player2Name = p2 != null ? p2.getUsername() : "Unknown";
-                }
-                
-                match.setPlayer1Name(player1Name);
-                match.setPlayer2Name(player2Name);
+                match.setPlayer1Name(player1Name != null ? player1Name : "Unknown");
+                match.setPlayer2Name(player2Name != null ? player2Name : "Unknown");
                 
                 history.add(match);
             }
         } catch (Exception e) {
             e.printStackTrace();
+            return history;
+        }
+        
+        if (firstPage) {
+            List<Match> page = Collections.unmodifiableList(history);
+            // Có trận mới trong lúc query: trang có thể đã cũ, không cache (kiểm tra lại sau put vì invalidate có thể chen giữa)
+            if (historyGenerations.get(generationSlot(userId)) == generation) {
+                recentHistoryCache.put(userId, page);
+                if (historyGenerations.get(generationSlot(userId)) != generation) {
+                    recentHistoryCache.invalidate(userId);
+                }
+            }
+            return page.subList(0, Math.min(limit, page.size()));
         }
         return history;
     }
     
+    private static Bson playerFilter(String field, String userId, Bson cursor) {
+        return cursor == null ? Filters.eq(field, userId) : Filters.and(Filters.eq(field, userId), cursor);
+    }
+    
+    /**
+     * Compound index phục vụ trực tiếp filter theo người chơi + sort (created_at, _id) giảm dần
+     */
+    static void ensureHistoryIndexes(MongoCollection<Document> matchHistory) {
+        try {
+            matchHistory.createIndex(Indexes.compoundIndex(
+                Indexes.ascending("player1_id"), Indexes.descending("created_at", "_id")));
+            matchHistory.createIndex(Indexes.compoundIndex(
+                Indexes.ascending("player2_id"), Indexes.descending("created_at", "_id")));
+        } catch (Exception e) {
+            System.err.println("⚠️ Không tạo được index match_history: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Ghi player1_name/player2_name cho các trận cũ chưa có tên (chạy 1 lần từ MongoDBSetup)
+     * @return số trận đã cập nhật
+     */
+    static int backfillPlayerNames(MongoCollection<Document> users, MongoCollection<Document> matchHistory) {
+        Map<String, String> names = new HashMap<>(); // userId -> username
+        for (Document doc : users.find().projection(Projections.include("_id", "user_id", "username"))) {
+            int id = doc.getInteger("user_id", doc.getObjectId("_id").hashCode());
+            names.put(String.valueOf(id), doc.getString("username"));
+        }
+        
+        int updated = 0;
+        // eq null khớp cả field null lẫn field không tồn tại
+        Bson missingNames = Filters.or(Filters.eq("player1_name", null), Filters.eq("player2_name", null));
+        for (Document doc : matchHistory.find(missingNames)) {
+            String p1 = names.getOrDefault(doc.getString("player1_id"), "Unknown");
+            String p2 = names.getOrDefault(doc.getString("player2_id"), "Unknown");
+            matchHistory.updateOne(Filters.eq("_id", doc.getObjectId("_id")),
+                Updates.combine(Updates.set("player1_name", p1), Updates.set("player2_name", p2)));
+            updated++;
+        }
+        return updated;
+    }
+    
     // ==================== ADMIN OPERATIONS ====================
     
     /**
      * Xóa user (chỉ admin)
-     * BUG FIX #1: Dùng helper method để tránh duplicate O(n) scan
+     * BUG FIX #1: Dùng helper method (lookup qua index user_id)
      */
     public boolean deleteUser(String userId) {
         try {
-            // Tìm user document (optimized)
+            // Tìm user document (index user_id)
             Document userDoc = findUserDocument(userId);
             if (userDoc == null) return false;
             
@@ -496,7 +751,8 @@ public class DatabaseManager {
             usersCollection.deleteOne(Filters.eq("_id", userObjectId));
             
             // Invalidate cache
-            userCache.remove(userId);
+            userCache.invalidate(userId);
+            leaderboard.remove(Integer.parseInt(userId));
             System.out.println("🗑️ User deleted and cache cleared: " + userId);
             
             return true;
@@ -508,11 +764,11 @@ public class DatabaseManager {
     
     /**
      * Reset điểm user (chỉ admin)
-     * BUG FIX #1: Dùng helper method để tránh duplicate O(n) scan
+     * BUG FIX #1: Dùng helper method (lookup qua index user_id)
      */
     public boolean resetUserScore(String userId) {
         try {
-            // Tìm user document (optimized)
+            // Tìm user document (index user_id)
             Document userDoc = findUserDocument(userId);
             if (userDoc == null) return false;
             
@@ -525,12 +781,21 @@ public class DatabaseManager {
                     Updates.set("total_wins", 0),
                     Updates.set("total_losses", 0),
                     Updates.set("total_draws", 0),
-                    Updates.set("win_rate", 0.0)
+                    Updates.set("win_rate", 0.0),
+                    Updates.set("rating", User.DEFAULT_RATING)
                 )
             );
             
             // BUG FIX #1: Invalidate cache sau khi reset
-            userCache.remove(userId);
+            userCache.invalidate(userId);
+            User resetUser = documentToUser(userDoc);
+            resetUser.setTotalScore(0);
+            resetUser.setTotalWins(0);
+            resetUser.setTotalLosses(0);
+            resetUser.setTotalDraws(0);
+            resetUser.setWinRate(0.0);
+            resetUser.setRating(User.DEFAULT_RATING);
+            leaderboard.update(resetUser);
             System.out.println("🗑️ Cache invalidated for userId: " + userId);
             
             return true;
@@ -557,21 +822,33 @@ public class DatabaseManager {
         return userCache.size();
     }
     
+    /**
+     * Thống kê hit/miss/eviction/thời gian load của user cache
+     */
+    public BoundedCache.Stats getCacheStats() {
+        return userCache.stats();
+    }
+    
     private User documentToUser(Document doc) {
         User user = new User();
-        user.setUserId(doc.getObjectId("_id").hashCode());
+        user.setUserId(doc.getInteger("user_id", doc.getObjectId("_id").hashCode()));
         user.setUsername(doc.getString("username"));
         user.setTotalScore(doc.getInteger("total_score", 0));
         user.setTotalWins(doc.getInteger("total_wins", 0));
         user.setTotalLosses(doc.getInteger("total_losses", 0));
         user.setTotalDraws(doc.getInteger("total_draws", 0));
         user.setWinRate(doc.getDouble("win_rate"));
+        user.setRating(doc.getInteger("rating", User.DEFAULT_RATING));
         user.setStatus("offline"); // Sẽ cập nhật từ server
         return user;
     }
     
     public void close() {
         if (mongoClient != null) {
+            // Ghi nốt kết quả trận còn trong hàng đợi (hoặc spill ra file)
+            if (resultWriter != null) {
+                resultWriter.shutdown();
+            }
             // Clear cache trước khi close
             clearCache();
             mongoClient.close();
@@ -0,0 +1,22 @@
+package database;
+
+/**
+ * Rating Elo cho ghép trận: tính mức thay đổi sau mỗi trận từ rating 2 bên trước trận.
+ * Ghi xuống DB dạng cộng dồn (delta) trong cùng pipeline với điểm nên vẫn atomic và idempotent.
+ */
+public final class EloRating {
+    public static final int K_FACTOR = 32;
+
+    private EloRating() {
+    }
+
+    /**
+     * Rating thay đổi của người chơi A sau trận với B (người B nhận giá trị đối)
+     * @param result kết quả của A: "win", "lose", "draw"
+     */
+    public static int delta(int ratingA, int ratingB, String result) {
+        double actual = "win".equals(result) ? 1.0 : "draw".equals(result) ? 0.5 : 0.0;
+        double expected = 1.0 / (1.0 + Math.pow(10, (ratingB - ratingA) / 400.0));
+        return (int) Math.round(K_FACTOR * (actual - expected));
+    }
+}
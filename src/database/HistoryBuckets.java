@@ -0,0 +1,196 @@
+package database;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lịch sử đấu lưu theo từng người chơi: mỗi document (bucket) chứa tối đa BUCKET_SIZE trận
+ * (cùng format với match_history), nên đọc 1 trang lịch sử chỉ cần 1-2 document.
+ * match_history vẫn là nguồn dữ liệu gốc; bucket có thể dựng lại bất cứ lúc nào bằng rebuild().
+ */
+public class HistoryBuckets {
+    public static final String COLLECTION = "user_history_buckets";
+    static final int BUCKET_SIZE = 100;
+
+    private final MongoCollection<Document> buckets;
+
+    public HistoryBuckets(MongoCollection<Document> buckets) {
+        this.buckets = buckets;
+    }
+
+    public void ensureIndexes() {
+        try {
+            buckets.createIndex(Indexes.compoundIndex(Indexes.ascending("user_id"), Indexes.descending("last_at")));
+            buckets.createIndex(Indexes.ascending("matches._id")); // findAppended khi ghi lại
+        } catch (Exception e) {
+            System.err.println("⚠️ Không tạo được index " + COLLECTION + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Thêm các trận (document match_history) vào bucket đang mở của cả 2 người chơi.
+     * retried: _id các trận đã có trong match_history từ lần ghi trước (retry/replay), có thể đã vào bucket;
+     * các trận này chỉ được thêm cho người chơi nào chưa có chúng trong bucket.
+     */
+    public void append(List<Document> matches, Set<ObjectId> retried) {
+        Set<String> appended = retried.isEmpty() ? Collections.emptySet() : findAppended(retried);
+        List<WriteModel<Document>> updates = new ArrayList<>(matches.size() * 2);
+        for (Document match : matches) {
+            ObjectId matchId = match.getObjectId("_id");
+            for (String userId : new String[]{match.getString("player1_id"), match.getString("player2_id")}) {
+                if (!appended.contains(userId + ":" + matchId)) {
+                    updates.add(appendModel(userId, match));
+                }
+            }
+        }
+        if (!updates.isEmpty()) {
+            buckets.bulkWrite(updates);
+        }
+    }
+
+    /**
+     * "userId:matchId" của các trận trong matchIds đã nằm trong bucket
+     */
+    private Set<String> findAppended(Set<ObjectId> matchIds) {
+        Set<String> appended = new HashSet<>();
+        Bson query = Filters.in("matches._id", matchIds);
+        for (Document bucket : buckets.find(query).projection(Projections.include("user_id", "matches._id"))) {
+            for (Document match : bucket.getList("matches", Document.class)) {
+                ObjectId matchId = match.getObjectId("_id");
+                if (matchIds.contains(matchId)) {
+                    appended.add(bucket.getString("user_id") + ":" + matchId);
+                }
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * Bucket chưa đầy thì $push, không có thì upsert bucket mới
+     */
+    private UpdateOneModel<Document> appendModel(String userId, Document match) {
+        Date createdAt = match.getDate("created_at");
+        return new UpdateOneModel<>(
+                Filters.and(Filters.eq("user_id", userId), Filters.lt("count", BUCKET_SIZE)),
+                Updates.combine(
+                        Updates.push("matches", match),
+                        Updates.inc("count", 1),
+                        Updates.min("first_at", createdAt),
+                        Updates.max("last_at", createdAt)),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Các trận của user, mới nhất trước, cũ hơn cursor (created_at, _id) nếu có
+     */
+    public List<Document> read(String userId, int limit, Date beforeCreatedAt, ObjectId beforeId) {
+        Bson filter = Filters.eq("user_id", userId);
+        if (beforeCreatedAt != null) {
+            filter = Filters.and(filter, Filters.lte("first_at", beforeCreatedAt));
+        }
+
+        List<Document> result = new ArrayList<>();
+        Set<ObjectId> seen = new HashSet<>();
+        Date oldestCollected = null;
+        try (MongoCursor<Document> cursor = buckets.find(filter).sort(Sorts.descending("last_at")).batchSize(2).iterator()) {
+            while (cursor.hasNext()) {
+                Document bucket = cursor.next();
+                // Bucket này toàn trận mới hơn trận cũ nhất đã đủ limit -> dừng
+                if (result.size() >= limit && oldestCollected != null
+                        && bucket.getDate("last_at").before(oldestCollected)) {
+                    break;
+                }
+                for (Document match : bucket.getList("matches", Document.class)) {
+                    if (isBefore(match, beforeCreatedAt, beforeId) && seen.add(match.getObjectId("_id"))) {
+                        result.add(match);
+                    }
+                }
+                result.sort(HistoryBuckets::newestFirst);
+                if (result.size() > limit) {
+                    result.subList(limit, result.size()).clear();
+                }
+                if (result.size() >= limit) {
+                    oldestCollected = result.get(result.size() - 1).getDate("created_at");
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isBefore(Document match, Date beforeCreatedAt, ObjectId beforeId) {
+        if (beforeCreatedAt == null) {
+            return true;
+        }
+        int c = match.getDate("created_at").compareTo(beforeCreatedAt);
+        return c < 0 || (c == 0 && match.getObjectId("_id").compareTo(beforeId) < 0);
+    }
+
+    private static int newestFirst(Document a, Document b) {
+        int c = b.getDate("created_at").compareTo(a.getDate("created_at"));
+        return c != 0 ? c : b.getObjectId("_id").compareTo(a.getObjectId("_id"));
+    }
+
+    /**
+     * Dựng lại toàn bộ bucket từ match_history (đọc tuần tự theo thời gian, mỗi user giữ 1 bucket đang mở)
+     * @return số bucket đã tạo
+     */
+    public int rebuild(MongoCollection<Document> matchHistory) {
+        buckets.drop();
+        ensureIndexes();
+
+        Map<String, List<Document>> open = new HashMap<>(); // userId -> các trận của bucket đang mở
+        List<Document> pendingInsert = new ArrayList<>();
+        int created = 0;
+        for (Document match : matchHistory.find().sort(Sorts.ascending("created_at", "_id"))) {
+            for (String userId : new String[]{match.getString("player1_id"), match.getString("player2_id")}) {
+                List<Document> current = open.computeIfAbsent(userId, k -> new ArrayList<>(BUCKET_SIZE));
+                current.add(match);
+                if (current.size() == BUCKET_SIZE) {
+                    pendingInsert.add(toBucket(userId, current));
+                    open.remove(userId);
+                }
+            }
+            if (pendingInsert.size() >= 500) {
+                created += pendingInsert.size();
+                buckets.insertMany(pendingInsert);
+                pendingInsert.clear();
+            }
+        }
+        for (Map.Entry<String, List<Document>> entry : open.entrySet()) {
+            pendingInsert.add(toBucket(entry.getKey(), entry.getValue()));
+        }
+        if (!pendingInsert.isEmpty()) {
+            created += pendingInsert.size();
+            buckets.insertMany(pendingInsert);
+        }
+        return created;
+    }
+
+    private static Document toBucket(String userId, List<Document> matches) {
+        return new Document("user_id", userId)
+                .append("count", matches.size())
+                .append("first_at", matches.get(0).getDate("created_at"))
+                .append("last_at", matches.get(matches.size() - 1).getDate("created_at"))
+                .append("matches", matches);
+    }
+}
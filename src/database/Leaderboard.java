@@ -0,0 +1,371 @@
+package database;
+
+import shared.User;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bảng xếp hạng trong bộ nhớ: treap có đếm kích thước cây con (order-statistic),
+ * sắp theo total_score giảm dần, total_wins giảm dần, userId tăng dần.
+ * Cập nhật/xóa/tính hạng đều O(log n), lấy top K là O(K + log n).
+ */
+public class Leaderboard {
+    public static final int TOP_TRACKED = 100; // Số người đầu bảng mà topVersion theo dõi (payload LEADERBOARD_DATA)
+
+    private final Map<Integer, User> byId = new HashMap<>(); // userId -> bản ghi đang nằm trong cây
+    private final Random random = new Random();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root;
+    private long topVersion = 0; // Chỉ tăng khi top TOP_TRACKED đổi, dùng để cache payload JSON
+
+    /**
+     * Nạp toàn bộ user (khi khởi động)
+     */
+    public void load(Collection<User> users) {
+        lock.writeLock().lock();
+        try {
+            root = null;
+            byId.clear();
+            for (User user : users) {
+                put(copyOf(user));
+            }
+            topVersion++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Thêm mới hoặc cập nhật điểm/tên của 1 user
+     */
+    public void update(User user) {
+        lock.writeLock().lock();
+        try {
+            User old = byId.get(user.getUserId());
+            User updated = copyOf(user);
+            if (old != null && compare(old, updated) == 0 && sameStats(old, updated)) {
+                return; // Không đổi gì
+            }
+            boolean touchesTop = false;
+            if (old != null) {
+                touchesTop = countBefore(old) < TOP_TRACKED;
+                root = delete(root, old);
+            }
+            put(updated);
+            // Vị trí cũ và mới đều ngoài top: thứ tự của top không đổi
+            if (touchesTop || countBefore(updated) < TOP_TRACKED) {
+                topVersion++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void rename(int userId, String username) {
+        lock.writeLock().lock();
+        try {
+            User old = byId.get(userId);
+            if (old != null && !username.equals(old.getUsername())) {
+                // Tên không nằm trong khóa sắp xếp, chỉ cần thay bản ghi
+                User renamed = copyOf(old);
+                renamed.setUsername(username);
+                boolean touchesTop = countBefore(old) < TOP_TRACKED;
+                root = delete(root, old);
+                put(renamed);
+                if (touchesTop) {
+                    topVersion++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int userId) {
+        lock.writeLock().lock();
+        try {
+            User old = byId.remove(userId);
+            if (old != null) {
+                boolean touchesTop = countBefore(old) < TOP_TRACKED;
+                root = delete(root, old);
+                if (touchesTop) {
+                    topVersion++;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * K người đứng đầu (bản sao, an toàn khi dùng ngoài lock)
+     */
+    public List<User> top(int k) {
+        lock.readLock().lock();
+        try {
+            List<User> result = new ArrayList<>(Math.min(k, size(root)));
+            Deque<Node> stack = new ArrayDeque<>();
+            Node current = root;
+            while ((current != null || !stack.isEmpty()) && result.size() < k) {
+                while (current != null) {
+                    stack.push(current);
+                    current = current.left;
+                }
+                current = stack.pop();
+                result.add(copyOf(current.user));
+                current = current.right;
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hạng của user (bắt đầu từ 1), 0 nếu không có trong bảng
+     */
+    public int rankOf(int userId) {
+        lock.readLock().lock();
+        try {
+            User user = byId.get(userId);
+            return user == null ? 0 : countBefore(user) + 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hạng của user cùng tối đa k người xếp ngay trên và ngay dưới, đọc trong cùng 1 lock
+     * @return null nếu user không có trong bảng
+     */
+    public RankView around(int userId, int k) {
+        lock.readLock().lock();
+        try {
+            User user = byId.get(userId);
+            if (user == null) {
+                return null;
+            }
+            int index = countBefore(user); // Vị trí 0-based
+            int from = Math.max(0, index - k);
+            int to = Math.min(size(root), index + k + 1);
+            List<User> entries = new ArrayList<>(to - from);
+            collectRange(root, 0, from, to, entries);
+            return new RankView(index + 1, size(root), from + 1, entries);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size(root);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Đổi khi top(k) với k <= TOP_TRACKED có thể đã đổi (thay đổi ngoài top không làm tăng)
+     */
+    public long getTopVersion() {
+        lock.readLock().lock();
+        try {
+            return topVersion;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ==================== TREAP ====================
+
+    private void put(User user) {
+        byId.put(user.getUserId(), user);
+        root = insert(root, new Node(user, random.nextInt()));
+    }
+
+    /**
+     * Số user đứng trước key
+     */
+    private int countBefore(User key) {
+        int count = 0;
+        Node node = root;
+        while (node != null) {
+            int c = compare(key, node.user);
+            if (c == 0) {
+                return count + size(node.left);
+            }
+            if (c < 0) {
+                node = node.left;
+            } else {
+                count += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Thu các node có vị trí trong [from, to), bỏ qua cây con nằm ngoài khoảng: O(log n + số phần tử)
+     */
+    private void collectRange(Node t, int offset, int from, int to, List<User> out) {
+        if (t == null || offset >= to || offset + t.size <= from) {
+            return;
+        }
+        int index = offset + size(t.left);
+        collectRange(t.left, offset, from, to, out);
+        if (index >= from && index < to) {
+            out.add(copyOf(t.user));
+        }
+        collectRange(t.right, index + 1, from, to, out);
+    }
+
+    private Node insert(Node t, Node n) {
+        if (t == null) {
+            return n;
+        }
+        if (n.priority > t.priority) {
+            split(t, n.user, n);
+            return recalc(n);
+        }
+        if (compare(n.user, t.user) < 0) {
+            t.left = insert(t.left, n);
+        } else {
+            t.right = insert(t.right, n);
+        }
+        return recalc(t);
+    }
+
+    /**
+     * Tách t theo key: phần nhỏ hơn gắn vào out.left, phần còn lại vào out.right
+     */
+    private void split(Node t, User key, Node out) {
+        if (t == null) {
+            out.left = null;
+            out.right = null;
+            return;
+        }
+        Node parts = new Node(null, 0);
+        if (compare(t.user, key) < 0) {
+            split(t.right, key, parts);
+            t.right = parts.left;
+            out.left = recalc(t);
+            out.right = parts.right;
+        } else {
+            split(t.left, key, parts);
+            t.left = parts.right;
+            out.left = parts.left;
+            out.right = recalc(t);
+        }
+    }
+
+    private Node delete(Node t, User key) {
+        if (t == null) {
+            return null;
+        }
+        int c = compare(key, t.user);
+        if (c == 0) {
+            return merge(t.left, t.right);
+        }
+        if (c < 0) {
+            t.left = delete(t.left, key);
+        } else {
+            t.right = delete(t.right, key);
+        }
+        return recalc(t);
+    }
+
+    private Node merge(Node a, Node b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return recalc(a);
+        }
+        b.left = merge(a, b.left);
+        return recalc(b);
+    }
+
+    private static Node recalc(Node n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        return n;
+    }
+
+    private static int size(Node n) {
+        return n == null ? 0 : n.size;
+    }
+
+    /**
+     * Thứ tự xếp hạng: điểm giảm dần, số trận thắng giảm dần, userId tăng dần (để khóa luôn duy nhất)
+     */
+    private static int compare(User a, User b) {
+        if (a.getTotalScore() != b.getTotalScore()) {
+            return Integer.compare(b.getTotalScore(), a.getTotalScore());
+        }
+        if (a.getTotalWins() != b.getTotalWins()) {
+            return Integer.compare(b.getTotalWins(), a.getTotalWins());
+        }
+        return Integer.compare(a.getUserId(), b.getUserId());
+    }
+
+    private static boolean sameStats(User a, User b) {
+        return a.getTotalLosses() == b.getTotalLosses() && a.getTotalDraws() == b.getTotalDraws()
+                && a.getWinRate() == b.getWinRate()
+                && (a.getUsername() == null ? b.getUsername() == null : a.getUsername().equals(b.getUsername()));
+    }
+
+    private static User copyOf(User u) {
+        return new User(u.getUserId(), u.getUsername(), u.getTotalScore(), u.getTotalWins(),
+                u.getTotalLosses(), u.getTotalDraws(), u.getWinRate(), "offline");
+    }
+
+    /**
+     * Kết quả truy vấn hạng: entries bắt đầu từ hạng firstRank
+     */
+    public static final class RankView {
+        private final int rank;
+        private final int total;
+        private final int firstRank;
+        private final List<User> entries;
+
+        RankView(int rank, int total, int firstRank, List<User> entries) {
+            this.rank = rank;
+            this.total = total;
+            this.firstRank = firstRank;
+            this.entries = entries;
+        }
+
+        public int getRank() { return rank; }
+        public int getTotal() { return total; }
+        public int getFirstRank() { return firstRank; }
+        public List<User> getEntries() { return entries; }
+
+        /**
+         * Phần trăm người chơi xếp sau (hạng 1 = 100, hạng cuối = 0)
+         */
+        public double getPercentile() {
+            return total > 1 ? (total - rank) * 100.0 / (total - 1) : 100.0;
+        }
+    }
+
+    private static final class Node {
+        final User user;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(User user, int priority) {
+            this.user = user;
+            this.priority = priority;
+        }
+    }
+}
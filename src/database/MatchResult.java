@@ -0,0 +1,160 @@
+package database;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.JSONObject;
+
+import java.util.Date;
+
+/**
+ * Kết quả 1 trận chờ ghi xuống DB: bản ghi match_history + điểm cộng cho 2 người chơi.
+ * matchId sinh sẵn ở server để ghi lại (retry/replay) không bị trùng.
+ * Seed + version + số hạt của bàn được lưu cùng để dựng lại đúng bàn đã chơi (BoardGenerator).
+ */
+public class MatchResult {
+    private final ObjectId matchId;
+    private final String player1Id;
+    private final String player2Id;
+    private final String player1Name;
+    private final String player2Name;
+    private final int player1Score;
+    private final int player2Score;
+    private final String winnerId;
+    private final int duration;
+    private final Date createdAt;
+    private final int player1Points; // Điểm cộng vào total_score (trước khi áp dụng luật thua 50%)
+    private final String player1Result; // "win", "lose", "draw"
+    private final int player2Points;
+    private final String player2Result;
+    private final int player1RatingDelta; // Thay đổi rating Elo (EloRating.delta)
+    private final int player2RatingDelta;
+    private final long boardSeed;
+    private final int boardVersion; // 0 = không rõ (spill file cũ), không ghi các trường board
+    private final int riceCount;
+    private final int paddyCount;
+
+    public MatchResult(String player1Id, String player2Id, String player1Name, String player2Name,
+                       int player1Score, int player2Score, String winnerId, int duration,
+                       int player1Points, String player1Result, int player2Points, String player2Result,
+                       int player1RatingDelta, int player2RatingDelta,
+                       long boardSeed, int boardVersion, int riceCount, int paddyCount) {
+        this(new ObjectId(), player1Id, player2Id, player1Name, player2Name, player1Score, player2Score,
+                winnerId, duration, new Date(), player1Points, player1Result, player2Points, player2Result,
+                player1RatingDelta, player2RatingDelta, boardSeed, boardVersion, riceCount, paddyCount);
+    }
+
+    private MatchResult(ObjectId matchId, String player1Id, String player2Id, String player1Name, String player2Name,
+                        int player1Score, int player2Score, String winnerId, int duration, Date createdAt,
+                        int player1Points, String player1Result, int player2Points, String player2Result,
+                        int player1RatingDelta, int player2RatingDelta,
+                        long boardSeed, int boardVersion, int riceCount, int paddyCount) {
+        this.matchId = matchId;
+        this.player1Id = player1Id;
+        this.player2Id = player2Id;
+        this.player1Name = player1Name;
+        this.player2Name = player2Name;
+        this.player1Score = player1Score;
+        this.player2Score = player2Score;
+        this.winnerId = winnerId;
+        this.duration = duration;
+        this.createdAt = createdAt;
+        this.player1Points = player1Points;
+        this.player1Result = player1Result;
+        this.player2Points = player2Points;
+        this.player2Result = player2Result;
+        this.player1RatingDelta = player1RatingDelta;
+        this.player2RatingDelta = player2RatingDelta;
+        this.boardSeed = boardSeed;
+        this.boardVersion = boardVersion;
+        this.riceCount = riceCount;
+        this.paddyCount = paddyCount;
+    }
+
+    public ObjectId getMatchId() { return matchId; }
+    public String getPlayer1Id() { return player1Id; }
+    public String getPlayer2Id() { return player2Id; }
+    public int getPlayer1Points() { return player1Points; }
+    public String getPlayer1Result() { return player1Result; }
+    public int getPlayer2Points() { return player2Points; }
+    public String getPlayer2Result() { return player2Result; }
+    public int getPlayer1RatingDelta() { return player1RatingDelta; }
+    public int getPlayer2RatingDelta() { return player2RatingDelta; }
+
+    /**
+     * Document match_history (cùng format với DatabaseManager.saveMatch)
+     */
+    Document toMatchDocument() {
+        Document doc = new Document()
+                .append("_id", matchId)
+                .append("player1_id", player1Id)
+                .append("player2_id", player2Id)
+                .append("player1_name", player1Name)
+                .append("player2_name", player2Name)
+                .append("player1_score", player1Score)
+                .append("player2_score", player2Score)
+                .append("winner_id", winnerId)
+                .append("match_duration", duration)
+                .append("created_at", createdAt);
+        if (boardVersion > 0) {
+            doc.append("board_seed", boardSeed)
+                    .append("board_version", boardVersion)
+                    .append("rice_count", riceCount)
+                    .append("paddy_count", paddyCount);
+        }
+        return doc;
+    }
+
+    /**
+     * 1 dòng trong spill file
+     */
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("match_id", matchId.toHexString());
+        json.put("player1_id", player1Id);
+        json.put("player2_id", player2Id);
+        json.put("player1_name", player1Name);
+        json.put("player2_name", player2Name);
+        json.put("player1_score", player1Score);
+        json.put("player2_score", player2Score);
+        json.put("winner_id", winnerId == null ? JSONObject.NULL : winnerId);
+        json.put("match_duration", duration);
+        json.put("created_at", createdAt.getTime());
+        json.put("player1_points", player1Points);
+        json.put("player1_result", player1Result);
+        json.put("player2_points", player2Points);
+        json.put("player2_result", player2Result);
+        json.put("player1_rating_delta", player1RatingDelta);
+        json.put("player2_rating_delta", player2RatingDelta);
+        if (boardVersion > 0) {
+            json.put("board_seed", boardSeed);
+            json.put("board_version", boardVersion);
+            json.put("rice_count", riceCount);
+            json.put("paddy_count", paddyCount);
+        }
+        return json;
+    }
+
+    static MatchResult fromJson(JSONObject json) {
+        return new MatchResult(
+                new ObjectId(json.getString("match_id")),
+                json.getString("player1_id"),
+                json.getString("player2_id"),
+                json.optString("player1_name", null),
+                json.optString("player2_name", null),
+                json.getInt("player1_score"),
+                json.getInt("player2_score"),
+                json.isNull("winner_id") ? null : json.getString("winner_id"),
+                json.getInt("match_duration"),
+                new Date(json.getLong("created_at")),
+                json.getInt("player1_points"),
+                json.getString("player1_result"),
+                json.getInt("player2_points"),
+                json.getString("player2_result"),
+                json.optInt("player1_rating_delta", 0), // Spill file cũ chưa có rating
+                json.optInt("player2_rating_delta", 0),
+                json.optLong("board_seed", 0), // Spill file cũ chưa có board: version 0
+                json.optInt("board_version", 0),
+                json.optInt("rice_count", 0),
+                json.optInt("paddy_count", 0));
+    }
+}
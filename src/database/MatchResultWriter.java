@@ -0,0 +1,330 @@
+package database;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Ghi kết quả trận xuống MongoDB trên 1 thread nền:
+ * gom lô từ hàng đợi có giới hạn, insertMany vào match_history + bulkWrite điểm user.
+ * Lỗi tạm thời thì thử lại; MongoDB không dùng được thì ghi ra spill file (JSONL) và replay sau.
+ * Lỗi không tạm thời (dữ liệu bị từ chối) thì ghi ra dead-letter file, không replay (cần người xem lại).
+ */
+public class MatchResultWriter implements Runnable {
+    private static final int QUEUE_CAPACITY = Integer.getInteger("db.writer.queue", 1024);
+    private static final int BATCH_SIZE = Integer.getInteger("db.writer.batch", 64);
+    private static final long OFFER_TIMEOUT_MS = 1000; // Backpressure: chờ tối đa khi hàng đợi đầy
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_BASE_DELAY_MS = 200;
+    private static final long REPLAY_INTERVAL_MS = 30_000;
+    private static final int APPLIED_MATCHES_KEPT = 20; // Số matchId gần nhất lưu trên user để chống cộng điểm 2 lần
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final MongoCollection<Document> usersCollection;
+    private final MongoCollection<Document> matchHistoryCollection;
+    private final BlockingQueue<MatchResult> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Path spillFile = Paths.get(System.getProperty("db.spill.file", "match_results.spill.jsonl"));
+    private final Path replayFile = Paths.get(spillFile + ".replay");
+    private final Path deadLetterFile = Paths.get(System.getProperty("db.deadletter.file", "match_results.dead.jsonl"));
+    // Không dùng synchronized: spill() ghi file SYNC từ thread của người chơi, synchronized sẽ ghim virtual thread
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private final Consumer<List<MatchResult>> onPersisted; // Gọi sau khi 1 lô đã ghi xong
+    private final HistoryBuckets historyBuckets; // null nếu không bật bucketed history
+    private Thread thread;
+    private volatile boolean running;
+    private long lastReplay;
+
+    // Thống kê
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong persisted = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    public MatchResultWriter(MongoCollection<Document> usersCollection,
+                             MongoCollection<Document> matchHistoryCollection,
+                             HistoryBuckets historyBuckets,
+                             Consumer<List<MatchResult>> onPersisted) {
+        this.usersCollection = usersCollection;
+        this.matchHistoryCollection = matchHistoryCollection;
+        this.historyBuckets = historyBuckets;
+        this.onPersisted = onPersisted;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "match-result-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Đưa kết quả vào hàng đợi; hàng đợi đầy quá OFFER_TIMEOUT_MS thì ghi thẳng ra spill file
+     */
+    public void submit(MatchResult result) {
+        submitted.incrementAndGet();
+        try {
+            if (running && queue.offer(result, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("⚠️ Match result queue full, spilling to disk");
+        spill(List.of(result));
+    }
+
+    @Override
+    public void run() {
+        replaySpill(); // Kết quả còn sót từ lần chạy trước
+        List<MatchResult> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            try {
+                MatchResult first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    if (!writeBatch(batch)) {
+                        spill(batch);
+                    }
+                    batch.clear();
+                }
+                if (running && System.currentTimeMillis() - lastReplay >= REPLAY_INTERVAL_MS) {
+                    replaySpill();
+                }
+            } catch (InterruptedException e) {
+                // shutdown() ngắt khi chờ quá lâu: phần còn lại ghi ra spill file
+                spill(batch);
+                List<MatchResult> rest = new ArrayList<>();
+                queue.drainTo(rest);
+                spill(rest);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ghi 1 lô, thử lại với lỗi tạm thời; lỗi không tạm thời thì chuyển các trận lỗi sang dead-letter file
+     * @return true nếu đã xử lý xong (ghi được hoặc vào dead-letter), false nếu cần spill để replay sau
+     */
+    private boolean writeBatch(List<MatchResult> batch) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                insertMatches(batch);
+                updateUserStats(batch);
+                persisted.addAndGet(batch.size());
+                onPersisted.accept(batch);
+                return true;
+            } catch (MongoException e) {
+                if (!isTransient(e)) {
+                    if (batch.size() > 1) {
+                        // Ghi lại từng trận (idempotent) để chỉ trận bị từ chối vào dead-letter
+                        for (MatchResult result : batch) {
+                            if (!writeBatch(List.of(result))) {
+                                spill(List.of(result));
+                            }
+                        }
+                        return true;
+                    }
+                    System.err.println("❌ Kết quả trận bị từ chối, chuyển sang dead-letter: " + e.getMessage());
+                    appendLines(deadLetterFile, batch, deadLettered);
+                    return true;
+                }
+                if (attempt >= MAX_RETRIES) {
+                    System.err.println("❌ Không ghi được " + batch.size() + " kết quả trận: " + e.getMessage());
+                    return false;
+                }
+                retries.incrementAndGet();
+                Thread.sleep(RETRY_BASE_DELAY_MS << attempt);
+            }
+        }
+    }
+
+    private void insertMatches(List<MatchResult> batch) {
+        List<Document> docs = new ArrayList<>(batch.size());
+        for (MatchResult result : batch) {
+            docs.add(result.toMatchDocument());
+        }
+        Set<ObjectId> retried = new HashSet<>();
+        try {
+            matchHistoryCollection.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // Trùng _id = trận đã được ghi ở lần thử trước, bỏ qua
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCode() != DUPLICATE_KEY) {
+                    throw e;
+                }
+                retried.add(docs.get(error.getIndex()).getObjectId("_id"));
+            }
+        }
+        if (historyBuckets != null) {
+            historyBuckets.append(docs, retried); // Trận ghi lại không được thêm vào bucket lần 2
+        }
+    }
+
+    private void updateUserStats(List<MatchResult> batch) {
+        List<WriteModel<Document>> updates = new ArrayList<>(batch.size() * 2);
+        for (MatchResult result : batch) {
+            updates.add(statsUpdate(result.getPlayer1Id(), result.getPlayer1Points(), result.getPlayer1Result(),
+                    result.getPlayer1RatingDelta(), result));
+            updates.add(statsUpdate(result.getPlayer2Id(), result.getPlayer2Points(), result.getPlayer2Result(),
+                    result.getPlayer2RatingDelta(), result));
+        }
+        usersCollection.bulkWrite(updates, new BulkWriteOptions().ordered(true));
+    }
+
+    /**
+     * Cùng pipeline với updateUserScore, chỉ áp dụng nếu matchId chưa có trong applied_matches (idempotent khi retry/replay)
+     */
+    private UpdateOneModel<Document> statsUpdate(String userId, int points, String result, int ratingDelta, MatchResult match) {
+        String matchId = match.getMatchId().toHexString();
+        List<Document> pipeline = DatabaseManager.scoreUpdatePipeline(points, result, ratingDelta);
+        pipeline.add(new Document("$set", new Document("applied_matches", new Document("$slice", List.of(
+                new Document("$concatArrays", List.of(
+                        new Document("$ifNull", List.of("$applied_matches", List.of())),
+                        List.of(matchId))),
+                -APPLIED_MATCHES_KEPT)))));
+        return new UpdateOneModel<>(
+                Filters.and(Filters.eq("user_id", Integer.parseInt(userId)), Filters.ne("applied_matches", matchId)),
+                pipeline);
+    }
+
+    private static boolean isTransient(MongoException e) {
+        return e instanceof MongoSocketException
+                || e instanceof MongoTimeoutException
+                || e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)
+                || e.hasErrorLabel("RetryableWriteError");
+    }
+
+    // ==================== SPILL FILE ====================
+
+    private void spill(List<MatchResult> results) {
+        if (appendLines(spillFile, results, spilled)) {
+            System.out.println("💾 Spilled " + results.size() + " match results to " + spillFile);
+        }
+    }
+
+    /**
+     * Ghi thêm các kết quả (mỗi dòng 1 JSON) vào cuối file, fsync trước khi trả về
+     * @return true nếu đã ghi
+     */
+    private boolean appendLines(Path file, List<MatchResult> results, AtomicLong counter) {
+        if (results.isEmpty()) {
+            return false;
+        }
+        List<String> lines = new ArrayList<>(results.size());
+        for (MatchResult result : results) {
+            lines.add(result.toJson().toString());
+        }
+        spillLock.lock();
+        try {
+            Files.write(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+            counter.addAndGet(results.size());
+            return true;
+        } catch (IOException e) {
+            System.err.println("❌ Không ghi được " + file + ", mất " + results.size() + " kết quả trận: " + e.getMessage());
+            return false;
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Ghi lại các kết quả trong spill file; lô nào vẫn lỗi thì spill tiếp cho lần sau
+     */
+    private void replaySpill() {
+        lastReplay = System.currentTimeMillis();
+        List<MatchResult> pending = new ArrayList<>();
+        spillLock.lock();
+        try {
+            // File .replay còn lại nghĩa là lần replay trước bị dừng giữa chừng -> xử lý tiếp
+            if (!Files.exists(replayFile)) {
+                if (!Files.exists(spillFile)) {
+                    return;
+                }
+                Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+            }
+            for (String line : Files.readAllLines(replayFile, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    pending.add(MatchResult.fromJson(new JSONObject(line)));
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("❌ Không đọc được spill file: " + e.getMessage());
+            return;
+        } finally {
+            spillLock.unlock();
+        }
+
+        System.out.println("🔄 Replaying " + pending.size() + " spilled match results...");
+        try {
+            for (int from = 0; from < pending.size(); from += BATCH_SIZE) {
+                List<MatchResult> batch = pending.subList(from, Math.min(from + BATCH_SIZE, pending.size()));
+                if (!writeBatch(batch)) {
+                    spill(batch);
+                }
+            }
+            Files.deleteIfExists(replayFile);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // File .replay giữ nguyên, replay lại lần sau
+        } catch (IOException e) {
+            System.err.println("❌ Không xóa được " + replayFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Dừng nhận kết quả mới, chờ writer ghi hết hàng đợi (tối đa 5s)
+     */
+    public void shutdown() {
+        running = false;
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(5000);
+            if (thread.isAlive()) {
+                thread.interrupt();
+                thread.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueSize() { return queue.size(); }
+    public long getSubmittedCount() { return submitted.get(); }
+    public long getPersistedCount() { return persisted.get(); }
+    public long getRetryCount() { return retries.get(); }
+    public long getSpilledCount() { return spilled.get(); }
+    public long getDeadLetterCount() { return deadLettered.get(); }
+}
@@ -3,18 +3,35 @@ package database;
 import com.mongodb.client.*;
 import org.bson.Document;
 import com.mongodb.client.model.IndexOptions;
+import org.bson.types.ObjectId;
 
 import java.util.Date;
 
 /**
  * Setup MongoDB tự động - chạy 1 lần để khởi tạo database
  * Chạy trong NetBeans: Shift+F6 trên file này
+ * Tham số "migrate": không xóa dữ liệu, chỉ bổ sung field/index mới cho database đang có
+ * Tham số "backfill-names": ghi tên người chơi cho các trận cũ trong match_history
+ * Tham số "build-buckets": dựng user_history_buckets từ match_history (dùng với -Ddb.history.buckets=true)
  */
 public class MongoDBSetup {
     private static final String CONNECTION_STRING = "mongodb://localhost:27017";
     private static final String DB_NAME = "tam_nhat_thoc";
     
     public static void main(String[] args) {
+        if (args.length > 0 && "migrate".equals(args[0])) {
+            migrate();
+            return;
+        }
+        if (args.length > 0 && "backfill-names".equals(args[0])) {
+            backfillNames();
+            return;
+        }
+        if (args.length > 0 && "build-buckets".equals(args[0])) {
+            buildBuckets();
+            return;
+        }
+        
         System.out.println("========================================");
         System.out.println("  MONGODB SETUP - TẤM NHẶT THÓC");
         System.out.println("========================================\n");
@@ -61,12 +78,14 @@ public class MongoDBSetup {
                 new IndexOptions().unique(true)
             );
             
+            // Unique index cho user_id (ID công khai dùng trong protocol)
+            DatabaseManager.ensureUserIdIndex(usersCollection);
+            
             // Index cho total_score (để sắp xếp bảng xếp hạng)
             usersCollection.createIndex(new Document("total_score", -1));
             
-            // Indexes cho match_history
-            matchHistoryCollection.createIndex(new Document("player1_id", 1));
-            matchHistoryCollection.createIndex(new Document("player2_id", 1));
+            // Indexes cho match_history: {playerX_id, created_at, _id} phục vụ cả filter lẫn sort lịch sử
+            DatabaseManager.ensureHistoryIndexes(matchHistoryCollection);
             matchHistoryCollection.createIndex(new Document("created_at", -1));
             
             System.out.println("✅ Indexes đã tạo!\n");
@@ -80,7 +99,7 @@ public class MongoDBSetup {
             // "123456" -> 8c6976e5b5410415bde908bd4dee15dfb167a9c873fc4bb8a81f6f2ab448a918
             
             // Tài khoản Admin
-            Document admin = new Document()
+            Document admin = withUserId(new Document())
                 .append("username", "admin")
                 .append("password", "240be518fabd2724ddb6f04eeb1da5967448d7e831c08c8fa822809f74c720a9")
                 .append("email", "admin@tamnhatthoc.com")
@@ -95,7 +114,7 @@ public class MongoDBSetup {
             System.out.println("✅ Tạo tài khoản: admin / admin123 (Admin)");
             
             // Tài khoản Player 1
-            Document player1 = new Document()
+            Document player1 = withUserId(new Document())
                 .append("username", "player1")
                 .append("password", "8c6976e5b5410415bde908bd4dee15dfb167a9c873fc4bb8a81f6f2ab448a918")
                 .append("email", "player1@test.com")
@@ -110,7 +129,7 @@ public class MongoDBSetup {
             System.out.println("✅ Tạo tài khoản: player1 / 123456");
             
             // Tài khoản Player 2
-            Document player2 = new Document()
+            Document player2 = withUserId(new Document())
                 .append("username", "player2")
                 .append("password", "8c6976e5b5410415bde908bd4dee15dfb167a9c873fc4bb8a81f6f2ab448a918")
                 .append("email", "player2@test.com")
@@ -163,5 +182,76 @@ public class MongoDBSetup {
             }
         }
     }
+    
+    /**
+     * Gán _id và user_id (= ObjectId.hashCode) cho document user mới
+     */
+    private static Document withUserId(Document doc) {
+        ObjectId objectId = new ObjectId();
+        return doc.append("_id", objectId).append("user_id", objectId.hashCode());
+    }
+    
+    /**
+     * Ghi tên người chơi cho các trận cũ (để đọc lịch sử không phải tra cứu user)
+     */
+    private static void backfillNames() {
+        System.out.println("🔄 BACKFILL player names cho match_history\n");
+        try (MongoClient mongoClient = MongoClients.create(CONNECTION_STRING)) {
+            MongoDatabase database = mongoClient.getDatabase(DB_NAME);
+            int updated = DatabaseManager.backfillPlayerNames(
+                database.getCollection("users"), database.getCollection("match_history"));
+            System.out.println("✅ Đã cập nhật tên cho " + updated + " trận\n");
+        } catch (Exception e) {
+            System.err.println("\n❌ LỖI BACKFILL: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Dựng lại toàn bộ lịch sử theo bucket từ match_history (chạy khi server đang tắt)
+     */
+    private static void buildBuckets() {
+        System.out.println("🔄 BUILD " + HistoryBuckets.COLLECTION + " từ match_history\n");
+        try (MongoClient mongoClient = MongoClients.create(CONNECTION_STRING)) {
+            MongoDatabase database = mongoClient.getDatabase(DB_NAME);
+            HistoryBuckets buckets = new HistoryBuckets(database.getCollection(HistoryBuckets.COLLECTION));
+            long start = System.currentTimeMillis();
+            int created = buckets.rebuild(database.getCollection("match_history"));
+            System.out.println("✅ Đã tạo " + created + " buckets (" + (System.currentTimeMillis() - start) + " ms)\n");
+        } catch (Exception e) {
+            System.err.println("\n❌ LỖI BUILD BUCKETS: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Migrate database đang có (giữ nguyên dữ liệu)
+     */
+    private static void migrate() {
+        System.out.println("🔄 MIGRATE - giữ nguyên dữ liệu hiện có\n");
+        try (MongoClient mongoClient = MongoClients.create(CONNECTION_STRING)) {
+            MongoCollection<Document> usersCollection = mongoClient.getDatabase(DB_NAME).getCollection("users");
+            
+            // Gán user_id cho user cũ trước, sau đó mới tạo unique index
+            int updated = DatabaseManager.backfillUserIds(usersCollection);
+            DatabaseManager.ensureUserIdIndex(usersCollection);
+            System.out.println("✅ user_id: " + updated + " users được cập nhật, index đã sẵn sàng\n");
+            
+            // Compound index thay cho 2 index đơn player1_id/player2_id (là prefix nên thừa)
+            MongoCollection<Document> matchHistoryCollection = mongoClient.getDatabase(DB_NAME).getCollection("match_history");
+            DatabaseManager.ensureHistoryIndexes(matchHistoryCollection);
+            for (String oldIndex : new String[]{"player1_id_1", "player2_id_1"}) {
+                try {
+                    matchHistoryCollection.dropIndex(oldIndex);
+                } catch (Exception e) {
+                    // Index không tồn tại
+                }
+            }
+            System.out.println("✅ match_history: compound indexes đã sẵn sàng\n");
+        } catch (Exception e) {
+            System.err.println("\n❌ LỖI MIGRATE: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 }
 
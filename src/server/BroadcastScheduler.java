@@ -0,0 +1,57 @@
+package server;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gom các yêu cầu broadcast roster: chỉ đánh dấu "dirty", flush tối đa 1 lần mỗi cửa sổ thời gian.
+ * Một loạt sự kiện liên tiếp (ghép trận, đổi trạng thái, login...) chỉ tạo 1 lần gửi.
+ */
+public class BroadcastScheduler {
+    private final ScheduledExecutorService executor;
+    private final long windowMs;
+    private final Runnable flushAction;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // Thống kê
+    private final AtomicLong eventsRequested = new AtomicLong();
+    private final AtomicLong eventsCoalesced = new AtomicLong();
+    private final AtomicLong flushesPerformed = new AtomicLong();
+
+    public BroadcastScheduler(ScheduledExecutorService executor, long windowMs, Runnable flushAction) {
+        this.executor = executor;
+        this.windowMs = windowMs;
+        this.flushAction = flushAction;
+    }
+
+    /**
+     * Báo roster đã thay đổi; flush sẽ chạy sau tối đa windowMs
+     */
+    public void markDirty() {
+        eventsRequested.incrementAndGet();
+        if (flushScheduled.compareAndSet(false, true)) {
+            executor.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+        } else {
+            eventsCoalesced.incrementAndGet(); // Đã có flush đang chờ, gộp chung
+        }
+    }
+
+    private void flush() {
+        // Reset trước khi chạy: sự kiện xảy ra trong lúc flush sẽ lên lịch flush kế tiếp
+        flushScheduled.set(false);
+        flushesPerformed.incrementAndGet();
+        try {
+            flushAction.run();
+        } catch (Exception e) {
+            System.err.println("Lỗi broadcast roster: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    public long getWindowMs() { return windowMs; }
+    public long getEventsRequested() { return eventsRequested.get(); }
+    public long getEventsCoalesced() { return eventsCoalesced.get(); }
+    public long getFlushesPerformed() { return flushesPerformed.get(); }
+}
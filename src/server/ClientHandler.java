@@ -2,58 +2,56 @@ package server;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.bson.types.ObjectId;
 import shared.*;
+import database.DatabaseManager;
+import database.EloRating;
+import database.Leaderboard;
+import database.MatchResult;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.Date;
 import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * Xử lý kết nối từ mỗi client
+ * Xử lý message từ mỗi client (tầng ứng dụng, transport nằm trong Connection)
  */
-public class ClientHandler implements Runnable {
-    private Socket socket;
+public class ClientHandler {
+    private final Connection connection;
     private GameServer server;
-    private PrintWriter out;
-    private BufferedReader in;
     private User user;
     public String status; // "online", "playing"
     public Room currentRoom;
-    private long lastHeartbeat;
+    private volatile long lastHeartbeat; // Transport NIO ghi thẳng từ event loop
+    // Bật sau khi LOGIN_RESPONSE xác nhận capability "binary"; trước đó luôn gửi JSON
+    private volatile boolean binaryFrames = false;
+    // Bật khi client nhận capability "deflate": message >= FrameCompression.MIN_BYTES được nén
+    private volatile boolean compressFrames = false;
+    // Client có BoardGenerator cùng version: GAME_START chỉ gửi seed thay vì danh sách hạt
+    private volatile boolean seededBoards = false;
+    // Client chỉ gửi GRAIN_DROP: điểm luôn do server tính, SCORE_UPDATE và final_score không được tin
+    private volatile boolean serverScored = false;
+    // Lock cho calculateGameResult (có ghi DB + socket, không dùng synchronized để khỏi ghim virtual thread)
+    private final ReentrantLock resultLock = new ReentrantLock();
+    private static final int MAX_RANK_NEIGHBORS = 25; // Giới hạn K của GET_RANK
+    private static final int MAX_HISTORY_PAGE = 100; // Số trận tối đa mỗi trang GET_HISTORY
     
-    public ClientHandler(Socket socket, GameServer server) {
-        this.socket = socket;
+    public ClientHandler(Connection connection, GameServer server) {
+        this.connection = connection;
         this.server = server;
         this.status = "online";
         this.lastHeartbeat = System.currentTimeMillis();
     }
     
-    @Override
-    public void run() {
-        try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-            
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                handleMessage(inputLine);
-            }
-        } catch (IOException e) {
-            System.out.println("❌ Client ngắt kết nối");
-        } finally {
-            handleDisconnect();
-        }
-    }
-    
-    private void handleMessage(String message) {
+    /**
+     * Được transport gọi cho mỗi message nhận được (tuần tự theo từng connection);
+     * frame nhị phân đã được WireDecoder đổi về JSON
+     */
+    void handleMessage(String message) {
         try {
             JSONObject packet = new JSONObject(message);
             String type = packet.getString("type");
@@ -95,6 +93,9 @@ public class ClientHandler implements Runnable {
                 case Protocol.SCORE_UPDATE:
                     handleScoreUpdate(packet);
                     break;
+                case Protocol.GRAIN_DROP:
+                    handleGrainDrop(packet);
+                    break;
                 // FINISH không còn được sử dụng - game chỉ kết thúc bằng TIMEOUT
                 case Protocol.MAX_SCORE:
                     handleMaxScore(packet);
@@ -108,8 +109,11 @@ public class ClientHandler implements Runnable {
                 case Protocol.GET_LEADERBOARD:
                     handleGetLeaderboard();
                     break;
+                case Protocol.GET_RANK:
+                    handleGetRank(packet);
+                    break;
                 case Protocol.GET_HISTORY:
-                    handleGetHistory();
+                    handleGetHistory(packet);
                     break;
                 case Protocol.GET_PROFILE:
                     handleGetProfile();
@@ -196,6 +200,12 @@ public class ClientHandler implements Runnable {
         JSONObject response = new JSONObject();
         response.put("type", Protocol.REGISTER_RESPONSE);
         if (success) {
+            // Thêm user mới vào presence roster để người khác thấy ngay
+            User newUser = server.getDbManager().getUserByUsername(username);
+            if (newUser != null) {
+                server.updateUserCache(newUser);
+            }
+            
             response.put("status", "success");
             response.put("message", "Đăng ký thành công! Vui lòng đăng nhập.");
         } else {
@@ -207,6 +217,10 @@ public class ClientHandler implements Runnable {
     }
     
     private void handleLogin(JSONObject packet) {
+        if (packet.has("handoff_token")) {
+            handleHandoffLogin(packet);
+            return;
+        }
         String username = packet.getString("username");
         String hashedPassword = packet.getString("password"); // BUG FIX #2: Client đã hash rồi
         
@@ -230,24 +244,67 @@ public class ClientHandler implements Runnable {
         
         // BUG FIX #2: Không hash lần 2! Password từ client đã được hash bằng SHA-256
         User user = server.getDbManager().loginUser(username, hashedPassword);
-        
+        completeLogin(packet, user, false);
+    }
+    
+    /**
+     * Đăng nhập lại sau REDIRECT từ shard khác: token HMAC thay cho password
+     */
+    private void handleHandoffLogin(JSONObject packet) {
+        Integer userId = server.getShardRouter().claimHandoff(packet.getString("handoff_token"));
+        User user = null;
+        if (userId != null) {
+            DatabaseManager db = server.getDbManager();
+            User cached = db.getUserById(String.valueOf(userId));
+            // Đọc lại DB: trận đấu ở shard khác chưa có trong cache của shard này
+            User fresh = cached != null ? db.getUserByUsername(cached.getUsername()) : null;
+            user = fresh != null && fresh.getUserId() == userId ? fresh : cached;
+            if (user != null) {
+                db.updateUserCache(user);
+            }
+        }
+        if (user == null) {
+            JSONObject response = new JSONObject();
+            response.put("type", Protocol.LOGIN_RESPONSE);
+            response.put("status", "error");
+            response.put("error_code", Protocol.ERR_SESSION_EXPIRED);
+            response.put("message", "Phiên chuyển server không hợp lệ hoặc đã hết hạn, vui lòng đăng nhập lại");
+            sendMessage(response.toString());
+            return;
+        }
+        completeLogin(packet, user, true);
+    }
+    
+    /**
+     * @param handoff đến từ REDIRECT: shard cũ có thể chưa kịp báo offline nên chỉ kiểm tra trùng ở shard này
+     */
+    private void completeLogin(JSONObject packet, User user, boolean handoff) {
         JSONObject response = new JSONObject();
         response.put("type", Protocol.LOGIN_RESPONSE);
+        boolean acceptBinary = false;
+        boolean acceptDeflate = false;
         
         if (user != null) {
             // Kiểm tra xem user đã đăng nhập chưa
-            if (server.isUserOnline(String.valueOf(user.getUserId()))) {
+            String userId = String.valueOf(user.getUserId());
+            boolean duplicate = handoff ? server.getClientHandler(userId) != null : server.isUserOnline(userId);
+            if (!duplicate) {
+                this.user = user;
+                this.status = "online";
+                // putIfAbsent: 2 login cùng tài khoản đến cùng lúc đều qua được check trên, chỉ 1 cái được đăng ký
+                duplicate = !server.addOnlineClient(userId, this);
+                if (duplicate) {
+                    this.user = null;
+                }
+            }
+            if (duplicate) {
                 // TỪ CHỐI đăng nhập mới
                 response.put("status", "error");
                 response.put("error_code", Protocol.ERR_ALREADY_LOGGED_IN);
                 response.put("message", "Tài khoản này đã đăng nhập ở nơi khác!\nVui lòng đăng xuất hoặc chờ session cũ hết hạn.");
-                System.out.println("⚠️ TỪ CHỐI đăng nhập: User " + username + " đã online!");
+                System.out.println("⚠️ TỪ CHỐI đăng nhập: User " + user.getUsername() + " đã online!");
             } else {
                 // Đăng nhập session mới
-                this.user = user;
-                this.status = "online";
-                server.addOnlineClient(String.valueOf(user.getUserId()), this);
-                
                 response.put("status", "success");
                 JSONObject userObj = new JSONObject();
                 userObj.put("user_id", user.getUserId());
@@ -257,19 +314,37 @@ public class ClientHandler implements Runnable {
                 userObj.put("total_losses", user.getTotalLosses());
                 userObj.put("total_draws", user.getTotalDraws());
                 userObj.put("win_rate", user.getWinRate());
+                userObj.put("rating", user.getRating());
                 response.put("user", userObj);
                 
-                System.out.println("✅ User đăng nhập: " + username);
-                
-                // Gửi danh sách online sau khi đăng nhập thành công
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(100); // Delay 100ms để client sẵn sàng
-                        server.broadcastAllUsers();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                // Thỏa thuận framing: client cũ không gửi capabilities -> giữ JSON
+                JSONArray capabilities = packet.optJSONArray("capabilities");
+                JSONArray accepted = new JSONArray();
+                if (capabilities != null) {
+                    for (int i = 0; i < capabilities.length(); i++) {
+                        String capability = capabilities.optString(i);
+                        if (Protocol.CAP_BINARY.equals(capability) && !acceptBinary) {
+                            accepted.put(Protocol.CAP_BINARY);
+                            acceptBinary = true;
+                        } else if (Protocol.CAP_DEFLATE.equals(capability) && !acceptDeflate) {
+                            accepted.put(Protocol.CAP_DEFLATE);
+                            acceptDeflate = true;
+                        } else if (Protocol.CAP_BOARD_SEED.equals(capability) && !seededBoards) {
+                            accepted.put(Protocol.CAP_BOARD_SEED);
+                            seededBoards = true; // Không đổi framing, bật ngay được
+                        } else if (Protocol.CAP_SERVER_SCORE.equals(capability) && !serverScored) {
+                            accepted.put(Protocol.CAP_SERVER_SCORE);
+                            serverScored = true;
+                        }
                     }
-                }).start();
+                }
+                response.put("capabilities", accepted);
+                
+                System.out.println("✅ User đăng nhập: " + user.getUsername() + (handoff ? " (chuyển từ shard khác)" : ""));
+                
+                // Gửi snapshot danh sách người chơi sau khi đăng nhập thành công
+                // (người khác đã nhận delta trong addOnlineClient)
+                server.schedule(() -> server.sendPresenceSnapshot(this), 100); // Delay 100ms để client sẵn sàng
             }
         } else {
             response.put("status", "error");
@@ -277,11 +352,14 @@ public class ClientHandler implements Runnable {
             response.put("message", "Sai username hoặc password");
         }
         sendMessage(response.toString());
+        // LOGIN_RESPONSE luôn là JSON, frame nhị phân / nén chỉ bắt đầu sau nó
+        binaryFrames = acceptBinary;
+        compressFrames = acceptDeflate;
     }
     
     private void handleLogout() {
         if (user != null) {
-            server.removeOnlineClient(String.valueOf(user.getUserId()));
+            server.removeOnlineClient(String.valueOf(user.getUserId()), this);
             System.out.println("👋 User đăng xuất: " + user.getUsername());
         }
     }
@@ -329,6 +407,10 @@ public class ClientHandler implements Runnable {
             return;
         }
         
+        if (redirectToRoomShard(roomId, packet)) {
+            return;
+        }
+        
         Room room = server.getRoom(roomId);
         
         if (room == null) {
@@ -360,7 +442,10 @@ public class ClientHandler implements Runnable {
             return;
         }
         
-        room.addGuest(this);
+        if (!room.tryAddGuest(this)) {
+            sendError(Protocol.ERR_ROOM_FULL, "Phòng đã đầy"); // Người khác vừa vào trước
+            return;
+        }
         currentRoom = room;
         status = "waiting"; // Đang trong phòng chờ, chưa chơi
         
@@ -383,6 +468,20 @@ public class ClientHandler implements Runnable {
         System.out.println("👥 " + user.getUsername() + " tham gia phòng " + roomId);
     }
     
+    /**
+     * Phòng thuộc shard khác: gửi REDIRECT để client chuyển sang shard đó rồi gửi lại packet
+     * @return true nếu đã redirect
+     */
+    private boolean redirectToRoomShard(String roomId, JSONObject packet) {
+        ShardRouter router = server.getShardRouter();
+        if (router.isLocal(roomId)) {
+            return false;
+        }
+        sendMessage(router.redirect(roomId, user.getUserId(), packet).toString());
+        System.out.println("🔀 " + user.getUsername() + " -> shard " + router.ownerOf(roomId) + " (phòng " + roomId + ")");
+        return true;
+    }
+    
     private void handleLeaveRoom() {
         // BUG FIX #32: Validate authentication
         if (user == null) return;
@@ -479,7 +578,8 @@ public class ClientHandler implements Runnable {
         
         ClientHandler target = server.getClientHandler(String.valueOf(toUserId));
         if (target == null || target.getUser() == null) {
-            sendError(Protocol.ERR_CONNECTION_LOST, "Người chơi không online");
+            // Có thể đang online ở shard khác
+            inviteRemote(toUserId, roomId);
             return;
         }
         
@@ -502,16 +602,49 @@ public class ClientHandler implements Runnable {
         System.out.println("🔍 DEBUG: User object details - ID: " + user.getUserId() + ", Username: " + user.getUsername());
         
         // Gửi lời mời
+        JSONObject invitation = buildInvitation(roomId);
+        target.sendMessage(invitation.toString());
+        
+        System.out.println("📨 Lời mời: " + user.getUsername() + " (ID: " + user.getUserId() + ") -> " + target.getUser().getUsername());
+        System.out.println("🔍 DEBUG: Invitation packet: " + invitation.toString());
+    }
+    
+    private JSONObject buildInvitation(String roomId) {
         JSONObject invitation = new JSONObject();
         invitation.put("type", Protocol.INVITATION);
         invitation.put("from_user", user.getUsername());
         invitation.put("from_user_id", user.getUserId());
         invitation.put("room_id", roomId);
         invitation.put("expires_in", 30);
-        target.sendMessage(invitation.toString());
+        return invitation;
+    }
+    
+    /**
+     * Mời người chơi đang ở shard khác: kiểm tra theo presence của shard đó, lời mời vẫn lưu ở shard giữ phòng
+     */
+    private void inviteRemote(int toUserId, String roomId) {
+        JSONObject remote = server.getShardRouter().getRemoteUser(toUserId);
+        if (remote == null) {
+            sendError(Protocol.ERR_CONNECTION_LOST, "Người chơi không online");
+            return;
+        }
+        String targetStatus = remote.getString("status");
+        if ("playing".equals(targetStatus)) {
+            sendError(Protocol.ERR_INVALID_PACKET, "Người chơi đang trong trận, không thể mời!");
+            return;
+        }
+        if ("waiting".equals(targetStatus) && remote.has("room_info")) {
+            sendError(Protocol.ERR_INVALID_PACKET, "Người chơi đang trong phòng khác, không thể mời!");
+            return;
+        }
         
-        System.out.println("📨 Lời mời: " + user.getUsername() + " (ID: " + user.getUserId() + ") -> " + target.getUser().getUsername());
-        System.out.println("🔍 DEBUG: Invitation packet: " + invitation.toString());
+        server.addInvitation(String.valueOf(user.getUserId()), String.valueOf(toUserId), roomId);
+        if (!server.getShardRouter().deliver(toUserId, buildInvitation(roomId).toString())) {
+            server.removeInvitation(String.valueOf(user.getUserId()), String.valueOf(toUserId), roomId);
+            sendError(Protocol.ERR_CONNECTION_LOST, "Người chơi không online");
+            return;
+        }
+        System.out.println("📨 Lời mời (qua shard khác): " + user.getUsername() + " -> " + remote.getString("username"));
     }
     
     private void handleInviteResponse(JSONObject packet) {
@@ -525,6 +658,18 @@ public class ClientHandler implements Runnable {
         String roomId = packet.getString("room_id");
         int fromUserId = packet.getInt("from_user_id");
         
+        // Phòng ở shard khác: chấp nhận thì chuyển sang shard đó (lời mời được kiểm tra ở đó), từ chối thì báo qua link
+        if (!server.getShardRouter().isLocal(roomId)) {
+            if (!accept) {
+                server.getShardRouter().forwardInviteDeclined(roomId, fromUserId, user.getUserId(), user.getUsername());
+            } else if (currentRoom != null) {
+                sendError(Protocol.ERR_INVALID_PACKET, "Bạn đã ở trong một phòng rồi! Vui lòng rời phòng trước.");
+            } else {
+                redirectToRoomShard(roomId, packet);
+            }
+            return;
+        }
+        
         ClientHandler sender = server.getClientHandler(String.valueOf(fromUserId));
         
         if (accept) {
@@ -605,17 +750,13 @@ public class ClientHandler implements Runnable {
         boolean ready = packet.getBoolean("ready");
         currentRoom.setGuestReady(ready);
         
-        // Broadcast trạng thái ready
-        JSONObject notification = new JSONObject();
-        notification.put("type", Protocol.PLAYER_READY);
-        notification.put("username", user.getUsername());
-        notification.put("ready", ready);
-        
+        // Broadcast trạng thái ready (encode 1 lần cho cả 2 người)
+        byte[] notification = MessageTemplates.playerReady(user.getUsername(), ready);
         if (currentRoom.getHost() != null) {
-            currentRoom.getHost().sendMessage(notification.toString());
+            currentRoom.getHost().sendEncoded(notification);
         }
         if (currentRoom.getGuest() != null) {
-            currentRoom.getGuest().sendMessage(notification.toString());
+            currentRoom.getGuest().sendEncoded(notification);
         }
     }
     
@@ -642,28 +783,11 @@ public class ClientHandler implements Runnable {
         int riceCount = 25 + rand.nextInt(26);   // 25-50 hạt gạo
         int paddyCount = totalGrains - riceCount; // Phần còn lại là thóc
         
-        List<Grain> grains = currentRoom.generateGrains(riceCount, paddyCount);
+        currentRoom.generateGrains(riceCount, paddyCount);
         currentRoom.setTotalGrains(totalGrains); // Lưu tổng số hạt vào room
         currentRoom.setStatus("playing");
         currentRoom.setGameStartTime(System.currentTimeMillis());
         
-        // Gửi dữ liệu cho cả 2 người
-        JSONObject gameStart = new JSONObject();
-        gameStart.put("type", Protocol.GAME_START);
-        
-        JSONArray grainsArray = new JSONArray();
-        for (Grain grain : grains) {
-            JSONObject grainObj = new JSONObject();
-            grainObj.put("id", grain.getId());
-            grainObj.put("type", grain.getType());
-            grainObj.put("x", grain.getX());
-            grainObj.put("y", grain.getY());
-            grainsArray.put(grainObj);
-        }
-        gameStart.put("grains", grainsArray);
-        gameStart.put("duration", 300); // 5 phút
-        gameStart.put("total_grains", totalGrains); // Tổng số hạt để client biết max score
-        
         // BUG FIX #20: Validate BOTH players exist before accessing
         // Race condition: Player có thể disconnect NGAY TRƯỚC khi game start
         ClientHandler host = currentRoom.getHost();
@@ -712,50 +836,109 @@ public class ClientHandler implements Runnable {
         host.status = "playing";
         guest.status = "playing";
         
-        JSONObject hostGameStart = new JSONObject(gameStart.toString());
-        hostGameStart.put("opponent_username", guest.getUser().getUsername());
-        host.sendMessage(hostGameStart.toString());
-        
-        JSONObject guestGameStart = new JSONObject(gameStart.toString());
-        guestGameStart.put("opponent_username", host.getUser().getUsername());
-        guest.sendMessage(guestGameStart.toString());
+        // Gửi dữ liệu cho cả 2 người (5 phút, total_grains để client biết max score)
+        host.sendGameStart(currentRoom, 300, guest.getUser().getUsername());
+        guest.sendGameStart(currentRoom, 300, host.getUser().getUsername());
         
-        System.out.println("🎮 Trận đấu bắt đầu: " + currentRoom.getRoomId());
+        System.out.println("🎮 Trận đấu bắt đầu: " + currentRoom.getRoomId() + " (seed " + currentRoom.getBoardSeed() + ")");
         
         // Cập nhật danh sách online users để hiển thị đúng trạng thái
         server.broadcastAllUsers();
     }
     
+    private void handleScoreUpdate(JSONObject packet) {
+        onScoreUpdate(packet.getInt("new_score"));
+    }
+    
     /**
-     * ISSUE #3: Thêm validation cho score để chống hack
+     * ISSUE #3: Thêm validation cho score để chống hack.
+     * Đường nóng (mỗi hạt rơi 1 lần): không tạo JSONObject, không log
      */
-    private void handleScoreUpdate(JSONObject packet) {
+    void onScoreUpdate(int newScore) {
         // BUG FIX #32: Validate authentication
         if (user == null) return;
         
-        if (currentRoom == null) return;
-        
-        int newScore = packet.getInt("new_score");
+        Room room = currentRoom;
+        if (room == null) return;
+        if (serverScored) {
+            sendError(Protocol.ERR_INVALID_PACKET, "Điểm do server tính, không nhận SCORE_UPDATE!");
+            return;
+        }
+        if (room.isAuthoritative(this)) return; // Đã chuyển sang GRAIN_DROP, điểm do server tính
         
         // ISSUE #3: Validate score trong range hợp lệ (0-totalGrains)
-        int maxScore = currentRoom.getTotalGrains();
+        int maxScore = room.getTotalGrains();
         if (newScore < 0 || newScore > maxScore) {
             System.out.println("⚠️ HACK ATTEMPT: " + user.getUsername() + " sent invalid score: " + newScore + " (max: " + maxScore + ")");
             sendError(Protocol.ERR_INVALID_PACKET, "Điểm không hợp lệ!");
             return;
         }
         
-        System.out.println("🎯 " + user.getUsername() + " gửi SCORE_UPDATE: " + newScore);
-        currentRoom.updateScore(this, newScore);
+        room.updateScore(this, newScore);
         
         // Gửi điểm cho đối thủ
-        ClientHandler opponent = currentRoom.getOpponent(this);
+        ClientHandler opponent = room.getOpponent(this);
+        if (opponent != null && opponent.getUser() != null) {
+            opponent.sendOpponentScore(newScore);
+        }
+    }
+    
+    private void handleGrainDrop(JSONObject packet) {
+        String basket = packet.getString("basket");
+        if (!"rice".equals(basket) && !"paddy".equals(basket)) {
+            sendError(Protocol.ERR_INVALID_PACKET, "Giỏ không hợp lệ!");
+            return;
+        }
+        onGrainDrop(packet.getInt("grain_id"), "rice".equals(basket));
+    }
+    
+    /**
+     * Server tự kiểm tra hạt (còn trên bàn, đúng giỏ) bằng bitset của Room và tự cộng điểm.
+     * Đường nóng như onScoreUpdate: không tạo JSONObject, không log khi hợp lệ
+     */
+    void onGrainDrop(int grainId, boolean riceBasket) {
+        if (user == null) return;
+        
+        Room room = currentRoom;
+        if (room == null || !room.isGameStarted()) return;
+        
+        int newScore = room.applyDrop(this, grainId, riceBasket);
+        if (newScore < 0) {
+            System.out.println("⚠️ HACK ATTEMPT: " + user.getUsername() + " sent invalid grain drop: " + grainId);
+            sendError(Protocol.ERR_INVALID_GRAIN, "Hạt không hợp lệ!");
+            return;
+        }
+        
+        ClientHandler opponent = room.getOpponent(this);
         if (opponent != null && opponent.getUser() != null) {
-            JSONObject scoreUpdate = new JSONObject();
-            scoreUpdate.put("type", Protocol.OPPONENT_SCORE);
-            scoreUpdate.put("opponent_score", newScore);
-            System.out.println("📤 Gửi điểm " + newScore + " của " + user.getUsername() + " cho " + opponent.getUser().getUsername());
-            opponent.sendMessage(scoreUpdate.toString());
+            opponent.sendOpponentScore(newScore);
+        }
+    }
+    
+    /**
+     * Client đã thỏa thuận "server_score" lúc LOGIN (Room đặt authoritative ngay từ GAME_START)
+     */
+    boolean isServerScored() {
+        return serverScored;
+    }
+    
+    /**
+     * Điểm của player trong phòng này do server tính (không tin điểm client gửi lên)
+     */
+    private boolean isServerScored(Room room) {
+        return serverScored || room.isAuthoritative(this);
+    }
+    
+    /**
+     * Message nóng đã được transport decode sẵn vào struct dùng lại (không qua org.json)
+     */
+    void handleHot(HotMessage message) {
+        if (message.kind == HotMessage.HEARTBEAT) {
+            handleHeartbeat();
+        } else if (message.kind == HotMessage.SCORE_UPDATE) {
+            onScoreUpdate(message.newScore);
+        } else if (message.kind == HotMessage.GRAIN_DROP) {
+            onGrainDrop(message.grainId, message.riceBasket);
         }
     }
     
@@ -777,7 +960,9 @@ public class ClientHandler implements Runnable {
             return;
         }
         
-        int finalScore = packet.getInt("final_score");
+        // Client dùng GRAIN_DROP: điểm do server tính, final_score của client bị bỏ qua
+        int finalScore = isServerScored(currentRoom)
+                ? currentRoom.getPlayerScore(this) : packet.getInt("final_score");
         
         // ISSUE #3: Validate final score
         int maxScore = currentRoom.getTotalGrains();
@@ -831,7 +1016,9 @@ public class ClientHandler implements Runnable {
         System.out.println("⏳ Player " + user.getUsername() + " timeout. Current status - Host finished: " + 
             currentRoom.isHostFinished() + ", Guest finished: " + currentRoom.isGuestFinished());
         
-        int finalScore = packet.getInt("final_score");
+        // Client dùng GRAIN_DROP: điểm do server tính, final_score của client bị bỏ qua
+        int finalScore = isServerScored(currentRoom)
+                ? currentRoom.getPlayerScore(this) : packet.getInt("final_score");
         boolean isQuit = packet.optBoolean("is_quit", false); // Kiểm tra có phải thoát không
         
         // ISSUE #3: Validate final score
@@ -871,7 +1058,16 @@ public class ClientHandler implements Runnable {
         calculateGameResult();
     }
     
-    private synchronized void calculateGameResult() {
+    private void calculateGameResult() {
+        resultLock.lock();
+        try {
+            calculateGameResultLocked();
+        } finally {
+            resultLock.unlock();
+        }
+    }
+    
+    private void calculateGameResultLocked() {
         System.out.println("🏆 calculateGameResult() called by " + (user != null ? user.getUsername() : "unknown"));
         
         if (currentRoom == null) {
@@ -973,15 +1169,6 @@ public class ClientHandler implements Runnable {
         // Tính thời gian (BUG FIX #5: Dùng room thay vì currentRoom để tránh NPE)
         int duration = (int) ((System.currentTimeMillis() - room.getGameStartTime()) / 1000);
         
-        // Lưu vào database (BUG FIX #3: Truyền thêm player names để tránh N+1 query)
-        server.getDbManager().saveMatch(
-            String.valueOf(host.getUser().getUserId()),
-            String.valueOf(guest.getUser().getUserId()),
-            hostScore, guestScore, winnerId, duration,
-            host.getUser().getUsername(),  // ✅ Player 1 name
-            guest.getUser().getUsername()  // ✅ Player 2 name
-        );
-        
         // Cập nhật điểm - tính điểm được cộng thêm dựa trên kết quả
         int hostPointsToAdd = hostScore; // Điểm được cộng thêm cho host
         int guestPointsToAdd = guestScore; // Điểm được cộng thêm cho guest
@@ -1007,8 +1194,34 @@ public class ClientHandler implements Runnable {
             System.out.println("🔍 GUEST LOSE: " + guestScore + " -> " + guestPointsToAdd + " (50% with rounding up)");
         }
         
-        server.getDbManager().updateUserScore(String.valueOf(host.getUser().getUserId()), hostPointsToAdd, hostResult);
-        server.getDbManager().updateUserScore(String.valueOf(guest.getUser().getUserId()), guestPointsToAdd, guestResult);
+        String hostId = String.valueOf(host.getUser().getUserId());
+        String guestId = String.valueOf(guest.getUser().getUserId());
+        
+        // Rating Elo trước trận (lấy từ cache)
+        int hostRating = server.getRating(host);
+        int guestRating = server.getRating(guest);
+        int hostRatingDelta = EloRating.delta(hostRating, guestRating, hostResult);
+        int guestRatingDelta = -hostRatingDelta;
+        System.out.println("📈 Rating: " + host.getUser().getUsername() + " " + hostRating + " -> " + (hostRating + hostRatingDelta)
+                + ", " + guest.getUser().getUsername() + " " + guestRating + " -> " + (guestRating + guestRatingDelta));
+        
+        // Ghi DB chạy nền (match_history + điểm user theo lô), không chặn GAME_END
+        // BUG FIX #3: Truyền thêm player names để tránh N+1 query
+        server.getDbManager().submitMatchResult(new MatchResult(
+            hostId, guestId,
+            host.getUser().getUsername(),  // ✅ Player 1 name
+            guest.getUser().getUsername(), // ✅ Player 2 name
+            hostScore, guestScore, winnerId, duration,
+            hostPointsToAdd, hostResult, guestPointsToAdd, guestResult,
+            hostRatingDelta, guestRatingDelta,
+            room.getBoardSeed(), BoardGenerator.VERSION, room.getRiceCount(), room.getPaddyCount()
+        ));
+        
+        // Cập nhật trước cache để GAME_END và roster có ngay điểm mới
+        User updatedHost = server.getDbManager().applyScoreToCache(hostId, hostPointsToAdd, hostResult, hostRatingDelta);
+        User updatedGuest = server.getDbManager().applyScoreToCache(guestId, guestPointsToAdd, guestResult, guestRatingDelta);
+        server.refreshUserStats(updatedHost);
+        server.refreshUserStats(updatedGuest);
         
         // Gửi kết quả
         // Gửi kết quả cho cả 2 player (nếu còn kết nối)
@@ -1053,10 +1266,11 @@ public class ClientHandler implements Runnable {
         gameEnd.put("my_score", myScore);
         gameEnd.put("opponent_score", opponentScore);
         
-        // Reload user data
+        // Điểm mới lấy từ cache (đã cập nhật trước khi ghi DB xong)
         User updatedUser = server.getDbManager().getUserById(String.valueOf(player.getUser().getUserId()));
         if (updatedUser != null) {
             gameEnd.put("new_total_score", updatedUser.getTotalScore());
+            gameEnd.put("new_rating", updatedUser.getRating());
         } else {
             // Fallback nếu không load được user
             gameEnd.put("new_total_score", player.getUser().getTotalScore() + myScore);
@@ -1108,40 +1322,99 @@ public class ClientHandler implements Runnable {
     // ==================== LEADERBOARD & HISTORY ====================
     
     private void handleGetLeaderboard() {
-        List<User> leaderboard = server.getDbManager().getLeaderboard(100);
+        if (compressFrames) {
+            sendEncoded(server.getLeaderboardDeflated()); // Nén 1 lần cho mọi client, tới khi leaderboard đổi
+        } else {
+            sendMessage(server.getLeaderboardPayload());
+        }
+    }
+    
+    /**
+     * Hạng, percentile và K người xếp trên/dưới (từ leaderboard trong bộ nhớ)
+     */
+    private void handleGetRank(JSONObject packet) {
+        if (user == null) {
+            sendError(Protocol.ERR_SESSION_EXPIRED, "Vui lòng đăng nhập trước!");
+            return;
+        }
+        
+        int k = Math.max(0, Math.min(MAX_RANK_NEIGHBORS, packet.optInt("k", 5)));
+        Leaderboard.RankView view = server.getDbManager().getLeaderboardIndex().around(user.getUserId(), k);
         
         JSONObject response = new JSONObject();
-        response.put("type", Protocol.LEADERBOARD_DATA);
+        response.put("type", Protocol.RANK_DATA);
+        if (view == null) {
+            response.put("rank", 0);
+            response.put("total_players", server.getDbManager().getLeaderboardIndex().size());
+            response.put("percentile", 0.0);
+            response.put("entries", new JSONArray());
+            sendMessage(response.toString());
+            return;
+        }
+        
+        response.put("rank", view.getRank());
+        response.put("total_players", view.getTotal());
+        response.put("percentile", Math.round(view.getPercentile() * 10) / 10.0);
         
-        JSONArray rankings = new JSONArray();
-        for (User u : leaderboard) {
-            JSONObject userObj = new JSONObject();
-            userObj.put("username", u.getUsername());
-            userObj.put("total_score", u.getTotalScore());
-            userObj.put("total_wins", u.getTotalWins());
-            userObj.put("total_losses", u.getTotalLosses());
-            userObj.put("total_draws", u.getTotalDraws());
-            userObj.put("win_rate", u.getWinRate());
-            rankings.put(userObj);
+        JSONArray entries = new JSONArray();
+        int rank = view.getFirstRank();
+        for (User u : view.getEntries()) {
+            JSONObject entry = new JSONObject();
+            entry.put("rank", rank++);
+            entry.put("user_id", u.getUserId());
+            entry.put("username", u.getUsername());
+            entry.put("total_score", u.getTotalScore());
+            entry.put("total_wins", u.getTotalWins());
+            entry.put("is_me", u.getUserId() == user.getUserId());
+            entries.put(entry);
         }
-        response.put("rankings", rankings);
+        response.put("entries", entries);
         
         sendMessage(response.toString());
     }
     
-    private void handleGetHistory() {
+    /**
+     * Lịch sử đấu, phân trang theo cursor: client gửi lại next_cursor (before_ts + before_id) để lấy trang tiếp
+     */
+    private void handleGetHistory(JSONObject packet) {
         // BUG FIX #32: Validate authentication
         if (user == null) {
             sendError(Protocol.ERR_SESSION_EXPIRED, "Vui lòng đăng nhập trước!");
             return;
         }
         
+        int limit = Math.max(1, Math.min(MAX_HISTORY_PAGE, packet.optInt("limit", DatabaseManager.RECENT_HISTORY_SIZE)));
+        Date beforeTs = null;
+        ObjectId beforeId = null;
+        if (packet.has("before_ts") && packet.has("before_id")) {
+            try {
+                beforeTs = new Date(packet.getLong("before_ts"));
+                beforeId = new ObjectId(packet.getString("before_id"));
+            } catch (Exception e) {
+                sendError(Protocol.ERR_INVALID_PACKET, "Cursor không hợp lệ");
+                return;
+            }
+        }
+        
+        // Lấy dư 1 trận để biết còn trang sau hay không
         List<Match> history = server.getDbManager().getUserMatchHistory(
-            String.valueOf(user.getUserId()), 50
+            String.valueOf(user.getUserId()), limit + 1, beforeTs, beforeId
         );
+        boolean hasMore = history.size() > limit;
+        if (hasMore) {
+            history = history.subList(0, limit);
+        }
         
         JSONObject response = new JSONObject();
         response.put("type", Protocol.HISTORY_DATA);
+        response.put("has_more", hasMore);
+        if (hasMore) {
+            Match last = history.get(history.size() - 1);
+            JSONObject nextCursor = new JSONObject();
+            nextCursor.put("before_ts", last.getCreatedAt().getTime());
+            nextCursor.put("before_id", last.getHistoryId());
+            response.put("next_cursor", nextCursor);
+        }
         
         JSONArray matches = new JSONArray();
         for (Match match : history) {
@@ -1303,48 +1576,8 @@ public class ClientHandler implements Runnable {
     }
     
     private void handleGetOnlineUsers() {
-        // Gửi danh sách người chơi online hiện tại cho client này
-        JSONObject response = new JSONObject();
-        response.put("type", Protocol.ONLINE_USERS_UPDATE);
-        
-        List<JSONObject> usersList = new ArrayList<>();
-        for (Map.Entry<String, ClientHandler> entry : server.getOnlineClients().entrySet()) {
-            ClientHandler handler = entry.getValue();
-            User user = handler.getUser();
-            if (user != null) {
-                // Reload user data từ database để có điểm mới nhất
-                User updatedUser = server.getDbManager().getUserById(String.valueOf(user.getUserId()));
-                int currentScore = (updatedUser != null) ? updatedUser.getTotalScore() : user.getTotalScore();
-                
-                JSONObject userObj = new JSONObject();
-                userObj.put("user_id", user.getUserId());
-                userObj.put("username", user.getUsername());
-                userObj.put("total_score", currentScore);
-                userObj.put("status", handler.getStatus());
-                
-                // Thêm thông tin phòng nếu đang trong phòng (waiting hoặc playing)
-                if (("waiting".equals(handler.getStatus()) || "playing".equals(handler.getStatus())) && handler.currentRoom != null) {
-                    Room room = handler.currentRoom;
-                    JSONObject roomInfo = new JSONObject();
-                    roomInfo.put("room_id", room.getRoomId());
-                    roomInfo.put("players_count", room.getGuest() != null ? 2 : 1);
-                    roomInfo.put("max_players", 2);
-                    roomInfo.put("can_join", !server.isRoomInCooldown(room.getRoomId()));
-                    userObj.put("room_info", roomInfo);
-                    
-                    // Debug log
-                    System.out.println("🏠 Sending room_info for " + user.getUsername() + 
-                                     " (status: " + handler.getStatus() + 
-                                     ", room: " + room.getRoomId() + 
-                                     ", players: " + (room.getGuest() != null ? 2 : 1) + "/2)");
-                }
-                
-                usersList.add(userObj);
-            }
-        }
-        response.put("users", usersList);
-        
-        sendMessage(response.toString());
+        // Cùng snapshot (có seq) với GET_ALL_USERS: lấy từ presence roster, không đọc DB từng user
+        server.sendPresenceSnapshot(this);
     }
     
     private void handleRequestJoinRoom(JSONObject packet) {
@@ -1357,6 +1590,15 @@ public class ClientHandler implements Runnable {
         String roomId = packet.getString("room_id");
         System.out.println("🔍 DEBUG: Request join room " + roomId + " from " + user.getUsername());
         
+        if (!server.getShardRouter().isLocal(roomId)) {
+            if (currentRoom != null) {
+                sendError(Protocol.ERR_INVALID_PACKET, "Bạn đã ở trong một phòng rồi! Vui lòng rời phòng trước.");
+            } else {
+                redirectToRoomShard(roomId, packet);
+            }
+            return;
+        }
+        
         Room room = server.getRoom(roomId);
         
         if (room == null) {
@@ -1459,17 +1701,18 @@ public class ClientHandler implements Runnable {
         // Cập nhật status thành waiting
         this.status = "waiting";
         
-        // Thêm vào hàng đợi tìm trận
-        server.addToMatchmakingQueue(this);
-        
-        // Broadcast cập nhật danh sách người chơi
-        server.broadcastAllUsers();
-        
+        // Báo "đang tìm" trước: có đối thủ chờ sẵn thì GAME_START được gửi ngay trong lúc vào hàng
         JSONObject response = new JSONObject();
         response.put("type", Protocol.MATCH_FOUND);
         response.put("status", "searching");
         response.put("message", "Đang tìm đối thủ...");
         sendMessage(response.toString());
+        
+        // Thêm vào hàng đợi tìm trận
+        server.addToMatchmakingQueue(this);
+        
+        // Broadcast cập nhật danh sách người chơi
+        server.broadcastAllUsers();
     }
     
     private void handleCancelFindMatch() {
@@ -1502,50 +1745,8 @@ public class ClientHandler implements Runnable {
             return;
         }
         
-        List<User> allUsers = server.getAllUsers();
-        
-        JSONObject response = new JSONObject();
-        response.put("type", Protocol.ONLINE_USERS_UPDATE);
-        
-        List<JSONObject> usersList = new ArrayList<>();
-        for (User dbUser : allUsers) {
-            JSONObject userObj = new JSONObject();
-            userObj.put("user_id", dbUser.getUserId());
-            userObj.put("username", dbUser.getUsername());
-            userObj.put("total_score", dbUser.getTotalScore());
-            
-            // Kiểm tra trạng thái online
-            ClientHandler onlineHandler = server.getClientHandler(String.valueOf(dbUser.getUserId()));
-            if (onlineHandler != null) {
-                userObj.put("status", onlineHandler.getStatus());
-                
-                // Debug log
-                System.out.println("🔍 DEBUG: User " + dbUser.getUsername() + " status: " + onlineHandler.getStatus() + 
-                                 ", currentRoom: " + (onlineHandler.currentRoom != null ? onlineHandler.currentRoom.getRoomId() : "null"));
-                
-                // Thêm thông tin phòng nếu đang trong phòng
-                if (("waiting".equals(onlineHandler.getStatus()) || "playing".equals(onlineHandler.getStatus())) && onlineHandler.currentRoom != null) {
-                    Room room = onlineHandler.currentRoom;
-                    JSONObject roomInfo = new JSONObject();
-                    roomInfo.put("room_id", room.getRoomId());
-                    roomInfo.put("players_count", room.getGuest() != null ? 2 : 1);
-                    roomInfo.put("max_players", 2);
-                    roomInfo.put("can_join", !server.isRoomInCooldown(room.getRoomId()));
-                    userObj.put("room_info", roomInfo);
-                    
-                    System.out.println("🏠 DEBUG: Added room_info for " + dbUser.getUsername() + 
-                                     " (room: " + room.getRoomId() + 
-                                     ", players: " + (room.getGuest() != null ? 2 : 1) + "/2)");
-                }
-            } else {
-                userObj.put("status", "offline");
-            }
-            
-            usersList.add(userObj);
-        }
-        response.put("users", usersList);
-        
-        sendMessage(response.toString());
+        // Snapshot từ presence roster trong bộ nhớ (không quét DB), client dùng seq để nhận delta tiếp theo
+        server.sendPresenceSnapshot(this);
     }
     
     public void handleDisconnect() {
@@ -1595,29 +1796,95 @@ public class ClientHandler implements Runnable {
                 handleLeaveRoom();
             }
             
-            server.removeOnlineClient(String.valueOf(user.getUserId()));
+            server.removeOnlineClient(String.valueOf(user.getUserId()), this);
         }
         
-        try {
-            if (socket != null) socket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        connection.close();
     }
     
+    /**
+     * Gửi 1 dòng JSON; message lớn được nén nếu client đã thỏa thuận "deflate"
+     */
     public void sendMessage(String message) {
-        if (out != null) {
-            out.println(message);
+        if (compressFrames && message.length() >= FrameCompression.MIN_BYTES) {
+            byte[] frame = FrameCompression.compress(message.getBytes(StandardCharsets.UTF_8));
+            if (frame != null) {
+                connection.sendEncoded(frame);
+                return;
+            }
+        }
+        connection.send(message);
+    }
+    
+    /**
+     * GAME_START: client có BoardGenerator nhận seed + số hạt (vài chục byte), client cũ nhận danh sách hạt
+     * (frame nén từ GrainStore nếu "binary", mảng grains JSON nếu không)
+     */
+    void sendGameStart(Room room, int duration, String opponentUsername) {
+        if (seededBoards) {
+            if (binaryFrames) {
+                connection.sendEncoded(WireCodec.gameStartSeeded(room.getBoardSeed(), BoardGenerator.VERSION,
+                        room.getRiceCount(), room.getPaddyCount(), duration, opponentUsername));
+                return;
+            }
+            JSONObject gameStart = new JSONObject();
+            gameStart.put("type", Protocol.GAME_START);
+            gameStart.put("seed", room.getBoardSeed());
+            gameStart.put("board_version", BoardGenerator.VERSION);
+            gameStart.put("rice_count", room.getRiceCount());
+            gameStart.put("paddy_count", room.getPaddyCount());
+            gameStart.put("duration", duration);
+            gameStart.put("total_grains", room.getTotalGrains());
+            gameStart.put("opponent_username", opponentUsername);
+            connection.send(gameStart.toString());
+            return;
         }
+        GrainStore grains = room.getGrains();
+        if (binaryFrames) {
+            connection.sendEncoded(WireCodec.gameStart(grains, duration, room.getTotalGrains(), opponentUsername));
+            return;
+        }
+        JSONObject gameStart = new JSONObject();
+        gameStart.put("type", Protocol.GAME_START);
+        gameStart.put("grains", grains.toJson());
+        gameStart.put("duration", duration);
+        gameStart.put("total_grains", room.getTotalGrains());
+        gameStart.put("opponent_username", opponentUsername);
+        sendMessage(gameStart.toString());
+    }
+    
+    /**
+     * OPPONENT_SCORE lấy từ MessageTemplates (mảng encode sẵn), không qua JSONObject/String
+     */
+    void sendOpponentScore(int score) {
+        connection.sendEncoded(binaryFrames ? MessageTemplates.opponentScoreFrame(score) : MessageTemplates.opponentScore(score));
+    }
+    
+    public boolean supportsBinary() {
+        return binaryFrames;
+    }
+    
+    public boolean supportsCompression() {
+        return compressFrames;
+    }
+    
+    /**
+     * Gửi frame đã serialize sẵn (dùng cho broadcast: encode 1 lần cho mọi người nhận)
+     */
+    public void sendEncoded(byte[] frame) {
+        connection.sendEncoded(frame);
+    }
+    
+    /**
+     * Gửi frame có thể bỏ khi client nhận chậm (chỉ dùng cho delta roster có seq)
+     */
+    public void sendDroppable(byte[] frame) {
+        connection.sendDroppable(frame);
     }
     
     private void sendError(int errorCode, String message) {
-        JSONObject error = new JSONObject();
-        error.put("type", Protocol.ERROR);
-        error.put("error_code", errorCode);
-        error.put("message", message);
         System.out.println("⚠️ Sending error to " + (user != null ? user.getUsername() : "unknown") + ": " + message);
-        sendMessage(error.toString());
+        sendEncoded(MessageTemplates.error(errorCode, message));
     }
     
     // BUG FIX #2: Xóa hashPassword() method - không cần nữa vì client đã hash
@@ -1636,7 +1903,7 @@ public class ClientHandler implements Runnable {
     }
     
     public boolean isConnected() {
-        return socket != null && !socket.isClosed() && out != null;
+        return connection.isOpen();
     }
 }
 
@@ -0,0 +1,35 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Kết nối tới 1 client - tách tầng truyền tải (socket blocking hoặc NIO) khỏi ClientHandler
+ */
+public interface Connection {
+    int MAX_MESSAGE_BYTES = 64 * 1024; // Chặn client gửi message vô hạn
+
+    /**
+     * Gửi 1 message JSON (1 dòng), ký tự xuống dòng được thêm tự động
+     */
+    void send(String message);
+
+    /**
+     * Gửi frame đã encode sẵn (dòng UTF-8 có '\n' hoặc frame nhị phân WireCodec); mảng được chia sẻ giữa nhiều connection nên không được sửa
+     */
+    void sendEncoded(byte[] frame);
+
+    /**
+     * Như sendEncoded nhưng được phép bỏ khi client nhận chậm (delta roster: client tự resync theo seq)
+     */
+    void sendDroppable(byte[] frame);
+
+    boolean isOpen();
+
+    void close();
+
+    String getRemoteAddress();
+
+    static byte[] encodeLine(String message) {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
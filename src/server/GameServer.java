@@ -4,29 +4,62 @@ import org.json.JSONObject;
 import org.json.JSONArray;
 
 import database.DatabaseManager;
+import database.Leaderboard;
 import shared.Protocol;
 import shared.User;
-import shared.Grain;
+import shared.FrameCompression;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Server chính của game
  */
 public class GameServer {
-    private static final int PORT = 8888;
+    // "nio" (mặc định): Selector event loop; "thread": 1 platform thread/client như cũ;
+    // "virtual": 1 virtual thread/client (cần chạy trên JVM 21+)
+    private static final String TRANSPORT = System.getProperty("server.transport", "nio");
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ExecutorService connectionExecutor;
+    // Các task nền (timer wheel, broadcast, thống kê) chạy trên scheduler này
+    private final ScheduledExecutorService scheduler;
+    // Không có lock chung cho cả server: các map dưới là ConcurrentHashMap (thao tác từng key là atomic),
+    // vòng đời 1 phòng do chính Room tự khóa, broadcast chỉ đánh dấu dirty (I/O chạy ở BroadcastScheduler)
     private Map<String, ClientHandler> onlineClients; // userId -> ClientHandler
     private Map<String, Room> rooms; // roomId -> Room
-    private Map<String, Long> invitations; // invitationKey -> expiryTime
-    private Map<String, Long> roomCooldowns; // roomId -> cooldownStartTime
+    // Mọi hạn chờ (lời mời, heartbeat, cooldown phòng) là timer trên 1 timing wheel, không quét map định kỳ
+    private final TimerWheel timers = new TimerWheel();
+    private static final long INVITATION_TIMEOUT_MS = 30000;
+    private static final long HEARTBEAT_TIMEOUT_MS = 15000;
+    private static final long ROOM_COOLDOWN_MS = 30000;
+    private Map<InvitationKey, TimerWheel.Timer> invitations; // lời mời -> timer hết hạn
+    private Map<String, TimerWheel.Timer> roomCooldowns; // roomId -> timer hết cooldown
+    private final Map<String, TimerWheel.Timer> heartbeatTimers = new ConcurrentHashMap<>(); // userId -> hạn heartbeat
     private Map<String, Integer> roomRequestCounts; // roomId -> currentRequestCount
-    private List<ClientHandler> matchmakingQueue; // Danh sách người chơi đang tìm trận
+    private final MatchmakingQueue matchmakingQueue = new MatchmakingQueue(timers, this::onMatchFound); // Ghép theo rating ngay khi vào hàng
+    private final AtomicLong lastRoomId = new AtomicLong(); // Phòng ghép liên tục trong cùng 1 ms vẫn khác id
+    // Chế độ nhiều shard (không cấu hình thì chỉ 1 shard, port 8888): phòng chia theo hash roomId
+    private final ShardRouter shardRouter = ShardRouter.fromSystemProperties(this, timers);
     private DatabaseManager dbManager;
+    private final PresenceRoster presence = new PresenceRoster();
+    // Cửa sổ gom broadcast roster (ms)
+    private static final long BROADCAST_WINDOW_MS = Long.getLong("server.broadcast.window.ms", 150);
+    private final BroadcastScheduler broadcastScheduler;
+    private static final int LEADERBOARD_SIZE = Leaderboard.TOP_TRACKED;
+    private volatile CachedPayload leaderboardPayload;
+    private long lastOutboundLoss = 0; // Chỉ task outbound-stats dùng
+    private long lastMatchesLogged = 0; // Chỉ task matchmaking-stats dùng
     private boolean running;
     
     public GameServer() {
@@ -35,45 +68,128 @@ public class GameServer {
         invitations = new ConcurrentHashMap<>();
         roomCooldowns = new ConcurrentHashMap<>();
         roomRequestCounts = new ConcurrentHashMap<>();
-        matchmakingQueue = new ArrayList<>();
         dbManager = DatabaseManager.getInstance();
         running = true;
         
-        // Thread cleanup lời mời hết hạn
-        startInvitationCleanup();
+        // Nạp danh sách user 1 lần, sau đó chỉ cập nhật theo delta
+        presence.load(dbManager.getLeaderboard(Integer.MAX_VALUE)); // Lấy từ leaderboard đã nạp, không query lại DB
+        // 2 thread: timer heartbeat có thể gọi DB khi xử lý disconnect, không chặn broadcast
+        scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "server-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        broadcastScheduler = new BroadcastScheduler(scheduler, BROADCAST_WINDOW_MS, () -> {
+            presence.syncAndBroadcast(onlineClients.values(), shardRouter.getRemoteUsers(), this::isRoomInCooldown);
+            shardRouter.publishPresence(presence.exportLocal());
+        });
         
-        // Thread kiểm tra heartbeat
-        startHeartbeatChecker();
+        timers.start(scheduler);
         
-        // Thread xử lý matchmaking
-        startMatchmakingProcessor();
+        // Thống kê hàng đợi gửi và hàng đợi tìm trận
+        startOutboundStatsLog();
+        startMatchmakingStatsLog();
     }
     
     public void start() {
+        if ("thread".equals(TRANSPORT) || "virtual".equals(TRANSPORT)) {
+            // Tạo trước khi mở cổng: JVM không có virtual thread thì dừng ngay, không âm thầm chạy platform thread
+            connectionExecutor = newConnectionExecutor("virtual".equals(TRANSPORT));
+        }
         try {
-            serverSocket = new ServerSocket(PORT);
-            System.out.println("🎮 Game Server đã khởi động trên port " + PORT);
+            shardRouter.start(scheduler);
+            System.out.println("🎮 Game Server đã khởi động trên port " + shardRouter.getClientPort() + " (transport: " + TRANSPORT + ")");
             System.out.println("⏳ Đang chờ kết nối từ client...\n");
             
-            while (running) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("✅ Client mới kết nối: " + clientSocket.getInetAddress());
-                
-                ClientHandler handler = new ClientHandler(clientSocket, this);
-                new Thread(handler).start();
+            if (connectionExecutor != null) {
+                startThreadPerConnection();
+            } else {
+                int cpus = Runtime.getRuntime().availableProcessors();
+                nioServer = new NioServer(shardRouter.getClientPort(), this, Math.max(1, Math.min(4, cpus)), Math.max(8, cpus * 4));
+                nioServer.start();
             }
         } catch (IOException e) {
             System.err.println("Lỗi server: " + e.getMessage());
         }
     }
     
-    public synchronized void addOnlineClient(String userId, ClientHandler handler) {
-        onlineClients.put(userId, handler);
+    /**
+     * Transport blocking: mỗi client 1 thread (platform hoặc virtual tùy connectionExecutor)
+     */
+    private void startThreadPerConnection() throws IOException {
+        serverSocket = new ServerSocket(shardRouter.getClientPort());
+        
+        while (running) {
+            Socket clientSocket = serverSocket.accept();
+            System.out.println("✅ Client mới kết nối: " + clientSocket.getInetAddress());
+            
+            try {
+                SocketConnection connection = new SocketConnection(clientSocket);
+                ClientHandler handler = new ClientHandler(connection, this);
+                connectionExecutor.execute(() -> connection.readLoop(handler)); // Ghi chạy trên thread người gửi
+            } catch (IOException e) {
+                System.err.println("Lỗi mở stream cho client: " + e.getMessage());
+                clientSocket.close();
+            }
+        }
+    }
+    
+    /**
+     * Executor 1 virtual thread/task (server.transport=virtual) hoặc 1 platform thread/task.
+     * Project build với javac 17 nên API virtual thread được gọi qua reflection.
+     * @throws IllegalStateException nếu chọn virtual mà JVM không hỗ trợ (cần Java 21+)
+     */
+    private static ExecutorService newConnectionExecutor(boolean virtual) {
+        if (virtual) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("🧵 Client handler chạy trên virtual thread");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("server.transport=virtual cần Java 21+ (JVM hiện tại: "
+                        + System.getProperty("java.version") + "), dùng server.transport=thread hoặc nio", e);
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+    
+    /**
+     * Chạy task sau delayMs trên scheduler của server (thay cho new Thread + sleep)
+     */
+    public void schedule(Runnable task, long delayMs) {
+        scheduler.schedule(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Đăng ký session online; 2 login cùng user đến cùng lúc thì chỉ 1 cái vào được (putIfAbsent)
+     * @return false nếu user đã online ở shard này
+     */
+    public boolean addOnlineClient(String userId, ClientHandler handler) {
+        if (onlineClients.putIfAbsent(userId, handler) != null) {
+            return false;
+        }
+        scheduleHeartbeatCheck(userId, handler, HEARTBEAT_TIMEOUT_MS);
         broadcastAllUsers();
+        return true;
     }
     
-    public synchronized void removeOnlineClient(String userId) {
-        onlineClients.remove(userId);
+    /**
+     * Gỡ session của handler này (không gỡ nhầm session mới hơn của cùng user)
+     */
+    public void removeOnlineClient(String userId, ClientHandler handler) {
+        if (!onlineClients.remove(userId, handler)) {
+            return;
+        }
+        TimerWheel.Timer heartbeat = heartbeatTimers.remove(userId);
+        if (heartbeat != null) {
+            heartbeat.cancel();
+        }
         broadcastAllUsers();
     }
     
@@ -85,79 +201,52 @@ public class GameServer {
         return onlineClients;
     }
     
+    /**
+     * Online ở shard này hoặc ở shard khác (theo presence nhận qua ShardRouter)
+     */
     public boolean isUserOnline(String userId) {
-        return onlineClients.containsKey(userId);
+        return onlineClients.containsKey(userId) || shardRouter.getRemoteUser(Integer.parseInt(userId)) != null;
     }
     
-    public void broadcastOnlineUsers() {
-        JSONObject response = new JSONObject();
-        response.put("type", Protocol.ONLINE_USERS_UPDATE);
-        
-        List<JSONObject> usersList = new ArrayList<>();
-        for (Map.Entry<String, ClientHandler> entry : onlineClients.entrySet()) {
-            ClientHandler handler = entry.getValue();
-            User user = handler.getUser();
-            if (user != null) {
-                JSONObject userObj = new JSONObject();
-                userObj.put("user_id", user.getUserId());
-                userObj.put("username", user.getUsername());
-                userObj.put("total_score", user.getTotalScore());
-                userObj.put("status", handler.getStatus());
-                usersList.add(userObj);
-            }
-        }
-        response.put("users", usersList);
-        
-        // Broadcast đến tất cả client
-        for (ClientHandler handler : onlineClients.values()) {
-            handler.sendMessage(response.toString());
-        }
+    ShardRouter getShardRouter() {
+        return shardRouter;
     }
     
+    /**
+     * Đánh dấu roster cần đồng bộ; BroadcastScheduler gom lại và gửi PRESENCE_DELTA
+     * (chỉ các user thay đổi) tối đa 1 lần mỗi BROADCAST_WINDOW_MS
+     */
     public void broadcastAllUsers() {
-        List<User> allUsers = getAllUsers();
-        
-        JSONObject response = new JSONObject();
-        response.put("type", Protocol.ONLINE_USERS_UPDATE);
-        
-        List<JSONObject> usersList = new ArrayList<>();
-        for (User dbUser : allUsers) {
-            JSONObject userObj = new JSONObject();
-            userObj.put("user_id", dbUser.getUserId());
-            userObj.put("username", dbUser.getUsername());
-            userObj.put("total_score", dbUser.getTotalScore());
-            
-            // Kiểm tra trạng thái online
-            ClientHandler onlineHandler = getClientHandler(String.valueOf(dbUser.getUserId()));
-            if (onlineHandler != null) {
-                userObj.put("status", onlineHandler.getStatus());
-                
-                // Thêm thông tin phòng nếu đang trong phòng
-                if (("waiting".equals(onlineHandler.getStatus()) || "playing".equals(onlineHandler.getStatus())) && onlineHandler.currentRoom != null) {
-                    Room room = onlineHandler.currentRoom;
-                    JSONObject roomInfo = new JSONObject();
-                    roomInfo.put("room_id", room.getRoomId());
-                    roomInfo.put("players_count", room.getGuest() != null ? 2 : 1);
-                    roomInfo.put("max_players", 2);
-                    roomInfo.put("can_join", !isRoomInCooldown(room.getRoomId()));
-                    userObj.put("room_info", roomInfo);
-                }
-            } else {
-                userObj.put("status", "offline");
-            }
-            
-            usersList.add(userObj);
-        }
-        response.put("users", usersList);
-        
-        // Broadcast đến tất cả client
-        for (ClientHandler handler : onlineClients.values()) {
-            handler.sendMessage(response.toString());
+        broadcastScheduler.markDirty();
+    }
+    
+    public BroadcastScheduler getBroadcastScheduler() {
+        return broadcastScheduler;
+    }
+    
+    /**
+     * Gửi danh sách đầy đủ cho 1 client (sau login hoặc khi client hụt seq)
+     */
+    public void sendPresenceSnapshot(ClientHandler target) {
+        presence.sendSnapshot(target);
+    }
+    
+    /**
+     * Nạp lại điểm/tên mới nhất của user vào presence roster
+     */
+    public void refreshUserStats(User updated) {
+        if (updated != null) {
+            presence.upsertUser(updated);
         }
     }
     
-    public synchronized Room createRoom(ClientHandler host) {
-        String roomId = "ROOM_" + System.currentTimeMillis();
+    public Room createRoom(ClientHandler host) {
+        // Chỉ dùng id mà ring gán cho shard này (trung bình N lần thử), shard khác tự tính ra phòng ở đây.
+        // lastRoomId là AtomicLong nên id không trùng, không cần lock
+        String roomId;
+        do {
+            roomId = "ROOM_" + lastRoomId.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        } while (!shardRouter.isLocal(roomId));
         Room room = new Room(roomId, host);
         rooms.put(roomId, room);
         return room;
@@ -167,99 +256,201 @@ public class GameServer {
         return rooms.get(roomId);
     }
     
-    public synchronized void removeRoom(String roomId) {
+    public void removeRoom(String roomId) {
         rooms.remove(roomId);
         clearRoomCooldown(roomId); // Clear cooldown khi xóa phòng
     }
     
-    public synchronized void addInvitation(String fromUserId, String toUserId, String roomId) {
-        String key = fromUserId + "_" + toUserId + "_" + roomId;
-        long expiryTime = System.currentTimeMillis() + 30000; // 30 giây
-        invitations.put(key, expiryTime);
+    /**
+     * Khóa của 1 lời mời (thay cho chuỗi from_to_room ghép mỗi lần tra)
+     */
+    private record InvitationKey(String fromUserId, String toUserId, String roomId) {
     }
     
-    public synchronized boolean isInvitationValid(String fromUserId, String toUserId, String roomId) {
-        String key = fromUserId + "_" + toUserId + "_" + roomId;
-        Long expiryTime = invitations.get(key);
-        if (expiryTime != null && System.currentTimeMillis() < expiryTime) {
-            return true;
-        }
-        invitations.remove(key);
-        return false;
-    }
-    
-    public synchronized void removeInvitation(String fromUserId, String toUserId, String roomId) {
-        String key = fromUserId + "_" + toUserId + "_" + roomId;
-        invitations.remove(key);
-    }
-    
-    private void startInvitationCleanup() {
-        Thread cleanupThread = new Thread(() -> {
-            while (running) {
-                try {
-                    Thread.sleep(5000); // Kiểm tra mỗi 5 giây
-                    long now = System.currentTimeMillis();
-                    
-                    invitations.entrySet().removeIf(entry -> {
-                        if (entry.getValue() < now) {
-                            // Lời mời hết hạn - gửi thông báo
-                            String[] parts = entry.getKey().split("_");
-                            if (parts.length >= 3) {
-                                String fromUserId = parts[0];
-                                ClientHandler sender = onlineClients.get(fromUserId);
-                                if (sender != null) {
-                                    JSONObject expiredMsg = new JSONObject();
-                                    expiredMsg.put("type", Protocol.INVITE_EXPIRED);
-                                    expiredMsg.put("to_user", parts[1]);
-                                    sender.sendMessage(expiredMsg.toString());
-                                }
-                            }
-                            return true;
-                        }
-                        return false;
-                    });
-                } catch (InterruptedException e) {
-                    break;
+    public void addInvitation(String fromUserId, String toUserId, String roomId) {
+        InvitationKey key = new InvitationKey(fromUserId, toUserId, roomId);
+        // Hết hạn đúng lúc: báo người mời (task giữ sẵn key, chỉ gỡ đúng timer của nó)
+        TimerWheel.Timer timer = timers.schedule(INVITATION_TIMEOUT_MS, t -> {
+            if (invitations.remove(key, t)) {
+                ClientHandler sender = onlineClients.get(fromUserId);
+                if (sender != null) {
+                    sender.sendEncoded(MessageTemplates.inviteExpired(toUserId));
                 }
             }
         });
-        cleanupThread.setDaemon(true);
-        cleanupThread.start();
-    }
-    
-    private void startHeartbeatChecker() {
-        Thread heartbeatThread = new Thread(() -> {
-            while (running) {
-                try {
-                    Thread.sleep(10000); // Kiểm tra mỗi 10 giây
-                    long now = System.currentTimeMillis();
-                    
-                    List<String> disconnected = new ArrayList<>();
-                    for (Map.Entry<String, ClientHandler> entry : onlineClients.entrySet()) {
-                        if (now - entry.getValue().getLastHeartbeat() > 15000) { // 15 giây
-                            disconnected.add(entry.getKey());
-                        }
-                    }
-                    
-                    // Xử lý mất kết nối
-                    for (String userId : disconnected) {
-                        ClientHandler handler = onlineClients.get(userId);
-                        if (handler != null && handler.getUser() != null) {
-                            System.out.println("⚠️ Client timeout: " + handler.getUser().getUsername());
-                            handler.handleDisconnect();
-                        } else if (handler != null) {
-                            // Handler exists but user is null - still disconnect
-                            System.out.println("⚠️ Client timeout: Unknown user (null)");
-                            handler.handleDisconnect();
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    break;
-                }
+        TimerWheel.Timer previous = invitations.put(key, timer);
+        if (previous != null) {
+            previous.cancel(); // Mời lại: tính hạn từ lần mời mới
+        }
+    }
+    
+    public boolean isInvitationValid(String fromUserId, String toUserId, String roomId) {
+        // Lời mời hết hạn đã bị timer gỡ khỏi map
+        return invitations.containsKey(new InvitationKey(fromUserId, toUserId, roomId));
+    }
+    
+    public void removeInvitation(String fromUserId, String toUserId, String roomId) {
+        TimerWheel.Timer timer = invitations.remove(new InvitationKey(fromUserId, toUserId, roomId));
+        if (timer != null) {
+            timer.cancel(); // Đã trả lời: không gửi INVITE_EXPIRED nữa
+        }
+    }
+    
+    /**
+     * Người được mời ở shard khác đã từ chối: gỡ lời mời và báo người mời (nếu còn ở shard này)
+     */
+    void onInviteDeclined(String fromUserId, String toUserId, String roomId, String username) {
+        removeInvitation(fromUserId, toUserId, roomId);
+        ClientHandler sender = onlineClients.get(fromUserId);
+        if (sender != null) {
+            JSONObject notification = new JSONObject();
+            notification.put("type", Protocol.INVITE_DECLINED);
+            notification.put("username", username);
+            sender.sendMessage(notification.toString());
+        }
+    }
+    
+    /**
+     * Đăng ký 1 vòng nền chạy định kỳ; exception không làm dừng các lần chạy sau
+     */
+    private void scheduleLoop(String name, long periodMs, Runnable body) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (!running) return;
+            try {
+                body.run();
+            } catch (Exception e) {
+                System.err.println("Lỗi task " + name + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Hạn heartbeat kiểu lazy: heartbeat đến chỉ ghi timestamp (không hủy/đặt lại timer mỗi lần),
+     * tới hạn mới xem lại - còn heartbeat mới thì hẹn tiếp đến hạn mới, không thì xử lý mất kết nối
+     */
+    private void scheduleHeartbeatCheck(String userId, ClientHandler handler, long delayMs) {
+        TimerWheel.Timer timer = timers.schedule(delayMs, t -> checkHeartbeat(userId, handler, t));
+        TimerWheel.Timer previous = heartbeatTimers.put(userId, timer);
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+    
+    private void checkHeartbeat(String userId, ClientHandler handler, TimerWheel.Timer timer) {
+        if (!running || onlineClients.get(userId) != handler || !heartbeatTimers.remove(userId, timer)) {
+            return; // Đã logout / đăng nhập lại bằng connection khác
+        }
+        long idle = System.currentTimeMillis() - handler.getLastHeartbeat();
+        if (idle < HEARTBEAT_TIMEOUT_MS) {
+            scheduleHeartbeatCheck(userId, handler, HEARTBEAT_TIMEOUT_MS - idle);
+            return;
+        }
+        if (handler.getUser() != null) {
+            System.out.println("⚠️ Client timeout: " + handler.getUser().getUsername());
+        } else {
+            // Handler exists but user is null - still disconnect
+            System.out.println("⚠️ Client timeout: Unknown user (null)");
+        }
+        handler.handleDisconnect();
+    }
+    
+    private void startOutboundStatsLog() {
+        scheduleLoop("outbound-stats", 10000, () -> {
+            // Chỉ log thống kê hàng đợi gửi khi có client chậm (bị bỏ message / bị ngắt)
+            OutboundQueue.Stats outbound = OutboundQueue.stats();
+            long loss = outbound.getDropped() + outbound.getOverflows();
+            if (loss != lastOutboundLoss) {
+                lastOutboundLoss = loss;
+                System.out.println("📤 Outbound: " + outbound);
+            }
+        });
+    }
+    
+    private void startMatchmakingStatsLog() {
+        scheduleLoop("matchmaking-stats", 60000, () -> {
+            // Chỉ log khi có cặp mới được ghép từ lần log trước
+            long matches = matchmakingQueue.getMatches();
+            if (matches == lastMatchesLogged) {
+                return;
+            }
+            lastMatchesLogged = matches;
+            System.out.println(String.format("🎯 Matchmaking: %d cặp, avg wait=%.0fms, avg rating gap=%.0f, đang chờ=%d",
+                    matches, matchmakingQueue.getAverageWaitMs(), matchmakingQueue.getAverageRatingGap(), matchmakingQueue.size()));
+            for (MatchmakingQueue.BucketStats bucket : matchmakingQueue.getBucketStats()) {
+                System.out.println("   " + bucket);
             }
         });
-        heartbeatThread.setDaemon(true);
-        heartbeatThread.start();
+    }
+    
+    /**
+     * Thống kê hàng đợi gửi của mọi connection
+     */
+    OutboundQueue.Stats getOutboundStats() {
+        return OutboundQueue.stats();
+    }
+    
+    /**
+     * LEADERBOARD_DATA top 100 đã serialize sẵn, chỉ build lại khi top của leaderboard đổi version
+     */
+    public String getLeaderboardPayload() {
+        Leaderboard leaderboard = dbManager.getLeaderboardIndex();
+        long version = leaderboard.getTopVersion();
+        CachedPayload cached = leaderboardPayload;
+        if (cached != null && cached.version == version) {
+            return cached.json;
+        }
+        
+        JSONObject response = new JSONObject();
+        response.put("type", Protocol.LEADERBOARD_DATA);
+        
+        JSONArray rankings = new JSONArray();
+        for (User u : leaderboard.top(LEADERBOARD_SIZE)) {
+            JSONObject userObj = new JSONObject();
+            userObj.put("username", u.getUsername());
+            userObj.put("total_score", u.getTotalScore());
+            userObj.put("total_wins", u.getTotalWins());
+            userObj.put("total_losses", u.getTotalLosses());
+            userObj.put("total_draws", u.getTotalDraws());
+            userObj.put("win_rate", u.getWinRate());
+            rankings.put(userObj);
+        }
+        response.put("rankings", rankings);
+        
+        // Version đọc trước khi build: nếu leaderboard đổi giữa chừng, lần sau sẽ build lại
+        leaderboardPayload = new CachedPayload(version, response.toString());
+        return leaderboardPayload.json;
+    }
+    
+    /**
+     * LEADERBOARD_DATA đã nén cho client có capability "deflate" (nén lazy 1 lần mỗi version)
+     */
+    public byte[] getLeaderboardDeflated() {
+        String json = getLeaderboardPayload();
+        CachedPayload cached = leaderboardPayload;
+        if (cached == null || cached.json != json) {
+            return Connection.encodeLine(json); // Vừa bị build lại ở thread khác, không cache
+        }
+        byte[] deflated = cached.deflated;
+        if (deflated == null) {
+            deflated = FrameCompression.compress(json.getBytes(StandardCharsets.UTF_8));
+            if (deflated == null) {
+                deflated = Connection.encodeLine(json);
+            }
+            cached.deflated = deflated;
+        }
+        return deflated;
+    }
+    
+    private static final class CachedPayload {
+        final long version;
+        final String json;
+        volatile byte[] deflated;
+        
+        CachedPayload(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
     }
     
     public DatabaseManager getDbManager() {
@@ -272,6 +463,7 @@ public class GameServer {
     public void updateUserCache(User updatedUser) {
         // Cập nhật cache trong DatabaseManager
         dbManager.updateUserCache(updatedUser);
+        presence.upsertUser(updatedUser);
         
         // Broadcast cập nhật danh sách người chơi
         broadcastAllUsers();
@@ -279,10 +471,18 @@ public class GameServer {
     
     public void shutdown() {
         running = false;
+        shardRouter.shutdown();
+        scheduler.shutdownNow();
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
         try {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (nioServer != null) {
+                nioServer.shutdown();
+            }
             dbManager.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -295,25 +495,17 @@ public class GameServer {
      * Kiểm tra xem phòng có đang cooldown không
      */
     public boolean isRoomInCooldown(String roomId) {
-        Long cooldownStart = roomCooldowns.get(roomId);
-        if (cooldownStart == null) return false;
-        
-        long currentTime = System.currentTimeMillis();
-        return (currentTime - cooldownStart) < 30000; // 30 giây
+        return roomCooldowns.containsKey(roomId); // Timer gỡ phòng khỏi map đúng lúc hết cooldown
     }
     
     /**
      * Lấy thời gian còn lại của cooldown (giây)
      */
     public long getRoomCooldownRemaining(String roomId) {
-        Long cooldownStart = roomCooldowns.get(roomId);
-        if (cooldownStart == null) return 0;
+        TimerWheel.Timer timer = roomCooldowns.get(roomId);
+        if (timer == null) return 0;
         
-        long currentTime = System.currentTimeMillis();
-        long elapsed = currentTime - cooldownStart;
-        long remaining = 30000 - elapsed; // 30 giây
-        
-        return Math.max(0, remaining / 1000); // Trả về giây
+        return timer.remainingMs() / 1000; // Trả về giây
     }
     
     /**
@@ -325,14 +517,21 @@ public class GameServer {
             return false; // Phòng đang cooldown
         }
         
-        // Tăng counter
-        int currentCount = roomRequestCounts.getOrDefault(roomId, 0) + 1;
-        roomRequestCounts.put(roomId, currentCount);
+        // Tăng counter (merge atomic: 2 request cùng lúc không làm mất 1 lần đếm)
+        int currentCount = roomRequestCounts.merge(roomId, 1, Integer::sum);
         
-        // Nếu đạt 5 request → trigger cooldown
-        if (currentCount >= 5) {
-            roomCooldowns.put(roomId, System.currentTimeMillis());
-            roomRequestCounts.put(roomId, 0); // Reset counter
+        // Nếu đạt 5 request → trigger cooldown. Chỉ thread reset được đúng giá trị mình vừa đếm mới bật cooldown:
+        // request đến sau đã tăng tiếp thì thread đó tự reset, nên luôn có đúng 1 thread bật
+        if (currentCount >= 5 && roomRequestCounts.replace(roomId, currentCount, 0)) {
+            TimerWheel.Timer timer = timers.schedule(ROOM_COOLDOWN_MS, t -> {
+                if (roomCooldowns.remove(roomId, t)) {
+                    broadcastAllUsers(); // can_join của phòng đổi lại ngay khi hết cooldown
+                }
+            });
+            TimerWheel.Timer previous = roomCooldowns.put(roomId, timer);
+            if (previous != null) {
+                previous.cancel();
+            }
             System.out.println("🔒 Room " + roomId + " triggered cooldown (5 requests)");
         }
         
@@ -343,71 +542,79 @@ public class GameServer {
      * Reset cooldown khi phòng bị xóa
      */
     public void clearRoomCooldown(String roomId) {
-        roomCooldowns.remove(roomId);
+        TimerWheel.Timer timer = roomCooldowns.remove(roomId);
+        if (timer != null) {
+            timer.cancel();
+        }
         roomRequestCounts.remove(roomId);
     }
     
     // ==================== MATCHMAKING ====================
     
     /**
-     * Thêm người chơi vào hàng đợi tìm trận
+     * Thêm người chơi vào hàng đợi tìm trận, có người chờ cùng tầm rating thì ghép ngay trên thread hiện tại
+     * @return vé để hủy, null nếu đã được ghép ngay
      */
-    public synchronized void addToMatchmakingQueue(ClientHandler player) {
-        if (!matchmakingQueue.contains(player)) {
-            matchmakingQueue.add(player);
-            System.out.println("🎯 " + player.getUser().getUsername() + " đã tham gia hàng đợi tìm trận");
-        }
+    public MatchmakingQueue.Ticket addToMatchmakingQueue(ClientHandler player) {
+        int rating = getRating(player);
+        System.out.println("🎯 " + player.getUser().getUsername() + " (rating " + rating + ") đã tham gia hàng đợi tìm trận");
+        return matchmakingQueue.enqueue(player, rating);
+    }
+    
+    /**
+     * Rating mới nhất từ cache (user của handler là bản lúc login, chưa tính các trận sau đó)
+     */
+    int getRating(ClientHandler player) {
+        User cached = dbManager.getUserById(String.valueOf(player.getUser().getUserId()));
+        return cached != null ? cached.getRating() : player.getUser().getRating();
     }
     
     /**
      * Xóa người chơi khỏi hàng đợi tìm trận
      */
-    public synchronized void removeFromMatchmakingQueue(ClientHandler player) {
-        matchmakingQueue.remove(player);
-        System.out.println("❌ " + player.getUser().getUsername() + " đã rời khỏi hàng đợi tìm trận");
+    public void removeFromMatchmakingQueue(ClientHandler player) {
+        if (matchmakingQueue.cancel(player)) {
+            System.out.println("❌ " + player.getUser().getUsername() + " đã rời khỏi hàng đợi tìm trận");
+        }
+    }
+    
+    MatchmakingQueue getMatchmakingQueue() {
+        return matchmakingQueue;
     }
     
     /**
-     * Thread xử lý matchmaking
+     * Callback của MatchmakingQueue (ngoài lock hàng đợi): tạo phòng và start game
      */
-    private void startMatchmakingProcessor() {
-        Thread matchmakingThread = new Thread(() -> {
-            while (running) {
-                try {
-                    Thread.sleep(2000); // Kiểm tra mỗi 2 giây
-                    
-                    synchronized (this) {
-                        if (matchmakingQueue.size() >= 2) {
-                            // Lấy 2 người chơi đầu tiên
-                            ClientHandler player1 = matchmakingQueue.remove(0);
-                            ClientHandler player2 = matchmakingQueue.remove(0);
-                            
-                            // Tạo phòng và ghép cặp
-                            Room room = createRoom(player1);
-                            room.addGuest(player2);
-                            
-                            // Cập nhật trạng thái
-                            player1.currentRoom = room;
-                            player2.currentRoom = room;
-                            player1.status = "waiting";
-                            player2.status = "waiting";
-                            
-                            // Tự động start game ngay lập tức
-                            startMatchmakingGame(room, player1, player2);
-                            
-                            System.out.println("🎮 Ghép cặp thành công: " + player1.getUser().getUsername() + " vs " + player2.getUser().getUsername());
-                            
-                            // Cập nhật danh sách online
-                            broadcastAllUsers();
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    break;
-                }
+    private void onMatchFound(ClientHandler player1, ClientHandler player2) {
+        // Ghép từ timer nới khoảng rating thì cả 2 vé đều có thể đã cũ: ai rớt mạng thì đưa người còn lại về hàng đợi
+        boolean firstAlive = player1.isConnected() && player1.getUser() != null;
+        boolean secondAlive = player2.isConnected() && player2.getUser() != null;
+        if (!firstAlive || !secondAlive) {
+            if (firstAlive) {
+                matchmakingQueue.enqueue(player1, getRating(player1));
+            } else if (secondAlive) {
+                matchmakingQueue.enqueue(player2, getRating(player2));
             }
-        });
-        matchmakingThread.setDaemon(true);
-        matchmakingThread.start();
+            return;
+        }
+        
+        // Tạo phòng và ghép cặp
+        Room room = createRoom(player1);
+        room.addGuest(player2);
+        
+        // Cập nhật trạng thái
+        player1.currentRoom = room;
+        player2.currentRoom = room;
+        player1.status = "waiting";
+        player2.status = "waiting";
+        
+        // Tự động start game ngay lập tức
+        startMatchmakingGame(room, player1, player2);
+        
+        System.out.println("🎮 Ghép cặp thành công: " + player1.getUser().getUsername() + " vs " + player2.getUser().getUsername());
+        
+        // Cập nhật danh sách online
+        broadcastAllUsers();
     }
     
     /**
@@ -428,7 +635,7 @@ public class GameServer {
             int riceCount = 25 + rand.nextInt(26);   // 25-50 hạt gạo
             int paddyCount = totalGrains - riceCount; // Phần còn lại là thóc
             
-            List<Grain> grains = room.generateGrains(riceCount, paddyCount);
+            room.generateGrains(riceCount, paddyCount);
             room.setTotalGrains(totalGrains);
             room.setStatus("playing");
             room.setGameStartTime(System.currentTimeMillis());
@@ -437,32 +644,11 @@ public class GameServer {
             player1.status = "playing";
             player2.status = "playing";
             
-            // Gửi dữ liệu game cho cả 2 người
-            JSONObject gameStart = new JSONObject();
-            gameStart.put("type", Protocol.GAME_START);
-            
-            JSONArray grainsArray = new JSONArray();
-            for (Grain grain : grains) {
-                JSONObject grainObj = new JSONObject();
-                grainObj.put("id", grain.getId());
-                grainObj.put("type", grain.getType());
-                grainObj.put("x", grain.getX());
-                grainObj.put("y", grain.getY());
-                grainsArray.put(grainObj);
-            }
-            gameStart.put("grains", grainsArray);
-            gameStart.put("duration", 300); // 5 phút
-            gameStart.put("total_grains", totalGrains);
-            
-            JSONObject hostGameStart = new JSONObject(gameStart.toString());
-            hostGameStart.put("opponent_username", player2.getUser().getUsername());
-            player1.sendMessage(hostGameStart.toString());
-            
-            JSONObject guestGameStart = new JSONObject(gameStart.toString());
-            guestGameStart.put("opponent_username", player1.getUser().getUsername());
-            player2.sendMessage(guestGameStart.toString());
+            // Gửi dữ liệu game cho cả 2 người (5 phút)
+            player1.sendGameStart(room, 300, player2.getUser().getUsername());
+            player2.sendGameStart(room, 300, player1.getUser().getUsername());
             
-            System.out.println("🎮 Matchmaking game started: " + room.getRoomId());
+            System.out.println("🎮 Matchmaking game started: " + room.getRoomId() + " (seed " + room.getBoardSeed() + ")");
             
         } catch (Exception e) {
             e.printStackTrace();
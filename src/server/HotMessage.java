@@ -0,0 +1,229 @@
+package server;
+
+import shared.WireCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Struct dùng lại cho message nóng (HEARTBEAT, SCORE_UPDATE, GRAIN_DROP) của 1 connection.
+ * Đọc thẳng trên mảng byte của WireDecoder, không tạo String hay JSONObject;
+ * message khác (hoặc JSON có dạng lạ) trả false để đi đường handleMessage bình thường.
+ */
+final class HotMessage {
+    static final int NONE = 0;
+    static final int HEARTBEAT = WireCodec.T_HEARTBEAT;
+    static final int SCORE_UPDATE = WireCodec.T_SCORE_UPDATE;
+    static final int GRAIN_DROP = WireCodec.T_GRAIN_DROP;
+
+    private static final byte[] KEY_TYPE = ascii("type");
+    private static final byte[] KEY_NEW_SCORE = ascii("new_score");
+    private static final byte[] KEY_TIMESTAMP = ascii("timestamp");
+    private static final byte[] KEY_GRAIN_ID = ascii("grain_id");
+    private static final byte[] KEY_BASKET = ascii("basket");
+    private static final byte[] VALUE_HEARTBEAT = ascii("HEARTBEAT");
+    private static final byte[] VALUE_SCORE_UPDATE = ascii("SCORE_UPDATE");
+    private static final byte[] VALUE_GRAIN_DROP = ascii("GRAIN_DROP");
+    private static final byte[] VALUE_RICE = ascii("rice");
+    private static final byte[] VALUE_PADDY = ascii("paddy");
+
+    int kind = NONE;
+    int newScore;
+    long timestamp;
+    int grainId;
+    boolean riceBasket;
+
+    // Vị trí value của các key đang quét (start < 0: chưa gặp)
+    private int typeStart, typeEnd, scoreStart, scoreEnd, grainStart, grainEnd, basketStart, basketEnd;
+
+    /**
+     * Đọc frame nhị phân của message nóng
+     */
+    boolean decodeFrame(int type, byte[] buf, int offset, int length) {
+        kind = NONE;
+        long value = readVarint(buf, offset, offset + length);
+        if (value == Long.MIN_VALUE) {
+            return false;
+        }
+        if (type == WireCodec.T_HEARTBEAT) {
+            timestamp = (value >>> 1) ^ -(value & 1);
+            kind = HEARTBEAT;
+            return true;
+        }
+        if (type == WireCodec.T_SCORE_UPDATE && value <= 0xFFFFFFFFL) {
+            int raw = (int) value;
+            newScore = (raw >>> 1) ^ -(raw & 1);
+            kind = SCORE_UPDATE;
+            return true;
+        }
+        if (type == WireCodec.T_GRAIN_DROP && value <= 0xFFFFFFFFL) {
+            grainId = (int) (value >>> 1);
+            riceBasket = (value & 1) == 0;
+            kind = GRAIN_DROP;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Quét 1 object JSON phẳng ở mức top-level, chỉ nhận các message nóng.
+     * Gặp object/array lồng nhau, chuỗi có escape hoặc cú pháp lạ -> false (để org.json xử lý và báo lỗi như cũ)
+     */
+    boolean decodeLine(byte[] buf, int offset, int length) {
+        kind = NONE;
+        typeStart = scoreStart = grainStart = basketStart = -1;
+        int end = offset + length;
+        int p = skipSpace(buf, offset, end);
+        if (p >= end || buf[p] != '{') return false;
+        p = skipSpace(buf, p + 1, end);
+        if (p < end && buf[p] == '}') return false;
+
+        while (p < end) {
+            // Key
+            if (buf[p] != '"') return false;
+            int keyStart = p + 1;
+            int keyEnd = scanString(buf, keyStart, end);
+            if (keyEnd < 0) return false;
+            p = skipSpace(buf, keyEnd + 1, end);
+            if (p >= end || buf[p] != ':') return false;
+            p = skipSpace(buf, p + 1, end);
+            if (p >= end) return false;
+
+            // Value
+            int valueStart, valueEnd;
+            if (buf[p] == '"') {
+                valueStart = p + 1;
+                valueEnd = scanString(buf, valueStart, end);
+                if (valueEnd < 0) return false;
+                p = valueEnd + 1;
+            } else if (buf[p] == '{' || buf[p] == '[') {
+                return false;
+            } else {
+                valueStart = p;
+                while (p < end && buf[p] != ',' && buf[p] != '}' && buf[p] > ' ') p++;
+                valueEnd = p;
+                if (valueEnd == valueStart) return false;
+            }
+
+            if (equals(buf, keyStart, keyEnd, KEY_TYPE)) {
+                if (buf[valueStart - 1] != '"') return false;
+                typeStart = valueStart;
+                typeEnd = valueEnd;
+            } else if (equals(buf, keyStart, keyEnd, KEY_NEW_SCORE)) {
+                scoreStart = valueStart;
+                scoreEnd = valueEnd;
+            } else if (equals(buf, keyStart, keyEnd, KEY_GRAIN_ID)) {
+                grainStart = valueStart;
+                grainEnd = valueEnd;
+            } else if (equals(buf, keyStart, keyEnd, KEY_BASKET)) {
+                if (buf[valueStart - 1] != '"') return false;
+                basketStart = valueStart;
+                basketEnd = valueEnd;
+            } else if (!equals(buf, keyStart, keyEnd, KEY_TIMESTAMP)) {
+                return false; // Field lạ -> không phải message nóng
+            }
+
+            p = skipSpace(buf, p, end);
+            if (p >= end) return false;
+            if (buf[p] == '}') {
+                if (skipSpace(buf, p + 1, end) != end) return false;
+                return classify(buf);
+            }
+            if (buf[p] != ',') return false;
+            p = skipSpace(buf, p + 1, end);
+        }
+        return false;
+    }
+
+    private boolean classify(byte[] buf) {
+        if (typeStart < 0) return false;
+        if (equals(buf, typeStart, typeEnd, VALUE_HEARTBEAT)) {
+            kind = HEARTBEAT; // timestamp của client không được dùng
+            return true;
+        }
+        if (equals(buf, typeStart, typeEnd, VALUE_SCORE_UPDATE) && scoreStart >= 0) {
+            long value = parseInt(buf, scoreStart, scoreEnd);
+            if (value == Long.MIN_VALUE) return false;
+            newScore = (int) value;
+            kind = SCORE_UPDATE;
+            return true;
+        }
+        if (equals(buf, typeStart, typeEnd, VALUE_GRAIN_DROP) && grainStart >= 0 && basketStart >= 0) {
+            long value = parseInt(buf, grainStart, grainEnd);
+            if (value == Long.MIN_VALUE) return false;
+            if (equals(buf, basketStart, basketEnd, VALUE_RICE)) {
+                riceBasket = true;
+            } else if (equals(buf, basketStart, basketEnd, VALUE_PADDY)) {
+                riceBasket = false;
+            } else {
+                return false;
+            }
+            grainId = (int) value;
+            kind = GRAIN_DROP;
+            return true;
+        }
+        return false;
+    }
+
+    // ==================== HELPERS ====================
+
+    private static int skipSpace(byte[] buf, int p, int end) {
+        while (p < end && (buf[p] == ' ' || buf[p] == '\t' || buf[p] == '\r' || buf[p] == '\n')) p++;
+        return p;
+    }
+
+    /**
+     * @return vị trí dấu " đóng, -1 nếu có escape hoặc hết dữ liệu
+     */
+    private static int scanString(byte[] buf, int p, int end) {
+        while (p < end) {
+            if (buf[p] == '"') return p;
+            if (buf[p] == '\\') return -1;
+            p++;
+        }
+        return -1;
+    }
+
+    private static boolean equals(byte[] buf, int start, int end, byte[] expected) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (buf[start + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Số nguyên JSON trong khoảng int, Long.MIN_VALUE nếu không hợp lệ
+     */
+    private static long parseInt(byte[] buf, int start, int end) {
+        boolean negative = buf[start] == '-';
+        int p = negative ? start + 1 : start;
+        if (p >= end || end - p > 10) return Long.MIN_VALUE;
+        long value = 0;
+        for (; p < end; p++) {
+            int digit = buf[p] - '0';
+            if (digit < 0 || digit > 9) return Long.MIN_VALUE;
+            value = value * 10 + digit;
+        }
+        value = negative ? -value : value;
+        return value < Integer.MIN_VALUE || value > Integer.MAX_VALUE ? Long.MIN_VALUE : value;
+    }
+
+    /**
+     * Varint không dấu chiếm đúng cả payload, Long.MIN_VALUE nếu hỏng
+     */
+    private static long readVarint(byte[] buf, int p, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && p < end; shift += 7) {
+            int b = buf[p++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return p == end ? value : Long.MIN_VALUE;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
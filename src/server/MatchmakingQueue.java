@@ -0,0 +1,346 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hàng đợi tìm trận theo rating: người chờ nằm trong các bucket rating (TreeMap theo rating / BUCKET_WIDTH),
+ * vào hàng là tìm ngay đối thủ gần rating nhất trong các bucket lân cận - O(log n) cho TreeMap, không quét cả hàng.
+ * Chênh lệch rating chấp nhận được nới dần theo thời gian chờ (timer trên TimerWheel, mỗi WIDEN_STEP_MS
+ * xét lại 1 lần), tới MAX_GAP thì thôi. Có lock riêng (không dùng serverLock), callback ghép cặp chạy ngoài lock.
+ */
+class MatchmakingQueue {
+    static final int BUCKET_WIDTH = Integer.getInteger("server.matchmaking.bucket", 50);
+    static final int BASE_GAP = Integer.getInteger("server.matchmaking.gap.base", 100);
+    static final int GAP_PER_STEP = Integer.getInteger("server.matchmaking.gap.step", 25);
+    static final int MAX_GAP = Integer.getInteger("server.matchmaking.gap.max", 800);
+    static final long WIDEN_STEP_MS = Long.getLong("server.matchmaking.step.ms", 1000);
+
+    /**
+     * Nhận 2 người vừa được ghép (first là người chờ lâu hơn)
+     */
+    interface MatchHandler {
+        void onMatch(ClientHandler first, ClientHandler second);
+    }
+
+    /**
+     * Vé của 1 người đang chờ; cancel() gỡ khỏi hàng đợi O(log n)
+     */
+    final class Ticket {
+        private final ClientHandler player;
+        private final int rating;
+        private final int bucket;
+        private final long enqueuedAt = System.nanoTime();
+        private TimerWheel.Timer widenTimer; // Guard bởi lock
+
+        private Ticket(ClientHandler player, int rating) {
+            this.player = player;
+            this.rating = rating;
+            this.bucket = Math.floorDiv(rating, BUCKET_WIDTH);
+        }
+
+        boolean cancel() {
+            return MatchmakingQueue.this.cancel(this);
+        }
+
+        ClientHandler getPlayer() { return player; }
+        int getRating() { return rating; }
+
+        /**
+         * Chênh lệch rating chấp nhận được sau thời gian đã chờ
+         */
+        int allowedGap(long now) {
+            long steps = (now - enqueuedAt) / (WIDEN_STEP_MS * 1_000_000);
+            return (int) Math.min(MAX_GAP, BASE_GAP + GAP_PER_STEP * steps);
+        }
+    }
+
+    /**
+     * Thống kê của 1 bucket rating: số người đang chờ, số người đã ghép, thời gian chờ và chênh lệch rating trung bình
+     */
+    static final class BucketStats {
+        private final int minRating;
+        private final int depth;
+        private final long matched;
+        private final double averageWaitMs;
+        private final double averageGap;
+
+        BucketStats(int minRating, int depth, long matched, double averageWaitMs, double averageGap) {
+            this.minRating = minRating;
+            this.depth = depth;
+            this.matched = matched;
+            this.averageWaitMs = averageWaitMs;
+            this.averageGap = averageGap;
+        }
+
+        int getMinRating() { return minRating; }
+        int getDepth() { return depth; }
+        long getMatched() { return matched; }
+        double getAverageWaitMs() { return averageWaitMs; }
+        double getAverageGap() { return averageGap; }
+
+        @Override
+        public String toString() {
+            return String.format("%d-%d: waiting=%d, matched=%d, avg wait=%.0fms, avg gap=%.0f",
+                    minRating, minRating + BUCKET_WIDTH - 1, depth, matched, averageWaitMs, averageGap);
+        }
+    }
+
+    /**
+     * Bộ đếm cộng dồn của 1 bucket (theo bucket của từng người đã ghép), guard bởi lock
+     */
+    private static final class Counters {
+        long matched;
+        long waitNanos;
+        long gapSum;
+    }
+
+    private final TimerWheel timers;
+    private final MatchHandler handler;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guard bởi lock: bucket -> người chờ theo thứ tự vào hàng; waiting để tra/hủy theo người chơi
+    private final TreeMap<Integer, LinkedHashMap<ClientHandler, Ticket>> buckets = new TreeMap<>();
+    private final HashMap<ClientHandler, Ticket> waiting = new HashMap<>();
+    private final TreeMap<Integer, Counters> counters = new TreeMap<>();
+    private long matches = 0;
+    private long totalWaitNanos = 0;
+    private long totalGap = 0;
+
+    MatchmakingQueue(TimerWheel timers, MatchHandler handler) {
+        this.timers = timers;
+        this.handler = handler;
+    }
+
+    /**
+     * Vào hàng đợi; có người chờ trong khoảng rating chấp nhận được thì ghép ngay (handler chạy trên thread gọi hàm này)
+     * @return vé đang chờ, null nếu đã được ghép ngay
+     */
+    Ticket enqueue(ClientHandler player, int rating) {
+        Ticket ticket;
+        Ticket opponent;
+        lock.lock();
+        try {
+            Ticket existing = waiting.get(player);
+            if (existing != null) {
+                return existing; // Gửi FIND_MATCH 2 lần
+            }
+            ticket = new Ticket(player, rating);
+            opponent = findOpponent(ticket, ticket.enqueuedAt);
+            if (opponent == null) {
+                add(ticket);
+                scheduleWiden(ticket);
+                return ticket;
+            }
+            remove(opponent);
+            recordMatch(opponent, ticket, ticket.enqueuedAt);
+        } finally {
+            lock.unlock();
+        }
+        handler.onMatch(opponent.player, ticket.player);
+        return null;
+    }
+
+    /**
+     * Đối thủ có chênh lệch rating nhỏ nhất (bằng nhau thì chờ lâu hơn) trong khoảng chấp nhận được của 1 trong 2 bên.
+     * Chỉ duyệt các bucket trong [rating - MAX_GAP, rating + MAX_GAP]; người cùng bucket luôn được ghép ngay
+     * (BUCKET_WIDTH <= BASE_GAP) nên mỗi bucket thường chỉ có 0-1 người, số người phải xét không phụ thuộc độ dài hàng.
+     */
+    private Ticket findOpponent(Ticket ticket, long now) {
+        int ownGap = ticket.allowedGap(now);
+        Ticket best = null;
+        int bestGap = Integer.MAX_VALUE;
+        int from = Math.floorDiv(ticket.rating - MAX_GAP, BUCKET_WIDTH);
+        int to = Math.floorDiv(ticket.rating + MAX_GAP, BUCKET_WIDTH);
+        for (LinkedHashMap<ClientHandler, Ticket> bucket : buckets.subMap(from, true, to, true).values()) {
+            for (Ticket candidate : bucket.values()) {
+                if (candidate == ticket) {
+                    continue;
+                }
+                int gap = Math.abs(candidate.rating - ticket.rating);
+                if (gap > Math.max(ownGap, candidate.allowedGap(now))) {
+                    continue;
+                }
+                if (gap < bestGap || (gap == bestGap && candidate.enqueuedAt < best.enqueuedAt)) {
+                    best = candidate;
+                    bestGap = gap;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Hẹn lần nới khoảng rating kế tiếp; đã tới MAX_GAP thì chỉ còn chờ người mới vào hàng tìm thấy
+     */
+    private void scheduleWiden(Ticket ticket) {
+        if (ticket.allowedGap(System.nanoTime()) < MAX_GAP) {
+            ticket.widenTimer = timers.schedule(WIDEN_STEP_MS, timer -> widen(ticket));
+        }
+    }
+
+    private void widen(Ticket ticket) {
+        Ticket opponent;
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (waiting.get(ticket.player) != ticket) {
+                return; // Đã ghép hoặc đã hủy
+            }
+            opponent = findOpponent(ticket, now);
+            if (opponent == null) {
+                scheduleWiden(ticket);
+                return;
+            }
+            remove(ticket);
+            remove(opponent);
+            recordMatch(ticket, opponent, now);
+        } finally {
+            lock.unlock();
+        }
+        // Người chờ lâu hơn đứng trước (làm host)
+        if (opponent.enqueuedAt < ticket.enqueuedAt) {
+            handler.onMatch(opponent.player, ticket.player);
+        } else {
+            handler.onMatch(ticket.player, opponent.player);
+        }
+    }
+
+    private void add(Ticket ticket) {
+        waiting.put(ticket.player, ticket);
+        buckets.computeIfAbsent(ticket.bucket, b -> new LinkedHashMap<>()).put(ticket.player, ticket);
+    }
+
+    private void remove(Ticket ticket) {
+        waiting.remove(ticket.player);
+        LinkedHashMap<ClientHandler, Ticket> bucket = buckets.get(ticket.bucket);
+        bucket.remove(ticket.player);
+        if (bucket.isEmpty()) {
+            buckets.remove(ticket.bucket);
+        }
+        if (ticket.widenTimer != null) {
+            ticket.widenTimer.cancel();
+            ticket.widenTimer = null;
+        }
+    }
+
+    private void recordMatch(Ticket first, Ticket second, long now) {
+        int gap = Math.abs(first.rating - second.rating);
+        matches++;
+        totalGap += gap;
+        for (Ticket ticket : new Ticket[] {first, second}) {
+            long wait = now - ticket.enqueuedAt;
+            totalWaitNanos += wait;
+            Counters bucket = counters.computeIfAbsent(ticket.bucket, b -> new Counters());
+            bucket.matched++;
+            bucket.waitNanos += wait;
+            bucket.gapSum += gap;
+        }
+    }
+
+    /**
+     * @return false nếu vé đã được ghép hoặc đã hủy
+     */
+    boolean cancel(Ticket ticket) {
+        lock.lock();
+        try {
+            if (waiting.get(ticket.player) != ticket) {
+                return false;
+            }
+            remove(ticket);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hủy theo người chơi (disconnect / CANCEL_FIND_MATCH)
+     */
+    boolean cancel(ClientHandler player) {
+        lock.lock();
+        try {
+            Ticket ticket = waiting.get(player);
+            if (ticket == null) {
+                return false;
+            }
+            remove(ticket);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMatches() {
+        lock.lock();
+        try {
+            return matches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Thời gian chờ trung bình (ms) của mỗi người đã được ghép
+     */
+    double getAverageWaitMs() {
+        lock.lock();
+        try {
+            return matches == 0 ? 0.0 : totalWaitNanos / 1e6 / (matches * 2);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Chênh lệch rating trung bình của các cặp đã ghép
+     */
+    double getAverageRatingGap() {
+        lock.lock();
+        try {
+            return matches == 0 ? 0.0 : (double) totalGap / matches;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Thống kê theo bucket rating (bucket đang có người chờ hoặc đã từng ghép), tăng dần theo rating
+     */
+    List<BucketStats> getBucketStats() {
+        lock.lock();
+        try {
+            TreeMap<Integer, Integer> depths = new TreeMap<>();
+            for (Map.Entry<Integer, LinkedHashMap<ClientHandler, Ticket>> entry : buckets.entrySet()) {
+                depths.put(entry.getKey(), entry.getValue().size());
+            }
+            for (Integer bucket : counters.keySet()) {
+                depths.putIfAbsent(bucket, 0);
+            }
+            List<BucketStats> stats = new ArrayList<>(depths.size());
+            for (Map.Entry<Integer, Integer> entry : depths.entrySet()) {
+                Counters c = counters.get(entry.getKey());
+                long matched = c == null ? 0 : c.matched;
+                stats.add(new BucketStats(entry.getKey() * BUCKET_WIDTH, entry.getValue(), matched,
+                        matched == 0 ? 0.0 : c.waitNanos / 1e6 / matched,
+                        matched == 0 ? 0.0 : (double) c.gapSum / matched));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package server;
+
+import shared.Protocol;
+import shared.WireCodec;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message có hình dạng cố định được encode sẵn thành các đoạn byte; lúc gửi chỉ ghép giá trị thay đổi
+ * vào 1 mảng đúng kích thước (không qua JSONObject/String). Mảng trả về có '\n' cuối,
+ * dùng với sendEncoded() và có thể chia sẻ giữa nhiều người nhận, không được sửa.
+ */
+public final class MessageTemplates {
+    private static final int SCORE_CACHE_SIZE = 512; // Điểm 1 trận luôn nhỏ hơn tổng số hạt
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Template OPPONENT_SCORE = new Template(
+            "{\"type\":\"" + Protocol.OPPONENT_SCORE + "\",\"opponent_score\":", "}\n");
+    private static final Template PLAYER_READY = new Template(
+            "{\"type\":\"" + Protocol.PLAYER_READY + "\",\"username\":", ",\"ready\":", "}\n");
+    private static final Template INVITE_EXPIRED = new Template(
+            "{\"type\":\"" + Protocol.INVITE_EXPIRED + "\",\"to_user\":", "}\n");
+    private static final Template ERROR = new Template(
+            "{\"type\":\"" + Protocol.ERROR + "\",\"error_code\":", ",\"message\":", "}\n");
+
+    // Điểm nhỏ: encode 1 lần lúc khởi động, gửi lại đúng mảng đó
+    private static final byte[][] OPPONENT_SCORE_LINES = new byte[SCORE_CACHE_SIZE][];
+    private static final byte[][] OPPONENT_SCORE_FRAMES = new byte[SCORE_CACHE_SIZE][];
+
+    static {
+        for (int score = 0; score < SCORE_CACHE_SIZE; score++) {
+            OPPONENT_SCORE_LINES[score] = renderOpponentScore(score);
+            OPPONENT_SCORE_FRAMES[score] = WireCodec.opponentScore(score);
+        }
+    }
+
+    private MessageTemplates() {
+    }
+
+    public static byte[] opponentScore(int score) {
+        return score >= 0 && score < SCORE_CACHE_SIZE ? OPPONENT_SCORE_LINES[score] : renderOpponentScore(score);
+    }
+
+    /**
+     * Bản frame nhị phân cho client đã thỏa thuận capability "binary"
+     */
+    public static byte[] opponentScoreFrame(int score) {
+        return score >= 0 && score < SCORE_CACHE_SIZE ? OPPONENT_SCORE_FRAMES[score] : WireCodec.opponentScore(score);
+    }
+
+    public static byte[] playerReady(String username, boolean ready) {
+        Writer w = PLAYER_READY.writer(stringLength(username) + (ready ? 4 : 5));
+        w.part(0).string(username).part(1).bool(ready).part(2);
+        return w.done();
+    }
+
+    public static byte[] inviteExpired(String toUser) {
+        Writer w = INVITE_EXPIRED.writer(stringLength(toUser));
+        w.part(0).string(toUser).part(1);
+        return w.done();
+    }
+
+    public static byte[] error(int errorCode, String message) {
+        Writer w = ERROR.writer(numberLength(errorCode) + stringLength(message));
+        w.part(0).number(errorCode).part(1).string(message).part(2);
+        return w.done();
+    }
+
+    private static byte[] renderOpponentScore(int score) {
+        Writer w = OPPONENT_SCORE.writer(numberLength(score));
+        w.part(0).number(score).part(1);
+        return w.done();
+    }
+
+    // ==================== ENCODING ====================
+
+    /**
+     * Các đoạn cố định của 1 message, chỗ trống nằm giữa 2 đoạn liên tiếp
+     */
+    static final class Template {
+        private final byte[][] parts;
+        private final int fixedLength;
+
+        Template(String... parts) {
+            this.parts = new byte[parts.length][];
+            int total = 0;
+            for (int i = 0; i < parts.length; i++) {
+                this.parts[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+                total += this.parts[i].length;
+            }
+            this.fixedLength = total;
+        }
+
+        /**
+         * @param variableLength tổng số byte của các giá trị (tính bằng numberLength/stringLength)
+         */
+        Writer writer(int variableLength) {
+            return new Writer(this, new byte[fixedLength + variableLength]);
+        }
+    }
+
+    /**
+     * Ghi tuần tự vào mảng đã cấp đúng kích thước
+     */
+    static final class Writer {
+        private final Template template;
+        private final byte[] out;
+        private int pos = 0;
+
+        Writer(Template template, byte[] out) {
+            this.template = template;
+            this.out = out;
+        }
+
+        Writer part(int index) {
+            byte[] part = template.parts[index];
+            System.arraycopy(part, 0, out, pos, part.length);
+            pos += part.length;
+            return this;
+        }
+
+        Writer number(int value) {
+            long v = value;
+            if (v < 0) {
+                out[pos++] = '-';
+                v = -v;
+            }
+            int digits = digits(v);
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                out[i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            pos += digits;
+            return this;
+        }
+
+        Writer bool(boolean value) {
+            byte[] literal = value ? TRUE : FALSE;
+            System.arraycopy(literal, 0, out, pos, literal.length);
+            pos += literal.length;
+            return this;
+        }
+
+        /**
+         * Chuỗi JSON có dấu nháy, escape " \ và ký tự điều khiển, còn lại ghi UTF-8
+         */
+        Writer string(String s) {
+            out[pos++] = '"';
+            if (s != null) {
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c == '"' || c == '\\') {
+                        out[pos++] = '\\';
+                        out[pos++] = (byte) c;
+                    } else if (c < 0x20) {
+                        writeControl(c);
+                    } else if (c < 0x80) {
+                        out[pos++] = (byte) c;
+                    } else if (c < 0x800) {
+                        out[pos++] = (byte) (0xC0 | (c >> 6));
+                        out[pos++] = (byte) (0x80 | (c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                            && Character.isLowSurrogate(s.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, s.charAt(++i));
+                        out[pos++] = (byte) (0xF0 | (cp >> 18));
+                        out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                        out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                        out[pos++] = (byte) (0x80 | (cp & 0x3F));
+                    } else if (Character.isSurrogate(c)) {
+                        out[pos++] = '?'; // Surrogate lẻ - giống String.getBytes
+                    } else {
+                        out[pos++] = (byte) (0xE0 | (c >> 12));
+                        out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                        out[pos++] = (byte) (0x80 | (c & 0x3F));
+                    }
+                }
+            }
+            out[pos++] = '"';
+            return this;
+        }
+
+        private void writeControl(char c) {
+            out[pos++] = '\\';
+            switch (c) {
+                case '\b': out[pos++] = 'b'; break;
+                case '\f': out[pos++] = 'f'; break;
+                case '\n': out[pos++] = 'n'; break;
+                case '\r': out[pos++] = 'r'; break;
+                case '\t': out[pos++] = 't'; break;
+                default:
+                    out[pos++] = 'u';
+                    out[pos++] = '0';
+                    out[pos++] = '0';
+                    out[pos++] = HEX[c >> 4];
+                    out[pos++] = HEX[c & 0xF];
+            }
+        }
+
+        byte[] done() {
+            if (pos != out.length) {
+                throw new IllegalStateException("Template ghi " + pos + "/" + out.length + " bytes");
+            }
+            return out;
+        }
+    }
+
+    static int numberLength(int value) {
+        return value < 0 ? 1 + digits(-(long) value) : digits(value);
+    }
+
+    /**
+     * Số byte của chuỗi JSON sau khi escape, tính cả 2 dấu nháy (khớp với Writer.string)
+     */
+    static int stringLength(String s) {
+        int length = 2;
+        if (s == null) {
+            return length;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                length += 2;
+            } else if (c < 0x20) {
+                length += (c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') ? 2 : 6;
+            } else if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int digits(long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -0,0 +1,222 @@
+package server;
+
+import shared.WireDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Kết nối non-blocking: đọc/ghi trên event loop, xử lý message trên dispatcher pool
+ */
+class NioConnection implements Connection {
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final SerialExecutor dispatcher;
+    private final WireDecoder decoder = new WireDecoder(Connection.MAX_MESSAGE_BYTES);
+    private final HotMessage hot = new HotMessage(); // Chỉ dùng trên event loop
+    private final WireDecoder.Sink sink = new InboundSink();
+    // SCORE_UPDATE mang điểm tuyệt đối nên gộp được: chỉ giữ giá trị mới nhất, 1 task chờ trên dispatcher
+    private final AtomicBoolean scoreScheduled = new AtomicBoolean(false);
+    private volatile int pendingScore;
+    private final Runnable scoreTask = this::flushScore;
+    private static final int MAX_BATCH = 64; // Số message tối đa mỗi lần gathering write
+    private final OutboundQueue writeQueue = new OutboundQueue(); // Guard bởi writeLock
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH]; // Guard bởi writeLock
+    private final Object writeLock = new Object();
+    private final AtomicBoolean disconnectNotified = new AtomicBoolean(false);
+    private final String remoteAddress;
+    private SelectionKey key;
+    private ClientHandler handler;
+    private volatile boolean open = true;
+
+    NioConnection(SocketChannel channel, NioServer.EventLoop loop, SerialExecutor dispatcher) {
+        this.channel = channel;
+        this.loop = loop;
+        this.dispatcher = dispatcher;
+        this.remoteAddress = String.valueOf(channel.socket().getInetAddress());
+    }
+
+    void attach(SelectionKey key, ClientHandler handler) {
+        this.key = key;
+        this.handler = handler;
+    }
+
+    /**
+     * Gọi trên event loop khi channel có dữ liệu
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                System.out.println("❌ Client ngắt kết nối");
+                closeAndNotify();
+                return;
+            }
+            readBuffer.flip();
+            decoder.feed(readBuffer, sink);
+        } catch (IOException e) {
+            System.out.println("❌ Client ngắt kết nối: " + e.getMessage());
+            closeAndNotify();
+        }
+    }
+
+    private void flushScore() {
+        scoreScheduled.set(false); // Reset trước khi đọc để không mất điểm mới đến sau
+        handler.onScoreUpdate(pendingScore);
+    }
+
+    /**
+     * Message nóng: HEARTBEAT xử lý ngay trên event loop (chỉ ghi timestamp), SCORE_UPDATE gộp lại,
+     * GRAIN_DROP đẩy từng cái sang dispatcher;
+     * message còn lại tạo String và đẩy sang dispatcher như cũ
+     */
+    private final class InboundSink implements WireDecoder.Sink {
+        @Override
+        public void onLine(byte[] buf, int offset, int length) {
+            if (hot.decodeLine(buf, offset, length)) {
+                dispatchHot();
+            } else {
+                String line = new String(buf, offset, length, StandardCharsets.UTF_8);
+                dispatcher.execute(() -> handler.handleMessage(line));
+            }
+        }
+
+        @Override
+        public void onFrame(int type, byte[] buf, int offset, int length) throws IOException {
+            if (hot.decodeFrame(type, buf, offset, length)) {
+                dispatchHot();
+            } else {
+                String json = decoder.toJson(type, buf, offset, length);
+                dispatcher.execute(() -> handler.handleMessage(json));
+            }
+        }
+
+        private void dispatchHot() {
+            if (hot.kind == HotMessage.HEARTBEAT) {
+                handler.handleHot(hot);
+                return;
+            }
+            if (hot.kind == HotMessage.GRAIN_DROP) {
+                // Mỗi hạt là 1 sự kiện riêng (không gộp được như điểm tuyệt đối)
+                int grainId = hot.grainId;
+                boolean riceBasket = hot.riceBasket;
+                dispatcher.execute(() -> handler.onGrainDrop(grainId, riceBasket));
+                return;
+            }
+            pendingScore = hot.newScore;
+            if (scoreScheduled.compareAndSet(false, true)) {
+                dispatcher.execute(scoreTask);
+            }
+        }
+    }
+
+    /**
+     * Gọi trên event loop khi socket ghi được tiếp phần còn tồn trong hàng đợi.
+     * Ghi gộp nhiều message bằng 1 lần gathering write
+     */
+    void onWritable() {
+        synchronized (writeLock) {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    int n = writeQueue.fill(batch);
+                    channel.write(batch, 0, n);
+                    Arrays.fill(batch, 0, n, null);
+                    OutboundQueue.recordBatch(writeQueue.removeWritten());
+                    ByteBuffer head = writeQueue.peek();
+                    if (head != null && head.hasRemaining()) {
+                        return; // Socket buffer đầy, chờ OP_WRITE lần sau
+                    }
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeAndNotify();
+            }
+        }
+    }
+
+    @Override
+    public void send(String message) {
+        sendEncoded(Connection.encodeLine(message));
+    }
+
+    @Override
+    public void sendEncoded(byte[] bytes) {
+        enqueue(bytes, false);
+    }
+
+    @Override
+    public void sendDroppable(byte[] bytes) {
+        enqueue(bytes, true);
+    }
+
+    private void enqueue(byte[] bytes, boolean droppable) {
+        ByteBuffer frame = ByteBuffer.wrap(bytes); // Buffer riêng, mảng byte dùng chung
+        synchronized (writeLock) {
+            if (!open) {
+                return;
+            }
+            try {
+                // Hàng đợi rỗng thì ghi thẳng, chỉ xếp hàng phần còn dư (không bao giờ chặn người gửi)
+                if (writeQueue.isEmpty()) {
+                    channel.write(frame);
+                    if (!frame.hasRemaining()) {
+                        return;
+                    }
+                    droppable = false; // Đã ghi dở thì phải ghi nốt
+                }
+                if (!writeQueue.offer(frame, droppable)) {
+                    System.out.println("🐢 Client " + remoteAddress + " nhận quá chậm ("
+                            + writeQueue.getQueuedBytes() + " bytes chờ gửi), ngắt kết nối");
+                    closeAndNotify();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                loop.wakeup();
+            } catch (IOException e) {
+                closeAndNotify();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        synchronized (writeLock) {
+            writeQueue.clear();
+        }
+    }
+
+    /**
+     * Đóng do lỗi I/O phía transport - báo ClientHandler đúng 1 lần
+     */
+    void closeAndNotify() {
+        close();
+        if (disconnectNotified.compareAndSet(false, true) && handler != null) {
+            dispatcher.execute(handler::handleDisconnect);
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tầng mạng non-blocking: 1 thread accept + vài event loop Selector thay cho 1 thread/client.
+ * Các handleXxx của ClientHandler có gọi DB (blocking) nên chạy trên dispatcher pool,
+ * mỗi connection vẫn xử lý message theo đúng thứ tự nhờ SerialExecutor.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final int port;
+    private final GameServer server;
+    private final EventLoop[] loops;
+    private final ExecutorService dispatcherPool;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioServer(int port, GameServer server, int loopCount, int dispatcherThreads) {
+        this.port = port;
+        this.server = server;
+        this.loops = new EventLoop[loopCount];
+        this.dispatcherPool = Executors.newFixedThreadPool(dispatcherThreads, daemonFactory("dispatcher"));
+    }
+
+    /**
+     * Mở port và chạy vòng accept trên thread hiện tại (giống ServerSocket.accept() cũ)
+     */
+    public void start() throws IOException {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            System.out.println("✅ Client mới kết nối: " + channel.socket().getInetAddress());
+
+            // Chia đều connection cho các event loop
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.stop();
+            }
+        }
+        dispatcherPool.shutdown();
+    }
+
+    private static ThreadFactory daemonFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * 1 Selector + 1 thread, phục vụ nhiều connection
+     */
+    class EventLoop implements Runnable {
+        private final int index;
+        private final Selector selector;
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // Dùng chung cho mọi connection của loop
+        private volatile boolean active = true;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingTasks.add(() -> {
+                try {
+                    NioConnection connection = new NioConnection(channel, this, new SerialExecutor(dispatcherPool));
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.attach(key, new ClientHandler(connection, server));
+                } catch (IOException e) {
+                    System.err.println("Lỗi đăng ký connection: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            selector.wakeup();
+        }
+
+        void wakeup() {
+            selector.wakeup();
+        }
+
+        void stop() {
+            active = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (active) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = pendingTasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    }
+                } catch (Exception e) {
+                    // Không để 1 connection lỗi làm chết cả event loop
+                    System.err.println("Lỗi event loop " + index + ": " + e.getMessage());
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hàng đợi gửi có giới hạn của 1 connection (không thread-safe, transport tự giữ lock).
+ * Client chậm: bỏ trước các message roster (client thấy hụt seq sẽ tự xin snapshot),
+ * nếu vẫn vượt ngưỡng byte thì báo transport ngắt kết nối thay vì để bộ nhớ phình vô hạn.
+ */
+final class OutboundQueue {
+    // Tổng số byte chờ gửi tối đa mỗi connection
+    static final long MAX_BYTES = Long.getLong("server.outbound.max.bytes", 4 * 1024 * 1024);
+
+    // Thống kê toàn server
+    private static final AtomicLong totalEnqueued = new AtomicLong();
+    private static final AtomicLong totalDropped = new AtomicLong();
+    private static final AtomicLong totalOverflows = new AtomicLong();
+    private static final AtomicLong totalBatches = new AtomicLong();
+    private static final AtomicLong totalBatchedMessages = new AtomicLong();
+    private static final AtomicLong peakDepth = new AtomicLong();
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long queuedBytes = 0;
+    private long dropped = 0;
+
+    /**
+     * 1 message đang chờ; droppable = có thể bỏ khi client chậm (delta roster)
+     */
+    static final class Entry {
+        final ByteBuffer buffer;
+        final int size; // Số byte tính vào queuedBytes
+        final boolean droppable;
+
+        Entry(ByteBuffer buffer, boolean droppable) {
+            this.buffer = buffer;
+            this.size = buffer.remaining();
+            this.droppable = droppable;
+        }
+    }
+
+    /**
+     * Thêm 1 message vào cuối hàng đợi
+     * @return false nếu vượt MAX_BYTES kể cả sau khi bỏ hết message roster - transport nên ngắt kết nối
+     */
+    boolean offer(ByteBuffer frame, boolean droppable) {
+        int size = frame.remaining();
+        // Hàng đợi rỗng luôn nhận (snapshot lớn hơn ngưỡng vẫn gửi được cho client không chậm)
+        if (!entries.isEmpty() && queuedBytes + size > MAX_BYTES) {
+            dropStale();
+            if (queuedBytes + size > MAX_BYTES) {
+                if (droppable) {
+                    recordDrop();
+                    return true; // Bỏ chính message này, client sẽ resync
+                }
+                totalOverflows.incrementAndGet();
+                return false;
+            }
+        }
+        entries.add(new Entry(frame, droppable));
+        queuedBytes += size;
+        totalEnqueued.incrementAndGet();
+        peakDepth.accumulateAndGet(entries.size(), Math::max);
+        return true;
+    }
+
+    ByteBuffer peek() {
+        Entry head = entries.peek();
+        return head != null ? head.buffer : null;
+    }
+
+    /**
+     * Bỏ message đầu đã ghi xong
+     */
+    void removeHead() {
+        Entry head = entries.poll();
+        if (head != null) {
+            queuedBytes -= head.size;
+        }
+    }
+
+    /**
+     * Chép tối đa batch.length message đầu hàng đợi vào batch (để ghi gộp 1 lần)
+     * @return số message đã chép
+     */
+    int fill(ByteBuffer[] batch) {
+        int n = 0;
+        for (Entry entry : entries) {
+            if (n == batch.length) break;
+            batch[n++] = entry.buffer;
+        }
+        return n;
+    }
+
+    /**
+     * Bỏ các message đầu hàng đợi đã ghi hết
+     * @return số message đã bỏ
+     */
+    int removeWritten() {
+        int written = 0;
+        Entry head;
+        while ((head = entries.peek()) != null && !head.buffer.hasRemaining()) {
+            removeHead();
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Ghi nhận 1 lần ghi gộp (1 syscall / flush) gồm messages message
+     */
+    static void recordBatch(int messages) {
+        totalBatches.incrementAndGet();
+        totalBatchedMessages.addAndGet(messages);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    void clear() {
+        entries.clear();
+        queuedBytes = 0;
+    }
+
+    /**
+     * Bỏ các message roster chưa bắt đầu ghi (message đầu đang ghi dở thì giữ lại)
+     */
+    private void dropStale() {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.droppable && entry.buffer.remaining() == entry.size) {
+                it.remove();
+                queuedBytes -= entry.size;
+                recordDrop();
+            }
+        }
+    }
+
+    private void recordDrop() {
+        dropped++;
+        totalDropped.incrementAndGet();
+    }
+
+    static Stats stats() {
+        long batches = totalBatches.get();
+        return new Stats(totalEnqueued.get(), totalDropped.get(), totalOverflows.get(), peakDepth.get(),
+                batches == 0 ? 0.0 : (double) totalBatchedMessages.get() / batches);
+    }
+
+    /**
+     * Snapshot thống kê hàng đợi gửi của toàn server
+     */
+    static final class Stats {
+        private final long enqueued;
+        private final long dropped;
+        private final long overflows;
+        private final long peakDepth;
+        private final double averageBatch;
+
+        Stats(long enqueued, long dropped, long overflows, long peakDepth, double averageBatch) {
+            this.enqueued = enqueued;
+            this.dropped = dropped;
+            this.overflows = overflows;
+            this.peakDepth = peakDepth;
+            this.averageBatch = averageBatch;
+        }
+
+        long getEnqueued() { return enqueued; }
+        long getDropped() { return dropped; }
+        long getOverflows() { return overflows; }
+        long getPeakDepth() { return peakDepth; }
+        double getAverageBatch() { return averageBatch; }
+
+        @Override
+        public String toString() {
+            return String.format("queued=%d, dropped=%d, slow-client disconnects=%d, peak depth=%d, avg batch=%.1f",
+                    enqueued, dropped, overflows, peakDepth, averageBatch);
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import shared.Protocol;
+import shared.FrameCompression;
+import shared.User;
+import shared.WireCodec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Danh sách người chơi trong bộ nhớ, có số thứ tự phiên bản (seq).
+ * Mỗi lần thay đổi chỉ gửi PRESENCE_DELTA gồm các user bị đổi;
+ * snapshot đầy đủ (ONLINE_USERS_UPDATE kèm seq) chỉ gửi khi login hoặc khi client báo hụt seq.
+ */
+public class PresenceRoster {
+    private final Map<Integer, Entry> entries = new HashMap<>(); // userId -> trạng thái hiện tại
+    private final Set<Integer> onlineIds = new HashSet<>();
+    private final Set<Integer> localIds = new HashSet<>(); // Online ở chính shard này (không tính user của shard khác)
+    private final Map<Integer, Entry> pendingChanges = new LinkedHashMap<>(); // Thay đổi chưa gửi
+    // Giữ lock cả lúc gửi để client nhận delta đúng thứ tự seq
+    private final ReentrantLock lock = new ReentrantLock();
+    private long seq = 0;
+    private String cachedSnapshot;
+    private JSONObject cachedSnapshotPacket;
+    // Các dạng đã encode của snapshot, index = (nhị phân ? 1 : 0) | (nén ? 2 : 0); encode lần đầu có client cần
+    private final byte[][] cachedSnapshotFrames = new byte[4][];
+    private long cachedSnapshotSeq = -1;
+
+    /**
+     * Nạp toàn bộ user từ database (1 lần khi server khởi động)
+     */
+    public void load(List<User> users) {
+        lock.lock();
+        try {
+            for (User user : users) {
+                entries.put(user.getUserId(), new Entry(user.getUserId(), user.getUsername(),
+                        user.getTotalScore(), user.getTotalWins(), "offline", null, 0, false));
+            }
+            System.out.println("👥 Presence roster loaded: " + entries.size() + " users");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cập nhật tên/điểm của user (sau trận đấu, đổi tên, đăng ký mới)
+     */
+    public void upsertUser(User user) {
+        lock.lock();
+        try {
+            Entry old = entries.get(user.getUserId());
+            Entry updated = old != null
+                    ? old.withStats(user.getUsername(), user.getTotalScore(), user.getTotalWins())
+                    : new Entry(user.getUserId(), user.getUsername(), user.getTotalScore(),
+                            user.getTotalWins(), "offline", null, 0, false);
+            record(old, updated);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * So sánh trạng thái online/phòng hiện tại với roster, gửi delta cho mọi client nếu có thay đổi
+     * @param remote user online ở các shard khác (entry dạng JSON của roster), user có ở cả 2 nơi thì lấy bản local
+     */
+    public void syncAndBroadcast(Collection<ClientHandler> online, Collection<JSONObject> remote,
+                                 Predicate<String> roomInCooldown) {
+        lock.lock();
+        try {
+            Set<Integer> seen = new HashSet<>();
+            for (ClientHandler handler : online) {
+                User user = handler.getUser();
+                if (user == null) continue;
+
+                int userId = user.getUserId();
+                seen.add(userId);
+
+                Entry old = entries.get(userId);
+                Entry base = old != null ? old : new Entry(userId, user.getUsername(), user.getTotalScore(),
+                        user.getTotalWins(), "offline", null, 0, false);
+
+                String status = handler.getStatus();
+                Room room = handler.currentRoom;
+                Entry updated;
+                if (("waiting".equals(status) || "playing".equals(status)) && room != null) {
+                    updated = base.withPresence(status, room.getRoomId(), room.getGuest() != null ? 2 : 1,
+                            !roomInCooldown.test(room.getRoomId()));
+                } else {
+                    updated = base.withPresence(status, null, 0, false);
+                }
+                record(old, updated);
+            }
+
+            localIds.clear();
+            localIds.addAll(seen);
+            for (JSONObject user : remote) {
+                Entry updated = Entry.fromJson(user);
+                if (seen.add(updated.userId)) {
+                    record(entries.get(updated.userId), updated);
+                }
+            }
+
+            // User không còn trong onlineClients (và không online ở shard khác) -> offline
+            for (Integer userId : onlineIds) {
+                if (!seen.contains(userId)) {
+                    Entry old = entries.get(userId);
+                    if (old != null) {
+                        record(old, old.withPresence("offline", null, 0, false));
+                    }
+                }
+            }
+            onlineIds.clear();
+            onlineIds.addAll(seen);
+
+            if (pendingChanges.isEmpty()) {
+                return;
+            }
+
+            seq++;
+            JSONObject delta = new JSONObject();
+            delta.put("type", Protocol.PRESENCE_DELTA);
+            delta.put("seq", seq);
+            JSONArray users = new JSONArray();
+            for (Entry entry : pendingChanges.values()) {
+                users.put(entry.toJson());
+            }
+            delta.put("users", users);
+            pendingChanges.clear();
+
+            // Serialize 1 lần mỗi dạng (JSON / nhị phân), cùng 1 mảng byte cho mọi người nhận.
+            // Client chậm có thể bị bỏ delta, nó sẽ thấy hụt seq và xin snapshot
+            byte[] jsonFrame = Connection.encodeLine(delta.toString());
+            byte[] binaryFrame = null;
+            for (ClientHandler handler : online) {
+                if (handler.supportsBinary()) {
+                    if (binaryFrame == null) {
+                        binaryFrame = WireCodec.encode(delta);
+                        if (binaryFrame == null) binaryFrame = jsonFrame;
+                    }
+                    handler.sendDroppable(binaryFrame);
+                } else {
+                    handler.sendDroppable(jsonFrame);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Entry của các user online ở shard này (gửi cho shard khác qua ShardRouter), kèm total_wins để sắp xếp
+     */
+    public JSONArray exportLocal() {
+        lock.lock();
+        try {
+            JSONArray users = new JSONArray();
+            for (Integer userId : localIds) {
+                Entry entry = entries.get(userId);
+                if (entry != null) {
+                    users.put(entry.toJson().put("total_wins", entry.totalWins));
+                }
+            }
+            return users;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gửi snapshot đầy đủ cho 1 client (login hoặc client yêu cầu đồng bộ lại)
+     */
+    public void sendSnapshot(ClientHandler target) {
+        lock.lock();
+        try {
+            String json = snapshot();
+            target.sendEncoded(snapshotFrame(json, target.supportsBinary(), target.supportsCompression()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Snapshot ONLINE_USERS_UPDATE, sắp xếp theo điểm như bản cũ; cache lại tới khi seq đổi
+     */
+    private String snapshot() {
+        if (cachedSnapshot != null && cachedSnapshotSeq == seq && pendingChanges.isEmpty()) {
+            return cachedSnapshot;
+        }
+
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> a.totalScore != b.totalScore
+                ? Integer.compare(b.totalScore, a.totalScore)
+                : Integer.compare(b.totalWins, a.totalWins));
+
+        JSONObject response = new JSONObject();
+        response.put("type", Protocol.ONLINE_USERS_UPDATE);
+        response.put("seq", seq);
+        JSONArray users = new JSONArray();
+        for (Entry entry : sorted) {
+            users.put(entry.toJson());
+        }
+        response.put("users", users);
+
+        cachedSnapshot = response.toString();
+        cachedSnapshotPacket = response;
+        Arrays.fill(cachedSnapshotFrames, null);
+        cachedSnapshotSeq = seq;
+        return cachedSnapshot;
+    }
+
+    private byte[] snapshotFrame(String json, boolean binary, boolean deflate) {
+        int index = (binary ? 1 : 0) | (deflate ? 2 : 0);
+        byte[] frame = cachedSnapshotFrames[index];
+        if (frame != null) {
+            return frame;
+        }
+        if (deflate) {
+            byte[] plain = snapshotFrame(json, binary, false);
+            frame = plain.length >= FrameCompression.MIN_BYTES ? FrameCompression.compress(plain) : null;
+            if (frame == null) {
+                frame = plain;
+            }
+        } else if (binary) {
+            frame = WireCodec.encode(cachedSnapshotPacket);
+            if (frame == null) {
+                frame = Connection.encodeLine(json);
+            }
+        } else {
+            frame = Connection.encodeLine(json);
+        }
+        cachedSnapshotFrames[index] = frame;
+        return frame;
+    }
+
+    private void record(Entry old, Entry updated) {
+        if (!updated.equals(old)) {
+            entries.put(updated.userId, updated);
+            pendingChanges.put(updated.userId, updated);
+        }
+    }
+
+    /**
+     * Trạng thái 1 user trong roster (immutable)
+     */
+    private static final class Entry {
+        final int userId;
+        final String username;
+        final int totalScore;
+        final int totalWins; // Chỉ dùng để sắp xếp snapshot
+        final String status;
+        final String roomId;
+        final int playersCount;
+        final boolean canJoin;
+
+        Entry(int userId, String username, int totalScore, int totalWins,
+              String status, String roomId, int playersCount, boolean canJoin) {
+            this.userId = userId;
+            this.username = username;
+            this.totalScore = totalScore;
+            this.totalWins = totalWins;
+            this.status = status;
+            this.roomId = roomId;
+            this.playersCount = playersCount;
+            this.canJoin = canJoin;
+        }
+
+        Entry withStats(String username, int totalScore, int totalWins) {
+            return new Entry(userId, username, totalScore, totalWins, status, roomId, playersCount, canJoin);
+        }
+
+        Entry withPresence(String status, String roomId, int playersCount, boolean canJoin) {
+            return new Entry(userId, username, totalScore, totalWins, status, roomId, playersCount, canJoin);
+        }
+
+        static Entry fromJson(JSONObject user) {
+            JSONObject roomInfo = user.optJSONObject("room_info");
+            return new Entry(user.getInt("user_id"), user.getString("username"), user.getInt("total_score"),
+                    user.optInt("total_wins"), user.getString("status"),
+                    roomInfo != null ? roomInfo.getString("room_id") : null,
+                    roomInfo != null ? roomInfo.getInt("players_count") : 0,
+                    roomInfo != null && roomInfo.getBoolean("can_join"));
+        }
+
+        JSONObject toJson() {
+            JSONObject userObj = new JSONObject();
+            userObj.put("user_id", userId);
+            userObj.put("username", username);
+            userObj.put("total_score", totalScore);
+            userObj.put("status", status);
+            if (roomId != null) {
+                JSONObject roomInfo = new JSONObject();
+                roomInfo.put("room_id", roomId);
+                roomInfo.put("players_count", playersCount);
+                roomInfo.put("max_players", 2);
+                roomInfo.put("can_join", canJoin);
+                userObj.put("room_info", roomInfo);
+            }
+            return userObj;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Entry)) return false;
+            Entry other = (Entry) o;
+            return userId == other.userId && totalScore == other.totalScore && totalWins == other.totalWins
+                    && playersCount == other.playersCount && canJoin == other.canJoin
+                    && Objects.equals(username, other.username) && Objects.equals(status, other.status)
+                    && Objects.equals(roomId, other.roomId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, username, totalScore, status, roomId);
+        }
+    }
+}
@@ -1,23 +1,21 @@
 package server;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.Random;
-import shared.Grain;
+import shared.BoardGenerator;
+import shared.GrainStore;
 
 /**
- * Class quản lý phòng chơi
+ * Class quản lý phòng chơi. Mỗi phòng tự khóa trên chính nó (synchronized), không có lock chung
+ * cho mọi phòng: thao tác ở các phòng khác nhau không chờ nhau.
  */
 public class Room {
     private String roomId;
     private ClientHandler host;
     private ClientHandler guest;
-    private String status; // "waiting", "playing", "finished"
+    private volatile String status; // "waiting", "playing", "finished"
     private boolean hostReady;
     private boolean guestReady;
     private long createdAt;
-    private List<Grain> grains;
     private int hostScore;
     private int guestScore;
     private boolean hostFinished;
@@ -27,6 +25,15 @@ public class Room {
     private long gameStartTime;
     private boolean resultCalculated; // Flag để đảm bảo chỉ tính kết quả 1 lần
     private int totalGrains; // Tổng số hạt trong trận đấu này
+    // Trạng thái hạt do server giữ: chung tọa độ/loại hạt, mỗi người 1 bản trạng thái thu thập
+    private GrainStore hostGrains;
+    private GrainStore guestGrains;
+    private long boardSeed;
+    private int riceCount;
+    private int paddyCount;
+    // Người chơi đã gửi GRAIN_DROP -> điểm do server tính, bỏ qua điểm client tự báo
+    private boolean hostAuthoritative;
+    private boolean guestAuthoritative;
     
     public Room(String roomId, ClientHandler host) {
         this.roomId = roomId;
@@ -46,31 +53,19 @@ public class Room {
     }
     
     /**
-     * Sinh danh sách hạt ngẫu nhiên
+     * Sinh bàn hạt từ 1 seed ngẫu nhiên (BoardGenerator) - seed đủ để client dựng lại và chơi lại trận
      */
-    public List<Grain> generateGrains(int riceCount, int paddyCount) {
-        grains = new ArrayList<>();
-        Random rand = new Random();
-        int id = 0;
-        
-        // Sinh hạt gạo
-        for (int i = 0; i < riceCount; i++) {
-            int x = 50 + rand.nextInt(600);
-            int y = 100 + rand.nextInt(300);
-            grains.add(new Grain(id++, "rice", x, y));
-        }
-        
-        // Sinh hạt thóc
-        for (int i = 0; i < paddyCount; i++) {
-            int x = 50 + rand.nextInt(600);
-            int y = 100 + rand.nextInt(300);
-            grains.add(new Grain(id++, "paddy", x, y));
-        }
-        
-        // Trộn ngẫu nhiên
-        Collections.shuffle(grains);
-        
-        return grains;
+    public synchronized GrainStore generateGrains(int riceCount, int paddyCount) {
+        boardSeed = new Random().nextLong();
+        this.riceCount = riceCount;
+        this.paddyCount = paddyCount;
+        hostGrains = BoardGenerator.generate(boardSeed, riceCount, paddyCount);
+        guestGrains = hostGrains.freshCopy(); // Mỗi người chơi có 1 bản hạt riêng
+        // Client đã thỏa thuận "server_score" lúc LOGIN: điểm do server tính ngay từ GAME_START;
+        // client cũ chỉ chuyển sang khi gửi GRAIN_DROP đầu tiên
+        hostAuthoritative = host != null && host.isServerScored();
+        guestAuthoritative = guest != null && guest.isServerScored();
+        return hostGrains;
     }
     
     // BUG FIX #23: Synchronized để tránh race condition khi join room
@@ -87,6 +82,18 @@ public class Room {
         this.guest = guest;
     }
     
+    /**
+     * Check-and-set atomic cho JOIN_ROOM: 2 người vào cùng lúc thì chỉ 1 người thành guest
+     * @return false nếu phòng đã có guest, chủ phòng đã rời hoặc trận đã bắt đầu
+     */
+    public synchronized boolean tryAddGuest(ClientHandler guest) {
+        if (this.guest != null || host == null || !"waiting".equals(status)) {
+            return false;
+        }
+        this.guest = guest;
+        return true;
+    }
+    
     // BUG FIX #23: Synchronized để tránh race condition
     public synchronized void removeGuest() {
         this.guest = null;
@@ -116,7 +123,39 @@ public class Room {
         return null;
     }
     
+    /**
+     * Kiểm tra 1 lần thả hạt và cộng điểm phía server - O(1), không phụ thuộc số hạt
+     * @param riceBasket true = giỏ gạo, false = giỏ thóc
+     * @return điểm mới của player, -1 nếu hạt không tồn tại, đã thả rồi hoặc sai giỏ
+     */
+    public synchronized int applyDrop(ClientHandler player, int grainId, boolean riceBasket) {
+        GrainStore board;
+        if (player == host) {
+            board = hostGrains;
+            hostAuthoritative = true;
+        } else if (player == guest) {
+            board = guestGrains;
+            guestAuthoritative = true;
+        } else {
+            return -1;
+        }
+        if (board == null || !board.collect(grainId, riceBasket)) {
+            return -1;
+        }
+        return player == host ? ++hostScore : ++guestScore;
+    }
+    
+    /**
+     * Player này đã chuyển sang GRAIN_DROP (điểm client gửi lên không còn được tin)
+     */
+    public synchronized boolean isAuthoritative(ClientHandler player) {
+        return player == host ? hostAuthoritative : player == guest && guestAuthoritative;
+    }
+    
     public synchronized void updateScore(ClientHandler player, int newScore) {
+        if (isAuthoritative(player)) {
+            return; // Điểm đã do server tính từ GRAIN_DROP
+        }
         if (player == host) {
             hostScore = newScore;
             String name = (player.getUser() != null) ? player.getUser().getUsername() : "Unknown";
@@ -196,7 +235,10 @@ public class Room {
     public boolean isGuestReady() { return guestReady; }
     public void setGuestReady(boolean ready) { this.guestReady = ready; }
     public long getCreatedAt() { return createdAt; }
-    public List<Grain> getGrains() { return grains; }
+    public synchronized GrainStore getGrains() { return hostGrains; }
+    public synchronized long getBoardSeed() { return boardSeed; }
+    public synchronized int getRiceCount() { return riceCount; }
+    public synchronized int getPaddyCount() { return paddyCount; }
     // Synchronized score getters
     public synchronized int getHostScore() { return hostScore; }
     public synchronized int getGuestScore() { return guestScore; }
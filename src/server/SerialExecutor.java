@@ -0,0 +1,49 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Chạy các task của 1 connection tuần tự (đúng thứ tự gửi) trên một pool dùng chung
+ */
+class SerialExecutor implements Executor {
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable drainTask = this::drain; // Không tạo lambda mới mỗi lần schedule
+
+    SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+
+        // Task mới có thể được thêm giữa poll() == null và set(false)
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring: mỗi shard có VIRTUAL_NODES điểm trên vòng, key thuộc shard có điểm đầu tiên >= hash(key).
+ * Thêm/bớt 1 shard chỉ làm đổi chủ khoảng 1/N số key. Mọi shard dựng ring giống hệt nhau từ số shard
+ * nên ai cũng tự tính được roomId nằm ở đâu, không cần bảng tra chung.
+ */
+final class ShardRing {
+    private static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shardCount;
+
+    ShardRing(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Số shard không hợp lệ: " + shardCount);
+        }
+        this.shardCount = shardCount;
+        for (int shard = 0; shard < shardCount; shard++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash("shard-" + shard + "#" + v), shard);
+            }
+        }
+    }
+
+    int ownerOf(String key) {
+        if (shardCount == 1) {
+            return 0;
+        }
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(key));
+        return (entry != null ? entry : ring.firstEntry()).getValue();
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * FNV-1a 64-bit + bước trộn cuối của MurmurHash3 (roomId chỉ khác vài chữ số cuối vẫn rải đều)
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,567 @@
+package server;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import shared.Protocol;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chế độ nhiều shard: N process GameServer (thường trên cùng 1 máy, mỗi process 1 port), phòng chia theo
+ * consistent hash của roomId (ShardRing). Mỗi shard chỉ tạo roomId thuộc về chính nó, nên từ roomId
+ * shard nào cũng biết phòng nằm ở đâu.
+ *
+ * Giữa các shard là link TCP loopback gửi dòng JSON:
+ * - SHARD_PRESENCE: danh sách user online của shard gửi đi (gộp vào roster của shard nhận)
+ * - SHARD_DELIVER: chuyển 1 message cho user đang kết nối ở shard nhận (lời mời, INVITE_DECLINED...)
+ * - SHARD_INVITE_DECLINED: người được mời từ chối, shard giữ phòng gỡ lời mời và báo người mời
+ * Dòng đầu tiên của mỗi link là SHARD_HELLO ký HMAC (shard id + thời điểm + nonce) bằng server.shard.secret,
+ * sai chữ ký / quá hạn / nonce đã dùng thì đóng link ngay (process lạ trên máy không giả được message của shard).
+ * Vào phòng ở shard khác: client nhận REDIRECT (port + handoff token ký HMAC) rồi kết nối lại shard đó.
+ *
+ * Cấu hình (system property): server.shard.ports=8888,8889,8890 (port client của từng shard),
+ * server.shard.id=0..N-1, server.shard.secret (bắt buộc, khóa bí mật chung để ký token và HELLO), server.shard.peer.offset (mặc định 1000:
+ * port link = port client + offset), server.shard.public.host (host trả cho client khi redirect, mặc định giữ host cũ).
+ * Không cấu hình thì chỉ có 1 shard (port server.port, mặc định 8888) và router không làm gì.
+ */
+class ShardRouter {
+    private static final String PEER_HELLO = "SHARD_HELLO";
+    private static final String PEER_PRESENCE = "SHARD_PRESENCE";
+    private static final String PEER_DELIVER = "SHARD_DELIVER";
+    private static final String PEER_INVITE_DECLINED = "SHARD_INVITE_DECLINED";
+    private static final long HANDOFF_TTL_MS = 30000;
+    private static final long RECONNECT_MS = 2000;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final GameServer server;
+    private final TimerWheel timers;
+    private final int shardId;
+    private final int[] clientPorts;
+    private final int peerOffset;
+    private final String peerHost;
+    private final String publicHost;
+    private final byte[] secret;
+    private final ShardRing ring;
+    private final PeerLink[] links; // Link đi tới từng shard (index = shard id), null ở vị trí của chính mình
+    // shard -> userId -> entry roster (cùng format PRESENCE_DELTA), thay nguyên khối mỗi lần nhận SHARD_PRESENCE
+    private final Map<Integer, Map<Integer, JSONObject>> remotePresence = new ConcurrentHashMap<>();
+    private final Map<String, TimerWheel.Timer> usedTokens = new ConcurrentHashMap<>(); // Token 1 lần, nhớ tới khi hết hạn
+    private final Map<String, TimerWheel.Timer> usedHelloNonces = new ConcurrentHashMap<>(); // Chặn gửi lại HELLO cũ
+    private final SecureRandom random = new SecureRandom();
+    private volatile String lastPublished; // SHARD_PRESENCE gần nhất (gửi lại khi link kết nối lại)
+    private ServerSocket peerSocket;
+    private volatile boolean running = true;
+
+    private ShardRouter(GameServer server, TimerWheel timers, int shardId, int[] clientPorts, int peerOffset,
+                        String peerHost, String publicHost, String secret) {
+        if (shardId < 0 || shardId >= clientPorts.length) {
+            throw new IllegalArgumentException("server.shard.id ngoài khoảng 0.." + (clientPorts.length - 1) + ": " + shardId);
+        }
+        this.server = server;
+        this.timers = timers;
+        this.shardId = shardId;
+        this.clientPorts = clientPorts;
+        this.peerOffset = peerOffset;
+        this.peerHost = peerHost;
+        this.publicHost = publicHost;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.ring = new ShardRing(clientPorts.length);
+        this.links = new PeerLink[clientPorts.length];
+        for (int shard = 0; shard < clientPorts.length; shard++) {
+            if (shard != shardId) {
+                links[shard] = new PeerLink(shard);
+            }
+        }
+    }
+
+    static ShardRouter fromSystemProperties(GameServer server, TimerWheel timers) {
+        String ports = System.getProperty("server.shard.ports");
+        if (ports == null || ports.isBlank()) {
+            int port = Integer.getInteger("server.port", 8888);
+            return new ShardRouter(server, timers, 0, new int[] {port}, 0, null, null, "");
+        }
+        String[] parts = ports.split(",");
+        int[] clientPorts = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            clientPorts[i] = Integer.parseInt(parts[i].trim());
+        }
+        // Không có khóa mặc định: client ký được token handoff thì đăng nhập được vào user bất kỳ không cần mật khẩu,
+        // nên khóa không được suy ra từ cấu hình công khai (danh sách port)
+        String secret = System.getProperty("server.shard.secret");
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalStateException("Chế độ nhiều shard cần server.shard.secret (khóa bí mật chung, ví dụ: openssl rand -hex 32)");
+        }
+        return new ShardRouter(server, timers, Integer.getInteger("server.shard.id", 0), clientPorts,
+                Integer.getInteger("server.shard.peer.offset", 1000),
+                System.getProperty("server.shard.peer.host", "127.0.0.1"),
+                System.getProperty("server.shard.public.host"), secret);
+    }
+
+    boolean isSharded() {
+        return clientPorts.length > 1;
+    }
+
+    int getShardId() {
+        return shardId;
+    }
+
+    int getShardCount() {
+        return clientPorts.length;
+    }
+
+    int getClientPort() {
+        return clientPorts[shardId];
+    }
+
+    int ownerOf(String roomId) {
+        return ring.ownerOf(roomId);
+    }
+
+    boolean isLocal(String roomId) {
+        return ring.ownerOf(roomId) == shardId;
+    }
+
+    // ==================== PEER LINKS ====================
+
+    /**
+     * Mở port link và bắt đầu kết nối tới các shard khác (thử lại mỗi RECONNECT_MS)
+     */
+    void start(ScheduledExecutorService scheduler) throws IOException {
+        if (!isSharded()) {
+            return;
+        }
+        peerSocket = new ServerSocket();
+        peerSocket.setReuseAddress(true);
+        peerSocket.bind(new InetSocketAddress(peerHost, getClientPort() + peerOffset));
+        Thread acceptor = new Thread(this::acceptPeers, "shard-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (PeerLink link : links) {
+                if (link != null) {
+                    link.ensureConnected();
+                }
+            }
+        }, 0, RECONNECT_MS, TimeUnit.MILLISECONDS);
+        System.out.println("🧩 Shard " + shardId + "/" + clientPorts.length + ": client port " + getClientPort()
+                + ", link port " + (getClientPort() + peerOffset));
+    }
+
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket socket = peerSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readPeer(socket), "shard-in-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Lỗi accept link shard: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * HELLO ký HMAC "shard:ts:nonce" bằng khóa chung: shard gửi đi ký lúc kết nối, shard nhận kiểm tra
+     */
+    private JSONObject signedHello() {
+        long ts = System.currentTimeMillis();
+        String nonce = Long.toHexString(random.nextLong());
+        JSONObject hello = new JSONObject();
+        hello.put("type", PEER_HELLO);
+        hello.put("shard", shardId);
+        hello.put("ts", ts);
+        hello.put("nonce", nonce);
+        hello.put("sig", sign(shardId + ":" + ts + ":" + nonce));
+        return hello;
+    }
+
+    /**
+     * Kiểm tra chữ ký, thời điểm (lệch tối đa HANDOFF_TTL_MS) và nonce chưa dùng của HELLO
+     * @return shard id của link, -1 nếu không hợp lệ
+     */
+    private int verifyHello(JSONObject hello) {
+        if (!PEER_HELLO.equals(hello.optString("type"))) {
+            return -1;
+        }
+        int shard = hello.optInt("shard", -1);
+        long ts = hello.optLong("ts", 0);
+        String nonce = hello.optString("nonce", "");
+        String sig = hello.optString("sig", "");
+        if (shard < 0 || shard >= clientPorts.length || shard == shardId || nonce.isEmpty()) {
+            return -1;
+        }
+        if (!MessageDigest.isEqual(sign(shard + ":" + ts + ":" + nonce).getBytes(StandardCharsets.UTF_8),
+                sig.getBytes(StandardCharsets.UTF_8))) {
+            return -1;
+        }
+        if (Math.abs(System.currentTimeMillis() - ts) > HANDOFF_TTL_MS) {
+            return -1;
+        }
+        String key = shard + ":" + nonce;
+        TimerWheel.Timer timer = timers.schedule(HANDOFF_TTL_MS * 2, t -> usedHelloNonces.remove(key, t));
+        if (usedHelloNonces.putIfAbsent(key, timer) != null) {
+            timer.cancel();
+            return -1; // HELLO bị gửi lại
+        }
+        return shard;
+    }
+
+    /**
+     * Đọc message từ 1 shard khác; link đứt thì coi mọi user của shard đó là offline
+     */
+    private void readPeer(Socket socket) {
+        int fromShard = -1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            fromShard = line == null ? -1 : verifyHello(new JSONObject(line));
+            if (fromShard < 0) {
+                System.err.println("⚠️ Từ chối link shard từ " + socket.getRemoteSocketAddress() + ": " + PEER_HELLO + " không hợp lệ");
+                return;
+            }
+            while ((line = reader.readLine()) != null) {
+                handlePeerMessage(fromShard, new JSONObject(line));
+            }
+        } catch (Exception e) {
+            if (running) {
+                System.err.println("⚠️ Link từ shard " + fromShard + " bị đóng: " + e.getMessage());
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            if (fromShard >= 0 && remotePresence.remove(fromShard) != null) {
+                server.broadcastAllUsers();
+            }
+        }
+    }
+
+    private void handlePeerMessage(int fromShard, JSONObject message) {
+        switch (message.getString("type")) {
+            case PEER_PRESENCE: {
+                Map<Integer, JSONObject> users = new ConcurrentHashMap<>();
+                JSONArray array = message.getJSONArray("users");
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject user = array.getJSONObject(i);
+                    users.put(user.getInt("user_id"), user);
+                }
+                remotePresence.put(fromShard, users);
+                server.broadcastAllUsers();
+                break;
+            }
+            case PEER_DELIVER: {
+                ClientHandler target = server.getClientHandler(String.valueOf(message.getInt("to_user_id")));
+                if (target != null && target.isConnected()) {
+                    target.sendMessage(message.getString("message"));
+                }
+                break;
+            }
+            case PEER_INVITE_DECLINED:
+                server.onInviteDeclined(String.valueOf(message.getInt("from_user_id")),
+                        String.valueOf(message.getInt("to_user_id")), message.getString("room_id"),
+                        message.getString("username"));
+                break;
+            default:
+                System.err.println("⚠️ Message link không rõ từ shard " + fromShard + ": " + message.getString("type"));
+        }
+    }
+
+    /**
+     * Link đi tới 1 shard: 1 thread ghi riêng, caller không bao giờ chờ I/O của link.
+     * Mất kết nối thì message bị bỏ; presence được gửi lại đầy đủ khi kết nối lại
+     */
+    private final class PeerLink {
+        private final int shard;
+        private final ExecutorService writer;
+        private Socket socket; // Chỉ thread writer dùng
+        private OutputStream out;
+        private long lastFailure = 0;
+
+        PeerLink(int shard) {
+            this.shard = shard;
+            this.writer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "shard-link-" + shard);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        void send(String line) {
+            writer.execute(() -> {
+                if (connect()) {
+                    write(line);
+                }
+            });
+        }
+
+        void ensureConnected() {
+            writer.execute(this::connect);
+        }
+
+        private boolean connect() {
+            if (out != null) {
+                return true;
+            }
+            if (System.currentTimeMillis() - lastFailure < RECONNECT_MS) {
+                return false; // Shard kia đang down, không thử lại liên tục
+            }
+            try {
+                socket = new Socket();
+                socket.connect(new InetSocketAddress(peerHost, clientPorts[shard] + peerOffset), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                write(signedHello().toString());
+                String presence = lastPublished;
+                if (presence != null) {
+                    write(presence);
+                }
+                System.out.println("🔗 Đã kết nối link tới shard " + shard);
+                return out != null;
+            } catch (IOException e) {
+                lastFailure = System.currentTimeMillis();
+                close();
+                return false;
+            }
+        }
+
+        private void write(String line) {
+            try {
+                out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("⚠️ Mất link tới shard " + shard + ": " + e.getMessage());
+                lastFailure = System.currentTimeMillis();
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ignored) {
+            }
+            socket = null;
+            out = null;
+        }
+
+        void shutdown() {
+            writer.execute(this::close);
+            writer.shutdown();
+        }
+    }
+
+    private void sendTo(int shard, JSONObject message) {
+        PeerLink link = links[shard];
+        if (link != null) {
+            link.send(message.toString());
+        }
+    }
+
+    // ==================== PRESENCE ====================
+
+    /**
+     * Gửi danh sách user online của shard này cho các shard khác (bỏ qua nếu không đổi so với lần trước)
+     */
+    void publishPresence(JSONArray localUsers) {
+        if (!isSharded()) {
+            return;
+        }
+        JSONObject message = new JSONObject();
+        message.put("type", PEER_PRESENCE);
+        message.put("users", localUsers);
+        String line = message.toString();
+        if (line.equals(lastPublished)) {
+            return;
+        }
+        lastPublished = line;
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.send(line);
+            }
+        }
+    }
+
+    /**
+     * User đang online ở các shard khác (entry roster), để PresenceRoster gộp chung
+     */
+    Collection<JSONObject> getRemoteUsers() {
+        if (remotePresence.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<JSONObject> users = new ArrayList<>();
+        for (Map<Integer, JSONObject> shardUsers : remotePresence.values()) {
+            users.addAll(shardUsers.values());
+        }
+        return users;
+    }
+
+    /**
+     * @return entry roster của user nếu đang online ở shard khác, null nếu không
+     */
+    JSONObject getRemoteUser(int userId) {
+        for (Map<Integer, JSONObject> shardUsers : remotePresence.values()) {
+            JSONObject user = shardUsers.get(userId);
+            if (user != null) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private int shardOfUser(int userId) {
+        for (Map.Entry<Integer, Map<Integer, JSONObject>> entry : remotePresence.entrySet()) {
+            if (entry.getValue().containsKey(userId)) {
+                return entry.getKey();
+            }
+        }
+        return -1;
+    }
+
+    // ==================== ROUTING ====================
+
+    /**
+     * Chuyển 1 message cho user đang kết nối ở shard khác
+     * @return false nếu user không online ở shard nào khác
+     */
+    boolean deliver(int userId, String message) {
+        int shard = shardOfUser(userId);
+        if (shard < 0) {
+            return false;
+        }
+        JSONObject envelope = new JSONObject();
+        envelope.put("type", PEER_DELIVER);
+        envelope.put("to_user_id", userId);
+        envelope.put("message", message);
+        sendTo(shard, envelope);
+        return true;
+    }
+
+    /**
+     * Người được mời (ở shard này) từ chối lời mời vào phòng thuộc shard khác
+     */
+    void forwardInviteDeclined(String roomId, int fromUserId, int toUserId, String username) {
+        JSONObject message = new JSONObject();
+        message.put("type", PEER_INVITE_DECLINED);
+        message.put("room_id", roomId);
+        message.put("from_user_id", fromUserId);
+        message.put("to_user_id", toUserId);
+        message.put("username", username);
+        sendTo(ownerOf(roomId), message);
+    }
+
+    /**
+     * REDIRECT cho client: kết nối lại shard giữ phòng, đăng nhập bằng handoff token rồi gửi lại packet
+     */
+    JSONObject redirect(String roomId, int userId, JSONObject resend) {
+        int shard = ownerOf(roomId);
+        JSONObject packet = new JSONObject();
+        packet.put("type", Protocol.REDIRECT);
+        if (publicHost != null) {
+            packet.put("host", publicHost);
+        }
+        packet.put("port", clientPorts[shard]);
+        packet.put("handoff_token", issueHandoff(userId));
+        packet.put("resend", resend);
+        return packet;
+    }
+
+    // ==================== HANDOFF TOKEN ====================
+
+    /**
+     * Token "userId.hạn.HMAC": shard đích tự kiểm tra bằng khóa chung, không cần chờ message từ shard cũ
+     */
+    String issueHandoff(int userId) {
+        String payload = userId + "." + (System.currentTimeMillis() + HANDOFF_TTL_MS);
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * Kiểm tra chữ ký, hạn và dùng 1 lần
+     * @return userId, null nếu token không hợp lệ
+     */
+    Integer claimHandoff(String token) {
+        if (!isSharded()) {
+            return null; // 1 shard: không có khóa (secret rỗng), không có token nào hợp lệ
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        String payload = parts[0] + "." + parts[1];
+        if (!MessageDigest.isEqual(sign(payload).getBytes(StandardCharsets.UTF_8), parts[2].getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        try {
+            long remaining = Long.parseLong(parts[1]) - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimerWheel.Timer timer = timers.schedule(remaining, t -> usedTokens.remove(token, t));
+            if (usedTokens.putIfAbsent(token, timer) != null) {
+                timer.cancel();
+                return null; // Token đã dùng
+            }
+            return Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] digest = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 không khả dụng", e);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.shutdown();
+            }
+        }
+        try {
+            if (peerSocket != null) {
+                peerSocket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
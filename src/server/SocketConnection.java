@@ -0,0 +1,194 @@
+package server;
+
+import shared.WireDecoder;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Kết nối blocking kiểu cũ: mỗi client 1 thread đọc blocking, không có thread ghi riêng.
+ * Người gửi xếp message vào OutboundQueue rồi tryLock: ai giữ được writeLock thì ghi hộ cả loạt
+ * message đang chờ và flush 1 lần (như đường ghi thẳng của NioConnection), người khác chỉ xếp hàng rồi về.
+ */
+public class SocketConnection implements Connection {
+    private final Socket socket;
+    private final InputStream in;
+    private final WireDecoder decoder = new WireDecoder(MAX_MESSAGE_BYTES);
+    private final HotMessage hot = new HotMessage(); // Dùng lại cho mọi HEARTBEAT/SCORE_UPDATE/GRAIN_DROP
+    private final OutputStream out; // Guard bởi writeLock
+    private final OutboundQueue queue = new OutboundQueue(); // Guard bởi lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock(); // Thread đang ghi ra socket (tối đa 1)
+    private final List<ByteBuffer> pending = new ArrayList<>(); // Guard bởi writeLock
+    private volatile boolean open = true;
+
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+    }
+
+    /**
+     * Vòng đọc blocking - chạy trên thread riêng của connection
+     */
+    public void readLoop(ClientHandler handler) {
+        try {
+            WireDecoder.Sink sink = new WireDecoder.Sink() {
+                @Override
+                public void onLine(byte[] buf, int offset, int length) {
+                    if (hot.decodeLine(buf, offset, length)) {
+                        handler.handleHot(hot);
+                    } else {
+                        handler.handleMessage(new String(buf, offset, length, StandardCharsets.UTF_8));
+                    }
+                }
+
+                @Override
+                public void onFrame(int type, byte[] buf, int offset, int length) throws IOException {
+                    if (hot.decodeFrame(type, buf, offset, length)) {
+                        handler.handleHot(hot);
+                    } else {
+                        handler.handleMessage(decoder.toJson(type, buf, offset, length));
+                    }
+                }
+            };
+            byte[] chunk = new byte[8192];
+            ByteBuffer view = ByteBuffer.wrap(chunk);
+            int n;
+            while ((n = in.read(chunk)) >= 0) {
+                view.clear().limit(n);
+                decoder.feed(view, sink);
+            }
+        } catch (IOException e) {
+            System.out.println("❌ Client ngắt kết nối");
+        } finally {
+            handler.handleDisconnect();
+        }
+    }
+
+    @Override
+    public void send(String message) {
+        sendEncoded(Connection.encodeLine(message));
+    }
+
+    @Override
+    public void sendEncoded(byte[] frame) {
+        enqueue(frame, false);
+    }
+
+    @Override
+    public void sendDroppable(byte[] frame) {
+        enqueue(frame, true);
+    }
+
+    private void enqueue(byte[] frame, boolean droppable) {
+        boolean overflow;
+        lock.lock();
+        try {
+            if (!open) {
+                return;
+            }
+            overflow = !queue.offer(ByteBuffer.wrap(frame), droppable);
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            System.out.println("🐢 Client " + getRemoteAddress() + " nhận quá chậm, ngắt kết nối");
+            close(); // Vòng đọc thấy socket đóng sẽ gọi handleDisconnect
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * Ghi hết message đang chờ trên thread của người gửi. Thread khác đang ghi thì thôi:
+     * thread đó sẽ thấy message mới trước khi nhả writeLock (kiểm tra lại sau khi nhả để không sót)
+     */
+    private void drain() {
+        while (writeLock.tryLock()) {
+            try {
+                while (takePending()) {
+                    for (ByteBuffer frame : pending) {
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    }
+                    out.flush();
+                    OutboundQueue.recordBatch(pending.size());
+                    pending.clear();
+                }
+            } catch (IOException e) {
+                pending.clear();
+                close(); // Client đã ngắt - vòng đọc sẽ xử lý disconnect
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+            if (!hasQueued()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Chuyển cả loạt message đang chờ sang pending
+     * @return false nếu không còn gì để ghi
+     */
+    private boolean takePending() {
+        lock.lock();
+        try {
+            if (!open) {
+                return false;
+            }
+            ByteBuffer head;
+            while ((head = queue.peek()) != null) {
+                pending.add(head);
+                queue.removeHead();
+            }
+            return !pending.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasQueued() {
+        lock.lock();
+        try {
+            return open && !queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open && !socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            open = false;
+            queue.clear();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return String.valueOf(socket.getInetAddress());
+    }
+}
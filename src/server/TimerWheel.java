@@ -0,0 +1,182 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timing wheel: mọi hạn chờ của server (lời mời, heartbeat, cooldown phòng) là 1 timer.
+ * Thêm/hủy timer O(1) (danh sách liên kết kép trong từng slot), mỗi tick chỉ duyệt đúng 1 slot
+ * thay vì quét toàn bộ map. Timer chạy trễ khoảng 1 tick so với hạn, không bao giờ chạy sớm.
+ */
+final class TimerWheel {
+    static final long TICK_MS = Long.getLong("server.timer.tick.ms", 100);
+    private static final long TICK_NANOS = TICK_MS * 1_000_000;
+    private static final int WHEEL_SIZE = 512; // Lũy thừa của 2; 512 x 100ms = 51.2s/vòng
+
+    /**
+     * Việc cần làm khi timer đến hạn; nhận lại chính timer (để so khớp khi gỡ khỏi map)
+     */
+    interface Task {
+        void run(Timer timer);
+    }
+
+    private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+    /**
+     * 1 hạn chờ đã đăng ký; cancel() được gọi từ bất kỳ thread nào
+     */
+    final class Timer {
+        private final Task task;
+        private final long expireTick;
+        private int state = PENDING; // Guard bởi lock
+        private Timer prev, next; // Guard bởi lock
+
+        private Timer(Task task, long expireTick) {
+            this.task = task;
+            this.expireTick = expireTick;
+        }
+
+        /**
+         * @return false nếu timer đã chạy hoặc đã hủy trước đó
+         */
+        boolean cancel() {
+            return TimerWheel.this.cancel(this);
+        }
+
+        /**
+         * Số ms còn lại tới hạn (0 nếu đã tới)
+         */
+        long remainingMs() {
+            return Math.max(0, (expireTick * TICK_NANOS - elapsedNanos()) / 1_000_000);
+        }
+    }
+
+    private final Timer[] slots = new Timer[WHEEL_SIZE];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long startNanos = System.nanoTime();
+    private final List<Timer> expired = new ArrayList<>(); // Chỉ thread tick dùng
+    private long nextTick = 0; // Tick chưa xử lý kế tiếp, guard bởi lock
+    private int pending = 0;
+    private long fired = 0;
+
+    /**
+     * Cho executor gọi tick() mỗi TICK_MS (scheduleAtFixedRate không chạy chồng 2 tick)
+     */
+    void start(ScheduledExecutorService executor) {
+        executor.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    Timer schedule(long delayMs, Task task) {
+        lock.lock();
+        try {
+            // Làm tròn lên: tick t chỉ được xử lý khi đã qua t * TICK_MS
+            long deadline = elapsedNanos() + Math.max(0, delayMs) * 1_000_000;
+            long expireTick = Math.max(nextTick, (deadline + TICK_NANOS - 1) / TICK_NANOS);
+            Timer timer = new Timer(task, expireTick);
+            int slot = (int) (expireTick & (WHEEL_SIZE - 1));
+            timer.next = slots[slot];
+            if (timer.next != null) {
+                timer.next.prev = timer;
+            }
+            slots[slot] = timer;
+            pending++;
+            return timer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean cancel(Timer timer) {
+        lock.lock();
+        try {
+            if (timer.state != PENDING) {
+                return false;
+            }
+            unlink(timer);
+            timer.state = CANCELLED;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Xử lý các slot từ tick chưa xử lý tới hiện tại, chạy task đã đến hạn ngoài lock
+     */
+    void tick() {
+        lock.lock();
+        try {
+            long now = elapsedNanos() / TICK_NANOS;
+            if (now < nextTick) {
+                return;
+            }
+            // Bị trễ cả vòng (GC, máy bận) thì mỗi slot chỉ cần duyệt 1 lần
+            long steps = Math.min(now - nextTick + 1, WHEEL_SIZE);
+            for (long t = nextTick; t < nextTick + steps; t++) {
+                Timer timer = slots[(int) (t & (WHEEL_SIZE - 1))];
+                while (timer != null) {
+                    Timer following = timer.next;
+                    if (timer.expireTick <= now) {
+                        unlink(timer);
+                        timer.state = EXPIRED;
+                        expired.add(timer);
+                    }
+                    timer = following;
+                }
+            }
+            nextTick = now + 1;
+            fired += expired.size();
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = 0; i < expired.size(); i++) {
+            Timer timer = expired.get(i);
+            try {
+                timer.task.run(timer);
+            } catch (Exception e) {
+                System.err.println("Lỗi timer: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        expired.clear();
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[(int) (timer.expireTick & (WHEEL_SIZE - 1))] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = timer.next = null;
+        pending--;
+    }
+
+    private long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    int getPending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getFired() {
+        lock.lock();
+        try {
+            return fired;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
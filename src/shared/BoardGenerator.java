@@ -0,0 +1,48 @@
+package shared;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Sinh bàn hạt tất định từ seed, dùng chung cho client và server: GAME_START chỉ cần gửi
+ * seed + số hạt + VERSION, 2 bên tự dựng ra bàn giống hệt nhau (và trận đấu chơi lại được từ seed).
+ * java.util.Random có thuật toán cố định theo đặc tả Java nên cùng seed cho cùng dãy số trên mọi JVM.
+ */
+public final class BoardGenerator {
+    /**
+     * ĐỔI THUẬT TOÁN / VÙNG SINH LÀ PHẢI TĂNG VERSION. Version nằm trong capability (Protocol.CAP_BOARD_SEED)
+     * nên client khác version không thỏa thuận được và nhận danh sách hạt đầy đủ như cũ
+     */
+    public static final int VERSION = 1;
+
+    // Vùng sinh hạt trên bàn chơi
+    private static final int MIN_X = 50, RANGE_X = 600;
+    private static final int MIN_Y = 100, RANGE_Y = 300;
+
+    private BoardGenerator() {
+    }
+
+    public static GrainStore generate(long seed, int riceCount, int paddyCount) {
+        if (riceCount < 0 || paddyCount < 0) {
+            throw new IllegalArgumentException("Số hạt không hợp lệ: " + riceCount + "/" + paddyCount);
+        }
+        Random rand = new Random(seed);
+        int size = riceCount + paddyCount;
+        short[] x = new short[size];
+        short[] y = new short[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = (short) (MIN_X + rand.nextInt(RANGE_X));
+            y[i] = (short) (MIN_Y + rand.nextInt(RANGE_Y));
+        }
+        // Loại hạt: riceCount hạt gạo đầu tiên rồi xáo trộn theo id (Fisher-Yates) để thứ tự vẽ lẫn lộn
+        BitSet rice = new BitSet(size);
+        rice.set(0, riceCount);
+        for (int i = size - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            boolean tmp = rice.get(i);
+            rice.set(i, rice.get(j));
+            rice.set(j, tmp);
+        }
+        return new GrainStore(x, y, rice);
+    }
+}
@@ -0,0 +1,118 @@
+package shared;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Nén message lớn (snapshot roster, leaderboard, lịch sử) khi 2 bên đã thỏa thuận capability "deflate".
+ * Frame: header WireCodec type T_DEFLATE, payload = varint độ dài gốc + raw deflate (java.util.zip, không cần
+ * thư viện ngoài) với từ điển dựng sẵn từ tên field/giá trị hay gặp, nên cả message vài KB cũng nén tốt.
+ * Nội dung giải nén là 1 dòng JSON hoặc 1 frame nhị phân WireCodec hoàn chỉnh.
+ */
+public final class FrameCompression {
+    // Message ngắn hơn ngưỡng này gửi thẳng, nén không bõ công
+    public static final int MIN_BYTES = Integer.getInteger("server.compress.min.bytes", 1024);
+
+    /**
+     * Từ điển dùng chung 2 phía - ĐỔI NỘI DUNG LÀ ĐỔI PROTOCOL (client cũ sẽ giải nén sai).
+     * Deflate ưu tiên đoạn gần cuối từ điển nên chuỗi hay gặp nhất đặt cuối.
+     */
+    private static final byte[] DICTIONARY = (
+            "{\"type\":\"HISTORY_DATA\",\"has_more\":true,\"next_cursor\":{\"before_ts\":,\"before_id\":\"\"},"
+            + "\"matches\":[{\"player1_name\":\"\",\"player2_name\":\"\",\"player1_score\":,\"player2_score\":,"
+            + "\"created_at\":17},"
+            + "{\"type\":\"LEADERBOARD_DATA\",\"rankings\":[{\"username\":\"\",\"total_score\":,\"total_wins\":,"
+            + "\"total_losses\":,\"total_draws\":,\"win_rate\":0.0},"
+            + "{\"type\":\"ONLINE_USERS_UPDATE\",\"seq\":,\"users\":["
+            + "\"room_info\":{\"room_id\":\"ROOM_\",\"players_count\":1,\"max_players\":2,\"can_join\":true}},"
+            + "\"room_info\":{\"room_id\":\"ROOM_\",\"players_count\":2,\"max_players\":2,\"can_join\":false}},"
+            + "\"status\":\"playing\",\"status\":\"waiting\",\"status\":\"online\","
+            + "{\"user_id\":,\"username\":\"\",\"total_score\":0,\"status\":\"offline\"},"
+            + "{\"user_id\":-,\"username\":\"\",\"total_score\":,\"status\":\"offline\"},"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final int MAX_INFLATED = 16 * 1024 * 1024;
+
+    // Deflater giữ bộ nhớ native, dùng lại thay vì tạo mới mỗi message (server gửi từ nhiều thread)
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Nén 1 message (dòng JSON có/không '\n', hoặc frame nhị phân) thành frame T_DEFLATE
+     * @return frame nén, null nếu nén không nhỏ hơn bản gốc
+     */
+    public static byte[] compress(byte[] message) {
+        int length = message.length;
+        if (length > 0 && message[length - 1] == '\n') {
+            length--; // '\n' của dòng JSON không cần nén, frame đã có độ dài
+        }
+
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(message, 0, length);
+            deflater.finish();
+
+            WireCodec.Writer w = new WireCodec.Writer(length / 2 + 16);
+            w.varint(length);
+            byte[] chunk = new byte[Math.min(length + 64, 16 * 1024)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                w.bytes(chunk, 0, n);
+                if (w.size() >= message.length) {
+                    return null; // Không nhỏ hơn -> gửi bản gốc
+                }
+            }
+            return w.toFrame(WireCodec.T_DEFLATE);
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        }
+    }
+
+    /**
+     * Giải nén payload T_DEFLATE về đúng message gốc
+     * @param maxBytes giới hạn kích thước sau giải nén (chặn zip bomb)
+     * @throws IllegalArgumentException nếu dữ liệu hỏng hoặc vượt giới hạn
+     */
+    public static byte[] decompress(byte[] buf, int offset, int length, int maxBytes) {
+        WireCodec.Reader r = new WireCodec.Reader(buf, offset, length);
+        int originalLength = r.varint();
+        if (originalLength > Math.min(maxBytes, MAX_INFLATED)) {
+            throw new IllegalArgumentException("Message giải nén quá lớn: " + originalLength);
+        }
+        int start = r.position();
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(buf, start, offset + length - start);
+            byte[] out = new byte[originalLength];
+            int n = 0;
+            while (n < originalLength) {
+                int read = inflater.inflate(out, n, originalLength - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != originalLength) {
+                throw new IllegalArgumentException("Dữ liệu nén bị cắt cụt");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Dữ liệu nén hỏng: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package shared;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Danh sách hạt dạng struct-of-arrays: index chính là grain id, tọa độ lưu trong short[],
+ * loại hạt và trạng thái đã thu thập là 2 BitSet. Không tạo object cho từng hạt,
+ * kiểm tra/thu thập 1 hạt là O(1) dù bàn có bao nhiêu hạt.
+ * Grain (object) chỉ còn dùng ở GUI, đổi qua lại bằng toGrainList()/fromGrains(). Bàn mới sinh bằng BoardGenerator.
+ */
+public final class GrainStore {
+    public static final String RICE = "rice";
+    public static final String PADDY = "paddy";
+
+    private final short[] x;
+    private final short[] y;
+    private final BitSet rice; // bit set = hạt gạo, không set = thóc
+    private final BitSet collected;
+
+    GrainStore(short[] x, short[] y, BitSet rice) {
+        this.x = x;
+        this.y = y;
+        this.rice = rice;
+        this.collected = new BitSet(x.length);
+    }
+
+    /**
+     * Bản sao dùng chung tọa độ/loại hạt (không đổi sau khi sinh) nhưng có trạng thái thu thập riêng -
+     * mỗi người chơi 1 bản
+     */
+    public GrainStore freshCopy() {
+        return new GrainStore(x, y, rice);
+    }
+
+    public int size() {
+        return x.length;
+    }
+
+    public int getX(int id) {
+        return x[id];
+    }
+
+    public int getY(int id) {
+        return y[id];
+    }
+
+    public boolean isRice(int id) {
+        return rice.get(id);
+    }
+
+    public String getType(int id) {
+        return rice.get(id) ? RICE : PADDY;
+    }
+
+    public boolean isCollected(int id) {
+        return collected.get(id);
+    }
+
+    public int remaining() {
+        return x.length - collected.cardinality();
+    }
+
+    /**
+     * Thu thập 1 hạt nếu hợp lệ
+     * @param riceBasket true = giỏ gạo, false = giỏ thóc
+     * @return false nếu id không tồn tại, hạt đã thu thập rồi hoặc sai giỏ
+     */
+    public boolean collect(int id, boolean riceBasket) {
+        if (id < 0 || id >= x.length || collected.get(id) || rice.get(id) != riceBasket) {
+            return false;
+        }
+        collected.set(id);
+        return true;
+    }
+
+    // ==================== CONVERSION ====================
+
+    /**
+     * Các hạt chưa thu thập dưới dạng Grain (cho code GUI cũ)
+     */
+    public List<Grain> toGrainList() {
+        List<Grain> grains = new ArrayList<>(remaining());
+        for (int i = 0; i < x.length; i++) {
+            if (!collected.get(i)) {
+                grains.add(new Grain(i, getType(i), x[i], y[i]));
+            }
+        }
+        return grains;
+    }
+
+    /**
+     * @throws IllegalArgumentException nếu id không phải 0..n-1 hoặc bị trùng
+     */
+    public static GrainStore fromGrains(List<Grain> grains) {
+        int size = grains.size();
+        GrainStore store = new GrainStore(new short[size], new short[size], new BitSet(size));
+        BitSet seen = new BitSet(size);
+        for (Grain grain : grains) {
+            store.put(seen, grain.getId(), grain.getType(), grain.getX(), grain.getY());
+        }
+        return store;
+    }
+
+    /**
+     * Mảng "grains" của GAME_START dạng JSON (client không hỗ trợ frame nhị phân)
+     */
+    public JSONArray toJson() {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < x.length; i++) {
+            JSONObject grain = new JSONObject();
+            grain.put("id", i);
+            grain.put("type", getType(i));
+            grain.put("x", x[i]);
+            grain.put("y", y[i]);
+            array.put(grain);
+        }
+        return array;
+    }
+
+    /**
+     * @throws IllegalArgumentException nếu id không phải 0..n-1, bị trùng hoặc có field lạ
+     */
+    public static GrainStore fromJson(JSONArray array) {
+        int size = array.length();
+        GrainStore store = new GrainStore(new short[size], new short[size], new BitSet(size));
+        BitSet seen = new BitSet(size);
+        for (int i = 0; i < size; i++) {
+            JSONObject grain = array.getJSONObject(i);
+            if (grain.length() != 4) {
+                throw new IllegalArgumentException("Grain có field lạ: " + grain);
+            }
+            store.put(seen, grain.getInt("id"), grain.getString("type"), grain.getInt("x"), grain.getInt("y"));
+        }
+        return store;
+    }
+
+    private void put(BitSet seen, int id, String type, int gx, int gy) {
+        if (id < 0 || id >= x.length || seen.get(id)) {
+            throw new IllegalArgumentException("Grain id không hợp lệ: " + id);
+        }
+        if ((short) gx != gx || (short) gy != gy) {
+            throw new IllegalArgumentException("Tọa độ hạt vượt quá short: " + gx + "," + gy);
+        }
+        if (RICE.equals(type)) {
+            rice.set(id);
+        } else if (!PADDY.equals(type)) {
+            throw new IllegalArgumentException("Loại hạt không hợp lệ: " + type);
+        }
+        seen.set(id);
+        x[id] = (short) gx;
+        y[id] = (short) gy;
+    }
+
+    // ==================== WIRE FORMAT ====================
+
+    /**
+     * Dạng nén trong frame nhị phân: varint số hạt, bitmap loại hạt ((n+7)/8 byte, bit 1 = gạo),
+     * rồi toàn bộ x, toàn bộ y (mỗi giá trị 2 byte big-endian). Id là vị trí nên không cần gửi
+     */
+    void writePacked(WireCodec.Writer w) {
+        int size = x.length;
+        w.varint(size);
+        byte[] bitmap = new byte[(size + 7) / 8];
+        for (int i = rice.nextSetBit(0); i >= 0 && i < size; i = rice.nextSetBit(i + 1)) {
+            bitmap[i >> 3] |= (byte) (1 << (i & 7));
+        }
+        w.bytes(bitmap, 0, bitmap.length);
+        for (short v : x) {
+            w.raw(v >> 8);
+            w.raw(v);
+        }
+        for (short v : y) {
+            w.raw(v >> 8);
+            w.raw(v);
+        }
+    }
+
+    static GrainStore readPacked(WireCodec.Reader r) {
+        int size = r.count();
+        BitSet rice = new BitSet(size);
+        for (int i = 0; i < size; i += 8) {
+            int bits = r.raw();
+            for (int b = 0; b < 8 && i + b < size; b++) {
+                if ((bits & (1 << b)) != 0) {
+                    rice.set(i + b);
+                }
+            }
+        }
+        short[] x = new short[size];
+        short[] y = new short[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = (short) ((r.raw() << 8) | r.raw());
+        }
+        for (int i = 0; i < size; i++) {
+            y[i] = (short) ((r.raw() << 8) | r.raw());
+        }
+        return new GrainStore(x, y, rice);
+    }
+}
@@ -5,6 +5,7 @@ import java.sql.Timestamp;
 
 public class Match implements Serializable {
     private int matchId;
+    private String historyId; // _id dạng hex, dùng làm cursor phân trang
     private int player1Id;
     private int player2Id;
     private String player1Name;
@@ -21,6 +22,9 @@ public class Match implements Serializable {
     public int getMatchId() { return matchId; }
     public void setMatchId(int matchId) { this.matchId = matchId; }
     
+    public String getHistoryId() { return historyId; }
+    public void setHistoryId(String historyId) { this.historyId = historyId; }
+    
     public int getPlayer1Id() { return player1Id; }
     public void setPlayer1Id(int player1Id) { this.player1Id = player1Id; }
     
@@ -16,7 +16,8 @@ public class Protocol {
     public static final String KICK = "KICK";
     public static final String READY = "READY";
     public static final String START_GAME = "START_GAME";
-    public static final String SCORE_UPDATE = "SCORE_UPDATE";
+    public static final String SCORE_UPDATE = "SCORE_UPDATE"; // Client cũ: điểm tuyệt đối do client tự tính
+    public static final String GRAIN_DROP = "GRAIN_DROP"; // Thả 1 hạt vào giỏ, server kiểm tra và tính điểm
     public static final String FINISH = "FINISH";
     public static final String MAX_SCORE = "MAX_SCORE";
     public static final String TIMEOUT = "TIMEOUT";
@@ -34,11 +35,13 @@ public class Protocol {
     public static final String CANCEL_FIND_MATCH = "CANCEL_FIND_MATCH";
     public static final String MATCH_FOUND = "MATCH_FOUND";
     public static final String GET_ALL_USERS = "GET_ALL_USERS";
+    public static final String GET_RANK = "GET_RANK"; // Hạng của mình + K người trên/dưới
     
     // Server -> Client
     public static final String REGISTER_RESPONSE = "REGISTER_RESPONSE";
     public static final String LOGIN_RESPONSE = "LOGIN_RESPONSE";
     public static final String ONLINE_USERS_UPDATE = "ONLINE_USERS_UPDATE";
+    public static final String PRESENCE_DELTA = "PRESENCE_DELTA"; // Chỉ các user thay đổi, kèm seq
     public static final String ROOM_CREATED = "ROOM_CREATED";
     public static final String ROOM_JOINED = "ROOM_JOINED";
     public static final String PLAYER_JOINED = "PLAYER_JOINED";
@@ -56,12 +59,20 @@ public class Protocol {
     public static final String OPPONENT_FINISHED = "OPPONENT_FINISHED";
     public static final String CHAT_MESSAGE = "CHAT_MESSAGE";
     public static final String LEADERBOARD_DATA = "LEADERBOARD_DATA";
+    public static final String RANK_DATA = "RANK_DATA";
     public static final String HISTORY_DATA = "HISTORY_DATA";
     public static final String PROFILE_DATA = "PROFILE_DATA";
     public static final String UPDATE_SUCCESS = "UPDATE_SUCCESS";
     public static final String ERROR = "ERROR";
     public static final String JOIN_REQUEST_NOTIFICATION = "JOIN_REQUEST_NOTIFICATION";
     public static final String JOIN_REQUEST_RESULT = "JOIN_REQUEST_RESULT";
+    public static final String REDIRECT = "REDIRECT"; // Phòng ở shard khác: kết nối lại port đó, LOGIN bằng handoff_token, gửi lại "resend"
+    
+    // Capabilities thỏa thuận lúc LOGIN
+    public static final String CAP_BINARY = "binary"; // Frame nhị phân WireCodec cho message nóng
+    public static final String CAP_DEFLATE = "deflate"; // Nén message lớn (FrameCompression)
+    public static final String CAP_BOARD_SEED = "board_seed_v" + BoardGenerator.VERSION; // GAME_START chỉ gửi seed
+    public static final String CAP_SERVER_SCORE = "server_score"; // Điểm chỉ tính từ GRAIN_DROP, SCORE_UPDATE/final_score bị bỏ qua
     
     // Error codes
     public static final int ERR_USERNAME_EXISTS = 1001;
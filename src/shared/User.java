@@ -3,6 +3,8 @@ package shared;
 import java.io.Serializable;
 
 public class User implements Serializable {
+    public static final int DEFAULT_RATING = 1200; // Rating Elo khởi điểm (user cũ chưa có field rating)
+    
     private int userId;
     private String username;
     private int totalScore;
@@ -11,6 +13,7 @@ public class User implements Serializable {
     private int totalDraws;
     private double winRate;
     private String status; // "online", "playing", "offline"
+    private int rating = DEFAULT_RATING; // Elo, dùng để ghép trận
     
     public User() {}
     
@@ -51,6 +54,9 @@ public class User implements Serializable {
     public String getStatus() { return status; }
     public void setStatus(String status) { this.status = status; }
     
+    public int getRating() { return rating; }
+    public void setRating(int rating) { this.rating = rating; }
+    
     public int getTotalMatches() {
         return totalWins + totalLosses + totalDraws;
     }
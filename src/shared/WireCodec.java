@@ -0,0 +1,480 @@
+package shared;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Mã hóa nhị phân cho các message nóng (chỉ dùng khi 2 bên đã thỏa thuận capability "binary" lúc LOGIN).
+ * Frame: [0xFF][type 1 byte][độ dài payload int32 big-endian][payload].
+ * Byte 0xFF không bao giờ xuất hiện trong UTF-8 nên frame và dòng JSON đi chung 1 stream được.
+ * Payload dùng varint (số không âm) và zigzag (số có dấu), chuỗi = varint độ dài + UTF-8.
+ * Message nào có field lạ hoặc không thuộc danh sách dưới đây thì encode() trả null -> gửi JSON như cũ.
+ */
+public final class WireCodec {
+    public static final int FRAME_MARKER = 0xFF;
+    public static final int HEADER_SIZE = 6; // marker + type + int32 length
+
+    public static final int T_HEARTBEAT = 1;
+    public static final int T_SCORE_UPDATE = 2;
+    public static final int T_OPPONENT_SCORE = 3;
+    public static final int T_GAME_START = 4;
+    public static final int T_ONLINE_USERS_UPDATE = 5;
+    public static final int T_PRESENCE_DELTA = 6;
+    public static final int T_GRAIN_DROP = 7;
+    public static final int T_GAME_START_SEEDED = 8; // GAME_START chỉ có seed (BoardGenerator)
+    public static final int T_DEFLATE = 16; // Message bất kỳ đã nén (xem FrameCompression)
+
+    private static final String[] STATUSES = {"offline", "online", "waiting", "playing"};
+    private static final String[] GRAIN_TYPES = {GrainStore.RICE, GrainStore.PADDY}; // Chỉ số giỏ của GRAIN_DROP
+
+    private WireCodec() {
+    }
+
+    // ==================== ENCODE ====================
+
+    public static byte[] heartbeat(long timestamp) {
+        Writer w = new Writer(16);
+        w.varlong(timestamp);
+        return w.toFrame(T_HEARTBEAT);
+    }
+
+    public static byte[] scoreUpdate(int newScore) {
+        Writer w = new Writer(8);
+        w.zigzag(newScore);
+        return w.toFrame(T_SCORE_UPDATE);
+    }
+
+    public static byte[] opponentScore(int opponentScore) {
+        Writer w = new Writer(8);
+        w.zigzag(opponentScore);
+        return w.toFrame(T_OPPONENT_SCORE);
+    }
+
+    /**
+     * Payload chỉ 1 varint: (grainId << 1) | chỉ số giỏ trong GRAIN_TYPES (0 = rice, 1 = paddy)
+     */
+    public static byte[] grainDrop(int grainId, String basket) {
+        int basketIndex = indexOf(GRAIN_TYPES, basket);
+        if (grainId < 0 || basketIndex < 0) {
+            throw new IllegalArgumentException("GRAIN_DROP không hợp lệ: " + grainId + "/" + basket);
+        }
+        Writer w = new Writer(8);
+        w.varint((grainId << 1) | basketIndex);
+        return w.toFrame(T_GRAIN_DROP);
+    }
+
+    /**
+     * Encode 1 packet JSON thành frame nhị phân
+     * @return frame hoàn chỉnh, null nếu packet không có dạng nhị phân (gửi JSON thay thế)
+     */
+    public static byte[] encode(JSONObject packet) {
+        try {
+            switch (packet.optString("type")) {
+                case Protocol.HEARTBEAT:
+                    if (!onlyKeys(packet, "type", "timestamp")) return null;
+                    return heartbeat(packet.getLong("timestamp"));
+                case Protocol.SCORE_UPDATE:
+                    if (!onlyKeys(packet, "type", "new_score")) return null;
+                    return scoreUpdate(packet.getInt("new_score"));
+                case Protocol.OPPONENT_SCORE:
+                    if (!onlyKeys(packet, "type", "opponent_score")) return null;
+                    return opponentScore(packet.getInt("opponent_score"));
+                case Protocol.GRAIN_DROP:
+                    if (!onlyKeys(packet, "type", "grain_id", "basket")) return null;
+                    return grainDrop(packet.getInt("grain_id"), packet.getString("basket"));
+                case Protocol.GAME_START:
+                    return encodeGameStart(packet);
+                case Protocol.ONLINE_USERS_UPDATE:
+                    return encodeRoster(packet, T_ONLINE_USERS_UPDATE);
+                case Protocol.PRESENCE_DELTA:
+                    return encodeRoster(packet, T_PRESENCE_DELTA);
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            return null; // Sai kiểu dữ liệu -> để JSON lo
+        }
+    }
+
+    private static byte[] encodeGameStart(JSONObject packet) {
+        if (packet.has("seed")) {
+            if (!onlyKeys(packet, "type", "seed", "board_version", "rice_count", "paddy_count", "duration",
+                    "total_grains", "opponent_username") || !packet.has("opponent_username")) {
+                return null;
+            }
+            return gameStartSeeded(packet.getLong("seed"), packet.getInt("board_version"), packet.getInt("rice_count"),
+                    packet.getInt("paddy_count"), packet.getInt("duration"), packet.getString("opponent_username"));
+        }
+        if (!onlyKeys(packet, "type", "grains", "duration", "total_grains", "opponent_username")
+                || !packet.has("opponent_username")) {
+            return null;
+        }
+        GrainStore grains = GrainStore.fromJson(packet.getJSONArray("grains"));
+        return gameStart(grains, packet.getInt("duration"), packet.getInt("total_grains"),
+                packet.getString("opponent_username"));
+    }
+
+    /**
+     * GAME_START encode thẳng từ GrainStore (không dựng mảng JSON), hạt ở dạng nén của GrainStore
+     */
+    public static byte[] gameStart(GrainStore grains, int duration, int totalGrains, String opponentUsername) {
+        Writer w = new Writer(16 + grains.size() * 5);
+        w.varint(duration);
+        w.varint(totalGrains);
+        w.string(opponentUsername);
+        grains.writePacked(w);
+        return w.toFrame(T_GAME_START);
+    }
+
+    /**
+     * GAME_START dạng seed: vài chục byte bất kể số hạt, total_grains = riceCount + paddyCount
+     */
+    public static byte[] gameStartSeeded(long seed, int boardVersion, int riceCount, int paddyCount,
+                                         int duration, String opponentUsername) {
+        Writer w = new Writer(32);
+        w.varint(duration);
+        w.string(opponentUsername);
+        w.varint(boardVersion);
+        w.varlong(seed);
+        w.varint(riceCount);
+        w.varint(paddyCount);
+        return w.toFrame(T_GAME_START_SEEDED);
+    }
+
+    private static byte[] encodeRoster(JSONObject packet, int type) {
+        if (!packet.has("seq") || !onlyKeys(packet, "type", "seq", "users")) {
+            return null; // ONLINE_USERS_UPDATE kiểu cũ (không seq) giữ nguyên JSON
+        }
+        JSONArray users = packet.getJSONArray("users");
+        Writer w = new Writer(16 + users.length() * 24);
+        w.varlong(packet.getLong("seq"));
+        w.varint(users.length());
+        for (int i = 0; i < users.length(); i++) {
+            JSONObject u = users.getJSONObject(i);
+            int status = indexOf(STATUSES, u.getString("status"));
+            if (status < 0 || !onlyKeys(u, "user_id", "username", "total_score", "status", "room_info")) {
+                return null;
+            }
+            w.zigzag(u.getInt("user_id"));
+            w.string(u.getString("username"));
+            w.zigzag(u.getInt("total_score"));
+            JSONObject room = u.optJSONObject("room_info");
+            if (room == null) {
+                w.raw(status);
+                continue;
+            }
+            if (!onlyKeys(room, "room_id", "players_count", "max_players", "can_join")) {
+                return null;
+            }
+            // Bit 0x80 của byte status: có room_info, bit 0x40: can_join
+            w.raw(status | 0x80 | (room.getBoolean("can_join") ? 0x40 : 0));
+            w.string(room.getString("room_id"));
+            w.varint(room.getInt("players_count"));
+            w.varint(room.getInt("max_players"));
+        }
+        return w.toFrame(type);
+    }
+
+    // ==================== DECODE ====================
+
+    /**
+     * Như toJson nhưng nhận cả frame nén T_DEFLATE
+     * @param maxInflated kích thước tối đa sau giải nén
+     */
+    public static String toJson(int type, byte[] buf, int offset, int length, int maxInflated) {
+        if (type != T_DEFLATE) {
+            return toJson(type, buf, offset, length);
+        }
+        byte[] inner = FrameCompression.decompress(buf, offset, length, maxInflated);
+        if (inner.length >= HEADER_SIZE && (inner[0] & 0xFF) == FRAME_MARKER) {
+            int innerType = inner[1] & 0xFF;
+            if (innerType == T_DEFLATE) {
+                throw new IllegalArgumentException("Frame nén lồng nhau");
+            }
+            return toJson(innerType, inner, HEADER_SIZE, inner.length - HEADER_SIZE);
+        }
+        return new String(inner, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Đổi payload 1 frame về chuỗi JSON tương đương, để tầng trên xử lý giống hệt message JSON
+     * @throws IllegalArgumentException nếu frame hỏng hoặc type không hỗ trợ
+     */
+    public static String toJson(int type, byte[] buf, int offset, int length) {
+        Reader r = new Reader(buf, offset, length);
+        JSONObject packet = new JSONObject();
+        switch (type) {
+            case T_HEARTBEAT:
+                packet.put("type", Protocol.HEARTBEAT);
+                packet.put("timestamp", r.varlong());
+                break;
+            case T_SCORE_UPDATE:
+                packet.put("type", Protocol.SCORE_UPDATE);
+                packet.put("new_score", r.zigzag());
+                break;
+            case T_OPPONENT_SCORE:
+                packet.put("type", Protocol.OPPONENT_SCORE);
+                packet.put("opponent_score", r.zigzag());
+                break;
+            case T_GRAIN_DROP: {
+                int value = r.varint();
+                packet.put("type", Protocol.GRAIN_DROP);
+                packet.put("grain_id", value >>> 1);
+                packet.put("basket", GRAIN_TYPES[value & 1]);
+                break;
+            }
+            case T_GAME_START: {
+                packet.put("type", Protocol.GAME_START);
+                packet.put("duration", r.varint());
+                packet.put("total_grains", r.varint());
+                packet.put("opponent_username", r.string());
+                packet.put("grains", GrainStore.readPacked(r).toJson());
+                break;
+            }
+            case T_GAME_START_SEEDED: {
+                packet.put("type", Protocol.GAME_START);
+                packet.put("duration", r.varint());
+                packet.put("opponent_username", r.string());
+                packet.put("board_version", r.varint());
+                packet.put("seed", r.varlong());
+                int riceCount = r.varint();
+                int paddyCount = r.varint();
+                packet.put("rice_count", riceCount);
+                packet.put("paddy_count", paddyCount);
+                packet.put("total_grains", riceCount + paddyCount);
+                break;
+            }
+            case T_ONLINE_USERS_UPDATE:
+            case T_PRESENCE_DELTA: {
+                packet.put("type", type == T_PRESENCE_DELTA ? Protocol.PRESENCE_DELTA : Protocol.ONLINE_USERS_UPDATE);
+                packet.put("seq", r.varlong());
+                int count = r.count();
+                JSONArray users = new JSONArray();
+                for (int i = 0; i < count; i++) {
+                    JSONObject u = new JSONObject();
+                    u.put("user_id", r.zigzag());
+                    u.put("username", r.string());
+                    u.put("total_score", r.zigzag());
+                    int flags = r.raw();
+                    u.put("status", STATUSES[checkIndex(flags & 0x3F, STATUSES.length)]);
+                    if ((flags & 0x80) != 0) {
+                        JSONObject room = new JSONObject();
+                        room.put("room_id", r.string());
+                        room.put("players_count", r.varint());
+                        room.put("max_players", r.varint());
+                        room.put("can_join", (flags & 0x40) != 0);
+                        u.put("room_info", room);
+                    }
+                    users.put(u);
+                }
+                packet.put("users", users);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Frame type không hỗ trợ: " + type);
+        }
+        r.expectEnd();
+        return packet.toString();
+    }
+
+    // ==================== HELPERS ====================
+
+    private static boolean onlyKeys(JSONObject obj, String... allowed) {
+        Iterator<String> it = obj.keys();
+        while (it.hasNext()) {
+            if (indexOf(allowed, it.next()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(String[] values, String value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i].equals(value)) return i;
+        }
+        return -1;
+    }
+
+    private static int checkIndex(int index, int size) {
+        if (index >= size) {
+            throw new IllegalArgumentException("Giá trị enum không hợp lệ: " + index);
+        }
+        return index;
+    }
+
+    /**
+     * Ghi payload vào mảng tự giãn, chừa sẵn HEADER_SIZE byte đầu cho header
+     */
+    static final class Writer {
+        private byte[] buf;
+        private int pos = HEADER_SIZE;
+
+        Writer(int expectedPayload) {
+            buf = new byte[HEADER_SIZE + Math.max(expectedPayload, 8)];
+        }
+
+        void raw(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void varint(int value) {
+            varlongRaw(value & 0xFFFFFFFFL);
+        }
+
+        void zigzag(int value) {
+            varint((value << 1) ^ (value >> 31));
+        }
+
+        void varlong(long value) {
+            varlongRaw((value << 1) ^ (value >> 63));
+        }
+
+        private void varlongRaw(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            bytes(bytes, 0, bytes.length);
+        }
+
+        void bytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, buf, pos, length);
+            pos += length;
+        }
+
+        /**
+         * Kích thước frame hiện tại (cả header)
+         */
+        int size() {
+            return pos;
+        }
+
+        byte[] toFrame(int type) {
+            int length = pos - HEADER_SIZE;
+            buf[0] = (byte) FRAME_MARKER;
+            buf[1] = (byte) type;
+            buf[2] = (byte) (length >>> 24);
+            buf[3] = (byte) (length >>> 16);
+            buf[4] = (byte) (length >>> 8);
+            buf[5] = (byte) length;
+            if (pos == buf.length) {
+                return buf;
+            }
+            byte[] frame = new byte[pos];
+            System.arraycopy(buf, 0, frame, 0, pos);
+            return frame;
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                byte[] bigger = new byte[Math.max(buf.length * 2, pos + extra)];
+                System.arraycopy(buf, 0, bigger, 0, pos);
+                buf = bigger;
+            }
+        }
+    }
+
+    /**
+     * Đọc payload, mọi lỗi vượt biên đều ném IllegalArgumentException
+     */
+    static final class Reader {
+        private final byte[] buf;
+        private final int end;
+        private int pos;
+
+        Reader(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        int raw() {
+            if (pos >= end) {
+                throw new IllegalArgumentException("Frame bị cắt cụt");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        int varint() {
+            long value = varlongRaw();
+            if (value > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Varint vượt quá int");
+            }
+            return (int) value;
+        }
+
+        int zigzag() {
+            long raw = varlongRaw();
+            if (raw > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("Varint vượt quá int");
+            }
+            int value = (int) raw;
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long varlong() {
+            long raw = varlongRaw();
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+
+        private long varlongRaw() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = raw();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Varint quá dài");
+        }
+
+        /**
+         * Số phần tử của 1 danh sách - mỗi phần tử tốn ít nhất 1 byte nên không thể lớn hơn số byte còn lại
+         */
+        int count() {
+            int n = varint();
+            if (n > end - pos) {
+                throw new IllegalArgumentException("Số phần tử không hợp lệ: " + n);
+            }
+            return n;
+        }
+
+        int index(int size) {
+            return checkIndex(raw(), size);
+        }
+
+        String string() {
+            int n = varint();
+            if (n > end - pos) {
+                throw new IllegalArgumentException("Chuỗi vượt quá frame");
+            }
+            String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        void expectEnd() {
+            if (pos != end) {
+                throw new IllegalArgumentException("Thừa " + (end - pos) + " byte cuối frame");
+            }
+        }
+    }
+}
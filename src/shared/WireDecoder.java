@@ -0,0 +1,154 @@
+package shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Tách stream byte thành từng message: dòng JSON (kết thúc '\n') hoặc frame nhị phân của WireCodec
+ * (bắt đầu bằng 0xFF). Dùng lại 1 buffer cho mọi message của connection, dùng chung cho server và client.
+ */
+public class WireDecoder {
+    private static final int INITIAL_CAPACITY = 512;
+
+    private enum Mode { START, LINE, FRAME_HEADER, FRAME_BODY }
+
+    private final int maxMessageBytes; // Chặn bên kia gửi message vô hạn
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+    private Mode mode = Mode.START;
+    private int frameType;
+    private int frameLength;
+
+    /**
+     * Nhận message thô; mảng byte là buffer dùng lại của decoder, chỉ hợp lệ trong lúc gọi
+     */
+    public interface Sink {
+        void onLine(byte[] buf, int offset, int length) throws IOException;
+
+        void onFrame(int type, byte[] buf, int offset, int length) throws IOException;
+    }
+
+    public WireDecoder(int maxMessageBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+    }
+
+    /**
+     * Đọc hết dữ liệu trong input, gọi sink với chuỗi JSON của mỗi message hoàn chỉnh
+     * (frame nhị phân được đổi về JSON để tầng trên xử lý như cũ)
+     */
+    public void feed(ByteBuffer input, Consumer<String> sink) throws IOException {
+        feed(input, new Sink() {
+            @Override
+            public void onLine(byte[] buf, int offset, int length) {
+                sink.accept(new String(buf, offset, length, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void onFrame(int type, byte[] buf, int offset, int length) throws IOException {
+                sink.accept(toJson(type, buf, offset, length));
+            }
+        });
+    }
+
+    /**
+     * Đổi frame về JSON (giải nén nếu là frame T_DEFLATE), frame hỏng -> IOException để transport đóng kết nối
+     */
+    public String toJson(int type, byte[] buf, int offset, int length) throws IOException {
+        try {
+            return WireCodec.toJson(type, buf, offset, length, maxMessageBytes);
+        } catch (RuntimeException e) {
+            throw new IOException("Frame nhị phân không hợp lệ: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Như trên nhưng giao byte thô cho sink, không tạo String (đường nóng phía server)
+     */
+    public void feed(ByteBuffer input, Sink sink) throws IOException {
+        while (input.hasRemaining()) {
+            switch (mode) {
+                case START:
+                    length = 0;
+                    if ((input.get(input.position()) & 0xFF) == WireCodec.FRAME_MARKER) {
+                        input.get();
+                        mode = Mode.FRAME_HEADER;
+                    } else {
+                        mode = Mode.LINE;
+                    }
+                    break;
+                case LINE:
+                    readLine(input, sink);
+                    break;
+                case FRAME_HEADER:
+                    append(input.get());
+                    if (length == WireCodec.HEADER_SIZE - 1) {
+                        frameType = buffer[0] & 0xFF;
+                        frameLength = ((buffer[1] & 0xFF) << 24) | ((buffer[2] & 0xFF) << 16)
+                                | ((buffer[3] & 0xFF) << 8) | (buffer[4] & 0xFF);
+                        if (frameLength < 0 || frameLength > maxMessageBytes) {
+                            throw new IOException("Frame vượt quá " + maxMessageBytes + " bytes");
+                        }
+                        length = 0;
+                        ensureCapacity(frameLength);
+                        mode = Mode.FRAME_BODY;
+                        if (frameLength == 0) {
+                            emitFrame(sink);
+                        }
+                    }
+                    break;
+                case FRAME_BODY: {
+                    int n = Math.min(input.remaining(), frameLength - length);
+                    input.get(buffer, length, n);
+                    length += n;
+                    if (length == frameLength) {
+                        emitFrame(sink);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private void readLine(ByteBuffer input, Sink sink) throws IOException {
+        while (input.hasRemaining()) {
+            byte b = input.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && buffer[end - 1] == '\r') {
+                    end--;
+                }
+                if (end > 0) {
+                    sink.onLine(buffer, 0, end);
+                }
+                mode = Mode.START;
+                return;
+            }
+            append(b);
+        }
+    }
+
+    private void emitFrame(Sink sink) throws IOException {
+        mode = Mode.START;
+        sink.onFrame(frameType, buffer, 0, frameLength);
+    }
+
+    private void append(byte b) throws IOException {
+        if (length == buffer.length) {
+            if (buffer.length >= maxMessageBytes) {
+                throw new IOException("Message vượt quá " + maxMessageBytes + " bytes");
+            }
+            ensureCapacity(Math.min(buffer.length * 2, maxMessageBytes));
+        }
+        buffer[length++] = b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] bigger = new byte[capacity];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Benchmark cache user: BoundedCache (clock trên ConcurrentHashMap, giới hạn số phần tử) so với ConcurrentHashMap không giới hạn
+ * như userCache trước đây. Nhiều thread cùng get (miss thì gọi loader) / put với key lệch (vài user rất hay được đọc),
+ * keyspace lớn hơn sức chứa của cache. Không cần MongoDB: loader giả, có thể cho ngủ loadMicros để giả lập query.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" database.BoundedCacheBench [threads] [seconds] [keys] [capacity] [loadMicros]
+ */
+public class BoundedCacheBench {
+    private static final int PUT_PERCENT = 10;
+
+    private interface Cache {
+        String get(String key);
+
+        void put(String key, String value);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int keys = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int capacity = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        long loadMicros = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+        AtomicLong mapLoads = new AtomicLong();
+        Function<String, String> loader = key -> {
+            if (loadMicros > 0) {
+                long until = System.nanoTime() + loadMicros * 1000;
+                while (System.nanoTime() < until) {
+                    Thread.onSpinWait(); // Giả lập query DB
+                }
+            }
+            return "user:" + key;
+        };
+
+        Map<String, String> map = new ConcurrentHashMap<>();
+        Cache unbounded = new Cache() {
+            public String get(String key) {
+                return map.computeIfAbsent(key, k -> {
+                    mapLoads.incrementAndGet();
+                    return loader.apply(k);
+                });
+            }
+
+            public void put(String key, String value) {
+                map.put(key, value);
+            }
+        };
+        BoundedCache<String, String> bounded = new BoundedCache<>(capacity, 30 * 60 * 1000L, 0, loader);
+        Cache boundedCache = new Cache() {
+            public String get(String key) {
+                return bounded.get(key);
+            }
+
+            public void put(String key, String value) {
+                bounded.put(key, value);
+            }
+        };
+
+        System.out.printf("%d threads, %ds, %,d keys, capacity %,d, load %d us, %d%% put%n",
+                threads, seconds, keys, capacity, loadMicros, PUT_PERCENT);
+        run("ConcurrentHashMap", unbounded, threads, 2, keys); // Warm-up
+        long ops = run("ConcurrentHashMap", unbounded, threads, seconds, keys);
+        System.out.printf("ConcurrentHashMap: %,12.0f ops/sec, size %,d (không giới hạn), loads %,d%n",
+                ops / (double) seconds, map.size(), mapLoads.get());
+
+        run("BoundedCache", boundedCache, threads, 2, keys);
+        BoundedCache.Stats before = bounded.stats();
+        ops = run("BoundedCache", boundedCache, threads, seconds, keys);
+        BoundedCache.Stats after = bounded.stats();
+        long hits = after.getHits() - before.getHits();
+        long misses = after.getMisses() - before.getMisses();
+        System.out.printf("BoundedCache:      %,12.0f ops/sec, size %,d, hit %.1f%%, evictions %,d, loads %,d%n",
+                ops / (double) seconds, after.getSize(), hits * 100.0 / Math.max(1, hits + misses),
+                after.getEvictions() - before.getEvictions(), after.getLoads() - before.getLoads());
+    }
+
+    /**
+     * @return tổng số thao tác của mọi thread trong khoảng thời gian chạy
+     */
+    private static long run(String name, Cache cache, int threads, int seconds, int keys) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong total = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        long[] end = new long[1];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while ((n & 255) != 0 || System.nanoTime() < end[0]) {
+                    // Lũy thừa 3 của số ngẫu nhiên đều: key nhỏ (user hay đọc) xuất hiện nhiều hơn nhiều
+                    double u = random.nextDouble();
+                    String key = Integer.toString((int) (keys * u * u * u));
+                    if (random.nextInt(100) < PUT_PERCENT) {
+                        cache.put(key, "user:" + key);
+                    } else {
+                        cache.get(key);
+                    }
+                    n++;
+                }
+                total.addAndGet(n);
+            }, name + "-" + t);
+            workers[t].start();
+        }
+        end[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.get();
+    }
+}
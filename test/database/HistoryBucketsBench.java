@@ -0,0 +1,152 @@
+package database;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark đọc lịch sử đấu: $or trên match_history (2 compound index) so với HistoryBuckets,
+ * cho trang đầu và trang sau (keyset cursor). Cần MongoDB local; dữ liệu giả nằm trong database
+ * tam_nhat_thoc_bench (-Ddb.name để đổi), các collection bị xóa sau khi chạy. 10M trận cần vài GB đĩa.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" database.HistoryBucketsBench [matches] [users] [reads] [pageSize]
+ */
+public class HistoryBucketsBench {
+    private static final int INSERT_BATCH = 10_000;
+
+    public static void main(String[] args) {
+        long matches = args.length > 0 ? Long.parseLong(args[0]) : 1_000_000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+        int pageSize = args.length > 3 ? Integer.parseInt(args[3]) : 21; // Client lấy 20 + 1 để biết còn trang sau
+        String dbName = System.getProperty("db.name", "tam_nhat_thoc_bench");
+        String uri = System.getProperty("db.uri", "mongodb://localhost:27017");
+
+        try (MongoClient client = MongoClients.create(uri)) {
+            MongoDatabase database = client.getDatabase(dbName);
+            MongoCollection<Document> matchHistory = database.getCollection("match_history_bench");
+            HistoryBuckets buckets = new HistoryBuckets(database.getCollection("history_buckets_bench"));
+            matchHistory.drop();
+            DatabaseManager.ensureHistoryIndexes(matchHistory);
+
+            long t0 = System.nanoTime();
+            seed(matchHistory, matches, users);
+            System.out.printf("Tạo %,d trận / %,d users: %.1f s%n", matches, users, (System.nanoTime() - t0) / 1e9);
+            t0 = System.nanoTime();
+            int created = buckets.rebuild(matchHistory);
+            System.out.printf("Dựng %,d bucket: %.1f s%n", created, (System.nanoTime() - t0) / 1e9);
+
+            Random random = new Random(1);
+            report("Trang đầu, $or   ", measure(reads, random, users, id -> readOr(matchHistory, id, pageSize, null)));
+            report("Trang đầu, bucket", measure(reads, random, users, id -> buckets.read(id, pageSize, null, null)));
+            report("Trang 5, $or     ", measure(reads, random, users, id -> {
+                List<Document> page = null;
+                for (int p = 0; p < 5; p++) {
+                    page = readOr(matchHistory, id, pageSize, page == null ? null : page.get(page.size() - 1));
+                }
+                return page;
+            }));
+            report("Trang 5, bucket  ", measure(reads, random, users, id -> {
+                List<Document> page = null;
+                for (int p = 0; p < 5; p++) {
+                    Document last = page == null ? null : page.get(page.size() - 1);
+                    page = buckets.read(id, pageSize, last == null ? null : last.getDate("created_at"),
+                            last == null ? null : last.getObjectId("_id"));
+                }
+                return page;
+            }));
+
+            matchHistory.drop();
+            database.getCollection("history_buckets_bench").drop();
+        }
+    }
+
+    private interface Read {
+        List<Document> page(String userId);
+    }
+
+    /**
+     * Cùng query với DatabaseManager.getUserMatchHistory khi không bật bucket
+     */
+    private static List<Document> readOr(MongoCollection<Document> matchHistory, String userId, int limit, Document last) {
+        Bson cursor = last == null ? null : Filters.or(
+                Filters.lt("created_at", last.getDate("created_at")),
+                Filters.and(Filters.eq("created_at", last.getDate("created_at")), Filters.lt("_id", last.getObjectId("_id"))));
+        return matchHistory.find(Filters.or(player("player1_id", userId, cursor), player("player2_id", userId, cursor)))
+                .sort(Sorts.descending("created_at", "_id")).limit(limit).into(new ArrayList<>());
+    }
+
+    private static Bson player(String field, String userId, Bson cursor) {
+        return cursor == null ? Filters.eq(field, userId) : Filters.and(Filters.eq(field, userId), cursor);
+    }
+
+    /**
+     * @return độ trễ (ns) từng lần đọc, đã sort; user ngẫu nhiên (cần matches * 2 / users đủ lớn để có 5 trang)
+     */
+    private static long[] measure(int count, Random random, int users, Read read) {
+        for (int i = 0; i < Math.min(100, count); i++) {
+            read.page(userId(random.nextInt(users))); // Warm-up
+        }
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            String userId = userId(random.nextInt(users));
+            long start = System.nanoTime();
+            List<Document> page = read.page(userId);
+            latencies[i] = System.nanoTime() - start;
+            if (page == null || page.isEmpty()) {
+                throw new IllegalStateException("Không đọc được lịch sử của " + userId);
+            }
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static void report(String name, long[] sorted) {
+        System.out.printf("%s: p50 %7.3f ms, p99 %7.3f ms%n", name,
+                sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6);
+    }
+
+    private static String userId(int i) {
+        return "bench_user_" + i;
+    }
+
+    /**
+     * Trận theo thứ tự thời gian tăng dần, 2 người chơi ngẫu nhiên khác nhau
+     */
+    private static void seed(MongoCollection<Document> matchHistory, long matches, int users) {
+        Random random = new Random(42);
+        long baseTime = System.currentTimeMillis() - matches * 1000;
+        List<Document> batch = new ArrayList<>(INSERT_BATCH);
+        for (long i = 0; i < matches; i++) {
+            int p1 = random.nextInt(users);
+            int p2 = (p1 + 1 + random.nextInt(users - 1)) % users;
+            batch.add(new Document("_id", new ObjectId())
+                    .append("player1_id", userId(p1))
+                    .append("player2_id", userId(p2))
+                    .append("player1_name", "user" + p1)
+                    .append("player2_name", "user" + p2)
+                    .append("player1_score", random.nextInt(200))
+                    .append("player2_score", random.nextInt(200))
+                    .append("match_duration", 120)
+                    .append("created_at", new Date(baseTime + i * 1000)));
+            if (batch.size() == INSERT_BATCH) {
+                matchHistory.insertMany(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            matchHistory.insertMany(batch);
+        }
+    }
+}
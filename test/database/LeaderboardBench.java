@@ -0,0 +1,166 @@
+package database;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import shared.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark bảng xếp hạng trong bộ nhớ với nhiều user: thời gian nạp, top 100 / rankOf / update,
+ * và 1 kịch bản tải: nhiều thread đọc (GET_LEADERBOARD dùng payload JSON cache theo version như
+ * GameServer.getLeaderboardPayload, xen GET_RANK) trong khi 1 thread cập nhật điểm với tốc độ cố định.
+ * Chạy: java -Xmx2g -cp "build/classes:build/test-classes:lib/*" database.LeaderboardBench [users] [updates/sec] [readers] [seconds]
+ */
+public class LeaderboardBench {
+    private static final int TOP = Leaderboard.TOP_TRACKED;
+
+    private static volatile String payload;
+    private static volatile long payloadVersion = -1;
+    private static final AtomicLong rebuilds = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int updatesPerSec = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        Random random = new Random(7);
+        List<User> all = new ArrayList<>(users);
+        for (int i = 1; i <= users; i++) {
+            all.add(new User(i, "user" + i, random.nextInt(100_000), random.nextInt(500), random.nextInt(500),
+                    random.nextInt(50), 0.0, "offline"));
+        }
+        Leaderboard leaderboard = new Leaderboard();
+        long t0 = System.nanoTime();
+        leaderboard.load(all);
+        System.out.printf("Nạp %,d users: %.0f ms%n", users, (System.nanoTime() - t0) / 1e6);
+
+        // Thao tác đơn lẻ (1 thread)
+        int ops = 100_000;
+        for (int i = 0; i < ops; i++) {
+            leaderboard.rankOf(1 + random.nextInt(users)); // Warm-up
+        }
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            leaderboard.rankOf(1 + random.nextInt(users));
+        }
+        System.out.printf("rankOf: %.2f us/op%n", (System.nanoTime() - t0) / 1e3 / ops);
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops / 10; i++) {
+            leaderboard.top(TOP);
+        }
+        System.out.printf("top(%d): %.2f us/op%n", TOP, (System.nanoTime() - t0) / 1e3 / (ops / 10));
+        t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            leaderboard.update(randomUpdate(random, users));
+        }
+        System.out.printf("update: %.2f us/op%n", (System.nanoTime() - t0) / 1e3 / ops);
+        for (int i = 0; i < 3000; i++) {
+            buildPayload(leaderboard.top(TOP)); // org.json cần warm-up lâu
+        }
+        t0 = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            buildPayload(leaderboard.top(TOP));
+        }
+        System.out.printf("build payload top %d: %.2f us/op%n", TOP, (System.nanoTime() - t0) / 1e3 / 1000);
+
+        // Kịch bản tải
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long[][] latencies = new long[readers][];
+        int[] counts = new int[readers];
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            int id = r;
+            threads[r] = new Thread(() -> {
+                Random rnd = new Random(id);
+                long[] lat = new long[1 << 22];
+                int n = 0;
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    if ((n & 1) == 0) {
+                        leaderboardPayload(leaderboard);
+                    } else {
+                        leaderboard.around(1 + rnd.nextInt(users), 5);
+                    }
+                    if (n < lat.length) {
+                        lat[n] = System.nanoTime() - start;
+                    }
+                    n++;
+                }
+                latencies[id] = lat;
+                counts[id] = n;
+            }, "reader-" + r);
+            threads[r].start();
+        }
+        long updates = 0;
+        long intervalNanos = 1_000_000_000L / Math.max(1, updatesPerSec);
+        long next = System.nanoTime();
+        while (System.nanoTime() < end) {
+            leaderboard.update(randomUpdate(random, users));
+            updates++;
+            next += intervalNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            }
+        }
+        long total = 0;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<long[]> samples = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            total += counts[r];
+            samples.add(Arrays.copyOf(latencies[r], Math.min(counts[r], latencies[r].length)));
+        }
+        long[] merged = samples.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("Tải %d thread đọc + %d update/s trong %ds: %,.0f requests/sec, p50 %.1f us, p99 %.1f us, "
+                        + "%d lần build lại payload cho %d update%n",
+                readers, updatesPerSec, seconds, total / (double) seconds,
+                merged[merged.length / 2] / 1e3, merged[merged.length * 99 / 100] / 1e3, rebuilds.get(), updates);
+    }
+
+    private static User randomUpdate(Random random, int users) {
+        int userId = 1 + random.nextInt(users);
+        return new User(userId, "user" + userId, random.nextInt(100_000), random.nextInt(500),
+                random.nextInt(500), random.nextInt(50), 0.0, "offline");
+    }
+
+    /**
+     * Cùng cách cache của GameServer.getLeaderboardPayload: build lại khi top version đổi
+     */
+    private static String leaderboardPayload(Leaderboard leaderboard) {
+        long version = leaderboard.getTopVersion();
+        if (payloadVersion == version) {
+            return payload;
+        }
+        String json = buildPayload(leaderboard.top(TOP));
+        payload = json;
+        payloadVersion = version;
+        rebuilds.incrementAndGet();
+        return json;
+    }
+
+    private static String buildPayload(List<User> top) {
+        JSONObject response = new JSONObject();
+        response.put("type", "LEADERBOARD_DATA");
+        JSONArray rankings = new JSONArray();
+        for (User u : top) {
+            JSONObject userObj = new JSONObject();
+            userObj.put("username", u.getUsername());
+            userObj.put("total_score", u.getTotalScore());
+            userObj.put("total_wins", u.getTotalWins());
+            userObj.put("total_losses", u.getTotalLosses());
+            userObj.put("total_draws", u.getTotalDraws());
+            userObj.put("win_rate", u.getWinRate());
+            rankings.put(userObj);
+        }
+        response.put("rankings", rankings);
+        return response.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package database;
+
+import shared.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Kiểm tra updateUserScore không mất lượt cộng khi nhiều thread cùng cập nhật 1 user.
+ * Cần MongoDB local; chạy trên database riêng (mặc định tam_nhat_thoc_test, đổi bằng -Ddb.name), user tạm bị xóa sau khi chạy.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" database.ScoreUpdateConcurrencyCheck [threads] [updatesPerThread]
+ * Exit code 0 = không mất update, 1 = lệch số liệu hoặc không kết nối được DB.
+ */
+public class ScoreUpdateConcurrencyCheck {
+    private static final String[] RESULTS = {"win", "lose", "draw"};
+    private static final int POINTS = 7; // Thua được (7 + 1) / 2 = 4
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        if (System.getProperty("db.name") == null) {
+            System.setProperty("db.name", "tam_nhat_thoc_test");
+        }
+
+        DatabaseManager db = DatabaseManager.getInstance();
+        String username = "concurrency_" + System.currentTimeMillis();
+        if (!db.registerUser(username, "x", "")) {
+            System.err.println("❌ Không tạo được user test (MongoDB có đang chạy?)");
+            System.exit(1);
+        }
+        String userId = String.valueOf(db.getUserByUsername(username).getUserId());
+
+        // Kết quả mong đợi tính trước, độc lập với thứ tự các thread chạy
+        int expectedScore = 0;
+        int[] expectedCounts = new int[RESULTS.length];
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                String result = RESULTS[(t + i) % RESULTS.length];
+                expectedScore += DatabaseManager.effectivePoints(POINTS, result);
+                expectedCounts[(t + i) % RESULTS.length]++;
+            }
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    if (db.updateUserScore(userId, POINTS, RESULTS[(id + i) % RESULTS.length]) == null) {
+                        failures.incrementAndGet();
+                    }
+                }
+            }, "score-updater-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        long startedAt = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMs = (System.nanoTime() - startedAt) / 1_000_000;
+
+        db.clearCache(); // Đọc lại từ DB, không tin cache
+        User stored = db.getUserById(userId);
+        int total = threads * perThread;
+        double expectedWinRate = expectedCounts[0] * 100.0 / total;
+        List<String> errors = new ArrayList<>();
+        if (failures.get() > 0) errors.add(failures.get() + " lần updateUserScore trả về null");
+        if (stored == null) {
+            errors.add("không đọc lại được user " + userId);
+        } else {
+            check(errors, "total_score", expectedScore, stored.getTotalScore());
+            check(errors, "total_wins", expectedCounts[0], stored.getTotalWins());
+            check(errors, "total_losses", expectedCounts[1], stored.getTotalLosses());
+            check(errors, "total_draws", expectedCounts[2], stored.getTotalDraws());
+            if (Math.abs(stored.getWinRate() - expectedWinRate) > 1e-6) {
+                errors.add("win_rate: mong đợi " + expectedWinRate + ", DB có " + stored.getWinRate());
+            }
+        }
+        db.deleteUser(userId);
+        db.close();
+
+        System.out.println(threads + " threads x " + perThread + " updates = " + total + " updates trong " + elapsedMs + " ms");
+        if (errors.isEmpty()) {
+            System.out.println("✅ Không mất update nào");
+            System.exit(0);
+        }
+        for (String error : errors) {
+            System.out.println("❌ " + error);
+        }
+        System.exit(1);
+    }
+
+    private static void check(List<String> errors, String field, int expected, int actual) {
+        if (expected != actual) {
+            errors.add(field + ": mong đợi " + expected + ", DB có " + actual + " (mất " + (expected - actual) + ")");
+        }
+    }
+}
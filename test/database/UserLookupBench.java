@@ -0,0 +1,101 @@
+package database;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Benchmark tra user theo userId: query qua index user_id (hiện tại) so với quét cả collection so
+ * ObjectId.hashCode() (findUserDocument trước đây). Cần MongoDB local; dữ liệu giả nằm trong database
+ * tam_nhat_thoc_bench (-Ddb.name để đổi), collection bị xóa sau mỗi cỡ.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" database.UserLookupBench [10000,100000,1000000] [lookups] [scanLookups]
+ */
+public class UserLookupBench {
+    private static final int INSERT_BATCH = 10_000;
+
+    public static void main(String[] args) {
+        int[] sizes = Arrays.stream((args.length > 0 ? args[0] : "10000,100000,1000000").split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        int scanLookups = args.length > 2 ? Integer.parseInt(args[2]) : 20; // Quét 1M document rất chậm
+        String dbName = System.getProperty("db.name", "tam_nhat_thoc_bench");
+        String uri = System.getProperty("db.uri", "mongodb://localhost:27017");
+
+        try (MongoClient client = MongoClients.create(uri)) {
+            MongoCollection<Document> users = client.getDatabase(dbName).getCollection("users_lookup_bench");
+            Random random = new Random(42);
+            for (int size : sizes) {
+                users.drop();
+                DatabaseManager.ensureUserIdIndex(users);
+                int[] ids = seed(users, size);
+
+                double indexed = measure(lookups, random, ids,
+                        id -> users.find(Filters.eq("user_id", id)).first());
+                double scan = measure(Math.min(scanLookups, lookups), random, ids, id -> {
+                    for (Document doc : users.find()) {
+                        if (doc.getObjectId("_id").hashCode() == id) {
+                            return doc;
+                        }
+                    }
+                    return null;
+                });
+                System.out.printf("%,9d users: index %8.3f ms/lookup, scan %10.3f ms/lookup (x%.0f)%n",
+                        size, indexed, scan, scan / indexed);
+                users.drop();
+            }
+        }
+    }
+
+    private interface Lookup {
+        Document find(int userId);
+    }
+
+    /**
+     * @return thời gian trung bình (ms) mỗi lần tra, id ngẫu nhiên trong các user đã tạo
+     */
+    private static double measure(int count, Random random, int[] ids, Lookup lookup) {
+        for (int i = 0; i < Math.min(50, count); i++) {
+            lookup.find(ids[random.nextInt(ids.length)]); // Warm-up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (lookup.find(ids[random.nextInt(ids.length)]) == null) {
+                throw new IllegalStateException("Không tìm thấy user vừa tạo");
+            }
+        }
+        return (System.nanoTime() - start) / 1e6 / count;
+    }
+
+    private static int[] seed(MongoCollection<Document> users, int size) {
+        int[] ids = new int[size];
+        Set<Integer> used = new HashSet<>(size * 2);
+        List<Document> batch = new ArrayList<>(INSERT_BATCH);
+        for (int i = 0; i < size; i++) {
+            ObjectId objectId = new ObjectId();
+            if (!used.add(objectId.hashCode())) {
+                i--; // user_id trùng (hiếm), index unique sẽ từ chối: sinh lại
+                continue;
+            }
+            ids[i] = objectId.hashCode();
+            batch.add(new Document("_id", objectId)
+                    .append("user_id", ids[i])
+                    .append("username", "bench_" + i)
+                    .append("total_score", i % 1000));
+            if (batch.size() == INSERT_BATCH || i == size - 1) {
+                users.insertMany(batch);
+                batch.clear();
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import org.json.JSONObject;
+import shared.WireCodec;
+import shared.WireDecoder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Kiểm tra đường nóng của server (WireDecoder + HotMessage) không cấp phát bộ nhớ cho HEARTBEAT / SCORE_UPDATE /
+ * GRAIN_DROP, dạng JSON lẫn frame; in bytes/op và ns/op, so với cách cũ (String + JSONObject mỗi message).
+ * Đo bằng com.sun.management.ThreadMXBean.getThreadAllocatedBytes (HotSpot).
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" server.HotMessageAllocCheck [iterations]
+ * Exit code 0 = đường nóng không cấp phát, 1 = có cấp phát.
+ */
+public class HotMessageAllocCheck {
+    private static final double MAX_BYTES_PER_OP = 1.0; // Cho phép nhiễu của chính phép đo
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile Object sink; // Chặn JIT bỏ kết quả
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        String[] lines = {
+            "{\"type\":\"HEARTBEAT\",\"timestamp\":1760000000000}",
+            "{\"type\":\"SCORE_UPDATE\",\"new_score\":137}",
+            "{\"type\":\"GRAIN_DROP\",\"grain_id\":42,\"basket\":\"rice\"}",
+        };
+        byte[][] frames = {
+            WireCodec.heartbeat(1_760_000_000_000L),
+            WireCodec.scoreUpdate(137),
+            WireCodec.grainDrop(42, "rice"),
+        };
+
+        HotMessage message = new HotMessage();
+        WireDecoder decoder = new WireDecoder(64 * 1024);
+        int[] decoded = new int[1];
+        WireDecoder.Sink hotSink = new WireDecoder.Sink() {
+            @Override
+            public void onLine(byte[] buf, int offset, int length) {
+                if (message.decodeLine(buf, offset, length)) decoded[0]++;
+            }
+
+            @Override
+            public void onFrame(int type, byte[] buf, int offset, int length) {
+                if (message.decodeFrame(type, buf, offset, length)) decoded[0]++;
+            }
+        };
+
+        boolean ok = true;
+        System.out.printf("%-14s %-6s %12s %10s %14s %10s%n", "Message", "dạng", "hot B/op", "hot ns", "JSONObject B/op", "ns");
+        for (int i = 0; i < lines.length; i++) {
+            String name = lines[i].substring(9, lines[i].indexOf('"', 9));
+            byte[] lineBytes = (lines[i] + "\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer line = ByteBuffer.wrap(lineBytes);
+            ByteBuffer frame = ByteBuffer.wrap(frames[i]);
+
+            decoded[0] = 0;
+            double[] hotLine = measure(iterations, () -> decoder.feed(line.rewind(), hotSink));
+            double[] hotFrame = measure(iterations, () -> decoder.feed(frame.rewind(), hotSink));
+            if (decoded[0] != 4L * iterations) {
+                System.out.println("❌ " + name + ": HotMessage không nhận ra message (" + decoded[0] + " lần)");
+                ok = false;
+            }
+            double[] old = measure(iterations, () -> sink = new JSONObject(new String(lineBytes, 0, lineBytes.length - 1,
+                    StandardCharsets.UTF_8)));
+            System.out.printf("%-14s %-6s %12.1f %10.0f %14.1f %10.0f%n", name, "JSON", hotLine[0], hotLine[1], old[0], old[1]);
+            System.out.printf("%-14s %-6s %12.1f %10.0f%n", name, "frame", hotFrame[0], hotFrame[1]);
+            if (hotLine[0] > MAX_BYTES_PER_OP || hotFrame[0] > MAX_BYTES_PER_OP) {
+                System.out.println("❌ " + name + ": đường nóng cấp phát bộ nhớ");
+                ok = false;
+            }
+        }
+        if (ok) {
+            System.out.println("✅ Đường nóng không cấp phát");
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return {bytes cấp phát mỗi lần, ns mỗi lần}, đo sau 1 vòng warm-up cùng số lần (để JIT xong escape analysis)
+     */
+    private static double[] measure(int iterations, Op op) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+        return new double[]{allocated / (double) iterations, elapsed / (double) iterations};
+    }
+}
@@ -0,0 +1,130 @@
+package server;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Đo tranh chấp lock của GameServer: mỗi vòng thả N thread cùng lúc, mỗi thread làm
+ * login -> tạo phòng -> mời -> kiểm tra/gỡ lời mời -> xóa phòng -> logout (addOnlineClient ... removeOnlineClient).
+ * JFR ghi jdk.ThreadPark (ReentrantLock...) và jdk.JavaMonitorEnter (synchronized) dài hơn ngưỡng,
+ * cuối cùng gom theo class của lock + hàm của server đang chờ.
+ * GameServer() cần DatabaseManager: không có MongoDB thì vẫn chạy được nhưng khởi động mất vài phút (timeout kết nối).
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" server.LockContentionBench [threads] [rounds] [thresholdMs]
+ */
+public class LockContentionBench {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        long thresholdMs = args.length > 2 ? Long.parseLong(args[2]) : 10;
+
+        GameServer server = new GameServer(); // Không gọi start(): không mở cổng
+        System.out.println("GameServer sẵn sàng, " + threads + " thread x " + rounds + " vòng");
+
+        runRound(server, threads, rounds); // Warm-up ngoài recording: lần gọi đầu phải link lambda / record equals (có lock 1 lần)
+
+        Path file = Files.createTempFile("lock-contention", ".jfr");
+        long wallNanos = 0;
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.ThreadPark").withThreshold(Duration.ofMillis(thresholdMs)).withStackTrace();
+            recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(thresholdMs)).withStackTrace();
+            recording.start();
+            for (int round = 0; round < rounds; round++) {
+                wallNanos += runRound(server, threads, round);
+            }
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, long[]> byLock = new TreeMap<>(); // {số lần, tổng ns}
+        int skipped = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            String frame = serverFrame(event);
+            if (frame == null) {
+                skipped++; // Latch bắt đầu vòng của benchmark, thread rảnh của scheduler
+                continue;
+            }
+            boolean park = event.getEventType().getName().equals("jdk.ThreadPark");
+            RecordedClass lockClass = event.getValue(park ? "parkedClass" : "monitorClass");
+            String key = (park ? "park " : "monitor ") + (lockClass == null ? "?" : lockClass.getName()) + " @ " + frame;
+            long[] stats = byLock.computeIfAbsent(key, k -> new long[2]);
+            stats[0]++;
+            stats[1] += event.getDuration().toNanos();
+        }
+        Files.deleteIfExists(file);
+
+        long operations = (long) threads * rounds;
+        System.out.printf("%,d lượt trong %.0f ms (%.0f lượt/s)%n", operations, wallNanos / 1e6, operations / (wallNanos / 1e9));
+        System.out.printf("Chờ lock > %d ms trong code server (bỏ qua %d lần chờ ngoài server):%n", thresholdMs, skipped);
+        if (byLock.isEmpty()) {
+            System.out.println("  không có");
+        }
+        for (Map.Entry<String, long[]> entry : byLock.entrySet()) {
+            System.out.printf("  %5d lần, tổng %8.1f ms: %s%n", entry.getValue()[0], entry.getValue()[1] / 1e6, entry.getKey());
+        }
+        System.exit(0); // Thread của MongoDB driver / scheduler không tự dừng
+    }
+
+    /**
+     * @return thời gian (ns) từ lúc thả các thread tới khi thread cuối xong
+     */
+    private static long runRound(GameServer server, int threads, int round) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            String userId = String.valueOf(1_000_000 + round * threads + t);
+            String invitee = String.valueOf(2_000_000 + round * threads + t);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ClientHandler handler = new ClientHandler(new NullConnection(), server);
+                if (!server.addOnlineClient(userId, handler)) {
+                    throw new IllegalStateException("User " + userId + " đã online");
+                }
+                Room room = server.createRoom(handler);
+                server.addInvitation(userId, invitee, room.getRoomId());
+                if (!server.isInvitationValid(userId, invitee, room.getRoomId())) {
+                    throw new IllegalStateException("Mất lời mời của " + userId);
+                }
+                server.removeInvitation(userId, invitee, room.getRoomId());
+                server.removeRoom(room.getRoomId());
+                server.removeOnlineClient(userId, handler);
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Hàm đầu tiên trong package server trên stack (chỗ đang chờ lock), null nếu không có
+     */
+    private static String serverFrame(RecordedEvent event) {
+        if (event.getStackTrace() == null) {
+            return null;
+        }
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (type.startsWith("server.") && !type.startsWith(LockContentionBench.class.getName())) {
+                return type + "." + frame.getMethod().getName();
+            }
+        }
+        return null;
+    }
+}
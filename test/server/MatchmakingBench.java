@@ -0,0 +1,97 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark MatchmakingQueue: nhiều thread cùng gửi FIND_MATCH (cùng rating), đo time-to-match
+ * (từ lúc enqueue tới lúc handler ghép cặp) p50/p99 cho 1k / 10k người chơi.
+ * Không cần server hay DB: ClientHandler dựng trên NullConnection, TimerWheel chạy trên 1 scheduler riêng.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" server.MatchmakingBench [1000,10000] [threads] [arrivals/sec]
+ * arrivals/sec = 0: các thread enqueue nhanh hết mức (đo chi phí của chính hàng đợi).
+ */
+public class MatchmakingBench {
+    private static final int RATING = 1200;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = Arrays.stream((args.length > 0 ? args[0] : "1000,10000").split(","))
+                .mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int arrivalsPerSec = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        TimerWheel timers = new TimerWheel();
+        timers.start(scheduler);
+        run(timers, 2_000, threads, 0, false); // Warm-up
+        for (int players : sizes) {
+            run(timers, players, threads, arrivalsPerSec, true);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private static void run(TimerWheel timers, int players, int threads, int arrivalsPerSec, boolean print)
+            throws InterruptedException {
+        Map<ClientHandler, Long> enqueuedAt = new ConcurrentHashMap<>();
+        long[] waits = new long[players];
+        AtomicInteger matched = new AtomicInteger();
+        MatchmakingQueue queue = new MatchmakingQueue(timers, (first, second) -> {
+            long now = System.nanoTime();
+            waits[matched.getAndIncrement()] = now - enqueuedAt.get(first);
+            waits[matched.getAndIncrement()] = now - enqueuedAt.get(second);
+        });
+        List<ClientHandler> arrivals = new ArrayList<>(players);
+        for (int i = 0; i < players; i++) {
+            arrivals.add(new ClientHandler(new NullConnection(), null));
+        }
+
+        // Người thứ i vào hàng lúc start + i / arrivalsPerSec (chia đều cho các thread)
+        long intervalNanos = arrivalsPerSec > 0 ? 1_000_000_000L / arrivalsPerSec : 0;
+        CountDownLatch ready = new CountDownLatch(1);
+        long[] start = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = id; i < players; i += threads) {
+                    long due = start[0] + i * intervalNanos;
+                    while (System.nanoTime() < due) {
+                        Thread.onSpinWait();
+                    }
+                    ClientHandler player = arrivals.get(i);
+                    enqueuedAt.put(player, System.nanoTime());
+                    queue.enqueue(player, RATING);
+                }
+            }, "find-match-" + t);
+            workers[t].start();
+        }
+        start[0] = System.nanoTime();
+        ready.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start[0];
+        if (!print) {
+            return;
+        }
+
+        int n = matched.get();
+        long[] sorted = Arrays.copyOf(waits, n);
+        Arrays.sort(sorted);
+        System.out.printf("%,7d người chơi, %d thread%s: ghép %,d, time-to-match p50 %.1f us, p99 %.1f us, max %.1f ms; "
+                        + "tổng %.1f ms, còn chờ %d%n",
+                players, threads, arrivalsPerSec > 0 ? ", " + arrivalsPerSec + " người/s" : "", n,
+                sorted[n / 2] / 1e3, sorted[n * 99 / 100] / 1e3, sorted[n - 1] / 1e6, elapsed / 1e6, queue.size());
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import org.json.JSONObject;
+import shared.Protocol;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark MessageTemplates so với dựng JSONObject rồi toString() cho OPPONENT_SCORE, PLAYER_READY,
+ * INVITE_EXPIRED, ERROR: ns/message và bytes cấp phát/message (ThreadMXBean, HotSpot).
+ * Trước khi đo kiểm tra 2 cách cho ra cùng 1 object JSON (kể cả chuỗi cần escape).
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" server.MessageTemplatesBench [iterations]
+ */
+public class MessageTemplatesBench {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile Object sink; // Chặn JIT bỏ kết quả
+
+    private static final class Case {
+        final String name;
+        final Supplier<byte[]> template;
+        final Supplier<byte[]> json;
+
+        Case(String name, Supplier<byte[]> template, Supplier<byte[]> json) {
+            this.name = name;
+            this.template = template;
+            this.json = json;
+        }
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        String username = "người_chơi_\"1\"\t😀";
+        String message = "Phòng đã đầy, vui lòng thử phòng khác";
+
+        Case[] cases = {
+            new Case("OPPONENT_SCORE", () -> MessageTemplates.opponentScore(137), () -> line(new JSONObject()
+                    .put("type", Protocol.OPPONENT_SCORE).put("opponent_score", 137))),
+            new Case("OPPONENT_SCORE 9999", () -> MessageTemplates.opponentScore(9999), () -> line(new JSONObject()
+                    .put("type", Protocol.OPPONENT_SCORE).put("opponent_score", 9999))),
+            new Case("PLAYER_READY", () -> MessageTemplates.playerReady(username, true), () -> line(new JSONObject()
+                    .put("type", Protocol.PLAYER_READY).put("username", username).put("ready", true))),
+            new Case("INVITE_EXPIRED", () -> MessageTemplates.inviteExpired("652f1c0e9a1b2c3d4e5f6789"),
+                    () -> line(new JSONObject().put("type", Protocol.INVITE_EXPIRED).put("to_user", "652f1c0e9a1b2c3d4e5f6789"))),
+            new Case("ERROR", () -> MessageTemplates.error(Protocol.ERR_ROOM_FULL, message), () -> line(new JSONObject()
+                    .put("type", Protocol.ERROR).put("error_code", Protocol.ERR_ROOM_FULL).put("message", message))),
+        };
+
+        System.out.printf("%-20s %14s %12s %14s %12s%n", "Message", "template ns", "B/op", "JSONObject ns", "B/op");
+        for (Case c : cases) {
+            JSONObject fromTemplate = parse(c.template.get());
+            if (!fromTemplate.similar(parse(c.json.get()))) {
+                throw new IllegalStateException(c.name + ": template khác JSONObject: " + fromTemplate);
+            }
+            double[] template = measure(iterations, c.template);
+            double[] json = measure(iterations, c.json);
+            System.out.printf("%-20s %14.0f %12.1f %14.0f %12.1f%n", c.name, template[1], template[0], json[1], json[0]);
+        }
+    }
+
+    private static byte[] line(JSONObject packet) {
+        return (packet.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject parse(byte[] line) {
+        return new JSONObject(new String(line, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * @return {bytes cấp phát mỗi lần, ns mỗi lần}, đo sau 1 vòng warm-up cùng số lần
+     */
+    private static double[] measure(int iterations, Supplier<byte[]> op) {
+        for (int i = 0; i < iterations; i++) {
+            sink = op.get();
+        }
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = op.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - bytesBefore;
+        return new double[]{allocated / (double) iterations, elapsed / (double) iterations};
+    }
+}
@@ -0,0 +1,32 @@
+package server;
+
+/**
+ * Connection không gửi gì, để dựng ClientHandler trong benchmark mà không cần socket
+ */
+final class NullConnection implements Connection {
+    @Override
+    public void send(String message) {
+    }
+
+    @Override
+    public void sendEncoded(byte[] frame) {
+    }
+
+    @Override
+    public void sendDroppable(byte[] frame) {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return "bench";
+    }
+}
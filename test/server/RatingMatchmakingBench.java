@@ -0,0 +1,88 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark ghép cặp theo rating: người chơi vào hàng với tốc độ cố định, rating phân phối chuẩn,
+ * TimerWheel nới khoảng rating như trên server. In chênh lệch rating trung bình, thời gian chờ (trung bình,
+ * p50/p99), số người còn chờ và thống kê theo bucket (getAverageRatingGap / getAverageWaitMs / getBucketStats).
+ * Cuối cùng đo 2 người chênh 300 điểm mất bao lâu để được ghép (khoảng chấp nhận nới dần theo thời gian).
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" server.RatingMatchmakingBench [arrivals/sec] [seconds] [mean] [sd]
+ */
+public class RatingMatchmakingBench {
+    public static void main(String[] args) throws Exception {
+        int arrivalsPerSec = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int mean = args.length > 2 ? Integer.parseInt(args[2]) : 1200;
+        int sd = args.length > 3 ? Integer.parseInt(args[3]) : 300;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        TimerWheel timers = new TimerWheel();
+        timers.start(scheduler);
+
+        int players = arrivalsPerSec * seconds;
+        Map<ClientHandler, Long> enqueuedAt = new ConcurrentHashMap<>();
+        long[] waits = new long[players];
+        AtomicInteger matched = new AtomicInteger();
+        MatchmakingQueue queue = new MatchmakingQueue(timers, (first, second) -> {
+            long now = System.nanoTime();
+            waits[matched.getAndIncrement()] = now - enqueuedAt.get(first);
+            waits[matched.getAndIncrement()] = now - enqueuedAt.get(second);
+        });
+
+        Random random = new Random(11);
+        long intervalNanos = 1_000_000_000L / arrivalsPerSec;
+        long enqueueNanos = 0;
+        long next = System.nanoTime();
+        for (int i = 0; i < players; i++) {
+            int rating = (int) Math.round(mean + random.nextGaussian() * sd);
+            ClientHandler player = new ClientHandler(new NullConnection(), null);
+            long now = System.nanoTime();
+            enqueuedAt.put(player, now);
+            queue.enqueue(player, rating);
+            enqueueNanos += System.nanoTime() - now;
+            next += intervalNanos;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            }
+        }
+        Thread.sleep(MatchmakingQueue.WIDEN_STEP_MS * 2); // Cho người vào sau cùng được nới khoảng vài lần
+
+        int n = matched.get();
+        long[] sorted = Arrays.copyOf(waits, n);
+        Arrays.sort(sorted);
+        System.out.printf("%,d người (%d/s trong %ds, rating ~N(%d, %d)): enqueue %.1f us/người, ghép %,d cặp, còn chờ %d%n",
+                players, arrivalsPerSec, seconds, mean, sd, enqueueNanos / 1e3 / players, queue.getMatches(), queue.size());
+        System.out.printf("Chênh lệch rating trung bình %.1f; chờ trung bình %.0f ms, p50 %.0f ms, p99 %.0f ms%n",
+                queue.getAverageRatingGap(), queue.getAverageWaitMs(), sorted[n / 2] / 1e6, sorted[n * 99 / 100] / 1e6);
+        System.out.println("Theo bucket:");
+        for (MatchmakingQueue.BucketStats stats : queue.getBucketStats()) {
+            System.out.println("  " + stats);
+        }
+
+        // 2 người chênh 300: BASE_GAP 100, mỗi WIDEN_STEP_MS nới thêm GAP_PER_STEP
+        long expectedMs = (long) Math.ceil((300.0 - MatchmakingQueue.BASE_GAP) / MatchmakingQueue.GAP_PER_STEP)
+                * MatchmakingQueue.WIDEN_STEP_MS;
+        CountDownLatch done = new CountDownLatch(1);
+        MatchmakingQueue widening = new MatchmakingQueue(timers, (first, second) -> done.countDown());
+        long start = System.nanoTime();
+        widening.enqueue(new ClientHandler(new NullConnection(), null), 1000);
+        widening.enqueue(new ClientHandler(new NullConnection(), null), 1300);
+        if (done.await(expectedMs * 3, TimeUnit.MILLISECONDS)) {
+            System.out.printf("Chênh 300: ghép sau %.1f s (dự kiến ~%.1f s + 1 tick)%n",
+                    (System.nanoTime() - start) / 1e9, expectedMs / 1e3);
+        } else {
+            System.out.printf("Chênh 300: chưa ghép sau %.1f s%n", expectedMs * 3 / 1e3);
+        }
+        scheduler.shutdownNow();
+    }
+}
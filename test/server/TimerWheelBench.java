@@ -0,0 +1,91 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Benchmark TimerWheel với nhiều timer đang chờ (mặc định 100k, hạn 1-60s như lời mời / heartbeat):
+ * thời gian schedule / cancel, CPU mỗi tick khi timer đến hạn tự đăng ký lại (giữ số timer chờ không đổi),
+ * so với vòng quét cả map mỗi giây như các vòng dọn lời mời / kiểm tra heartbeat trước đây.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" server.TimerWheelBench [timers] [seconds]
+ */
+public class TimerWheelBench {
+    private static final int MAX_DELAY_MS = 60_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int timers = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Random random = new Random(3);
+
+        TimerWheel wheel = new TimerWheel();
+        TimerWheel.Task[] rearm = new TimerWheel.Task[1];
+        rearm[0] = timer -> wheel.schedule(1 + random.nextInt(MAX_DELAY_MS), rearm[0]);
+
+        // schedule / cancel: thêm 1 lượt timer rồi hủy hết chính lượt đó, số timer chờ của wheel giữ nguyên
+        TimerWheel.Timer[] scheduled = new TimerWheel.Timer[timers];
+        for (int round = 0; round < 3; round++) { // 2 vòng đầu để warm-up
+            long t0 = System.nanoTime();
+            for (int i = 0; i < timers; i++) {
+                scheduled[i] = wheel.schedule(1 + random.nextInt(MAX_DELAY_MS), rearm[0]);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < timers; i++) {
+                scheduled[i].cancel();
+            }
+            long t2 = System.nanoTime();
+            if (round == 2) {
+                System.out.printf("schedule: %.2f us/op, cancel: %.2f us/op%n",
+                        (t1 - t0) / 1e3 / timers, (t2 - t1) / 1e3 / timers);
+            }
+        }
+
+        for (int i = 0; i < timers; i++) {
+            wheel.schedule(1 + random.nextInt(MAX_DELAY_MS), rearm[0]);
+        }
+        System.out.printf("%,d timer đang chờ, tick %d ms, chạy %ds...%n", wheel.getPending(), TimerWheel.TICK_MS, seconds);
+
+        // Gọi tick() trên thread này (như executor của server) và đo CPU của riêng tick
+        int ticks = (int) (seconds * 1000 / TimerWheel.TICK_MS);
+        long[] cpu = new long[ticks];
+        long firedBefore = wheel.getFired();
+        for (int i = 0; i < ticks; i++) {
+            Thread.sleep(TimerWheel.TICK_MS);
+            long c0 = threads.getCurrentThreadCpuTime();
+            wheel.tick();
+            cpu[i] = threads.getCurrentThreadCpuTime() - c0;
+        }
+        long fired = wheel.getFired() - firedBefore;
+        Arrays.sort(cpu);
+        System.out.printf("TimerWheel: CPU mỗi tick p50 %.1f us, p99 %.1f us, tổng %.1f ms/s; %.0f timer chạy mỗi tick, còn %,d chờ%n",
+                cpu[ticks / 2] / 1e3, cpu[ticks * 99 / 100] / 1e3,
+                Arrays.stream(cpu).sum() / 1e6 / seconds, fired / (double) ticks, wheel.getPending());
+
+        // Cách cũ: map userId -> hạn, mỗi giây quét toàn bộ để tìm mục đã hết hạn
+        Map<String, Long> deadlines = new ConcurrentHashMap<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < timers; i++) {
+            deadlines.put("user_" + i, now + 1 + random.nextInt(MAX_DELAY_MS));
+        }
+        int sweeps = Math.max(5, seconds / 2);
+        long[] sweepCpu = new long[sweeps];
+        for (int s = 0; s < sweeps; s++) {
+            Thread.sleep(1000);
+            long c0 = threads.getCurrentThreadCpuTime();
+            long current = System.currentTimeMillis();
+            for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+                if (entry.getValue() <= current) {
+                    entry.setValue(current + 1 + random.nextInt(MAX_DELAY_MS)); // Đăng ký lại như trên
+                }
+            }
+            sweepCpu[s] = threads.getCurrentThreadCpuTime() - c0;
+        }
+        Arrays.sort(sweepCpu);
+        System.out.printf("Quét map mỗi giây (cũ): CPU mỗi lần quét p50 %.1f us, tổng %.1f ms/s%n",
+                sweepCpu[sweeps / 2] / 1e3, Arrays.stream(sweepCpu).sum() / 1e6 / sweeps);
+    }
+}
@@ -0,0 +1,240 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Load test cho transport của GameServer: mở N kết nối tới 1 server đang chạy, mỗi kết nối gửi liên tục
+ * 1 request / 1 lần chờ phản hồi, đo số kết nối giữ được, messages/sec và độ trễ round trip.
+ * Request là CREATE_ROOM khi chưa đăng nhập: server trả ERROR ngay, không đụng DB, nên đo thuần transport.
+ *
+ * So sánh trước/sau: chạy server với -Dserver.transport=thread (1 thread/client như cũ) rồi với mặc định (nio):
+ *   java -cp "build/classes:lib/*" -Dserver.transport=thread server.GameServer
+ *   java -cp "build/classes:build/test-classes:lib/*" server.TransportLoadBench 127.0.0.1 8888 2000 30
+ * Client chỉ dùng 1 thread (Selector) nên không tự thành nút thắt; nhiều kết nối cần tăng ulimit -n ở cả 2 phía.
+ *
+ * Chế độ idle: các kết nối chỉ gửi HEARTBEAT mỗi 5 giây (rải đều), thêm 100 request/giây làm probe đo độ trễ
+ * khi server đang giữ nhiều client rảnh. Truyền pid của server để lấy số thread và RSS từ /proc (Linux):
+ *   java -cp "build/classes:lib/*" -Dserver.transport=virtual server.GameServer
+ *   java -cp "build/classes:build/test-classes:lib/*" server.TransportLoadBench 127.0.0.1 8888 20000 60 idle &lt;pid&gt;
+ */
+public class TransportLoadBench {
+    private static final byte[] REQUEST = "{\"type\":\"CREATE_ROOM\"}\n".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_SAMPLES = 1 << 20;
+    private static final long HEARTBEAT_NANOS = 5_000_000_000L;
+    private static final long PROBE_NANOS = 10_000_000L;
+
+    /**
+     * Trạng thái 1 kết nối: out luôn ở chế độ đọc (dữ liệu chờ ghi), sentAt = lúc gửi request đang chờ phản hồi
+     */
+    private static final class Conn {
+        final SocketChannel channel;
+        final ByteBuffer out = ByteBuffer.allocate(1024).flip();
+        SelectionKey key;
+        long sentAt;
+        boolean alive;
+
+        Conn(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        boolean idle = args.length > 4 && args[4].equals("idle");
+        String serverPid = args.length > 5 ? args[5] : null;
+
+        Selector selector = Selector.open();
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        long[] rtt = new long[MAX_SAMPLES];
+        int samples = 0;
+        long replies = 0;
+        int connected = 0;
+        int failed = 0;
+        Conn[] conns = new Conn[connections];
+        long heartbeats = 0;
+        long probes = 0;
+
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.connect(new InetSocketAddress(host, port));
+            conns[i] = new Conn(channel);
+            conns[i].key = channel.register(selector, SelectionKey.OP_CONNECT, conns[i]);
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        long warmupEnd = start + Math.min(5, seconds / 5) * 1_000_000_000L; // Bỏ vài giây đầu (đang kết nối, JIT)
+        long measuredReplies = 0;
+        long nextReport = start + 5_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            selector.select(100);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Conn conn = (Conn) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        conn.channel.finishConnect();
+                        connected++;
+                        conn.alive = true;
+                        if (idle) {
+                            key.interestOps(SelectionKey.OP_READ);
+                        } else {
+                            send(conn, REQUEST);
+                        }
+                        continue;
+                    }
+                    if (key.isWritable()) {
+                        flush(conn, key);
+                    }
+                    if (key.isReadable()) {
+                        in.clear();
+                        int n = conn.channel.read(in);
+                        if (n < 0) {
+                            throw new IOException("server đóng kết nối");
+                        }
+                        // 1 request chỉ có 1 phản hồi: đủ 1 dòng là gửi request kế tiếp
+                        for (int i = 0; i < n; i++) {
+                            if (in.get(i) == '\n') {
+                                long now = System.nanoTime();
+                                replies++;
+                                if (now > warmupEnd) {
+                                    measuredReplies++;
+                                    if (samples < MAX_SAMPLES) {
+                                        rtt[samples++] = now - conn.sentAt;
+                                    }
+                                }
+                                if (!idle) {
+                                    send(conn, REQUEST);
+                                }
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    connected -= fail(conn);
+                    failed++;
+                }
+            }
+            long now = System.nanoTime();
+            if (idle) {
+                // Heartbeat rải đều: tới thời điểm now, tổng số heartbeat đã gửi phải là (now - start) / 5s * N
+                long due = (now - start) * connections / HEARTBEAT_NANOS;
+                for (; heartbeats < due; heartbeats++) {
+                    Conn conn = conns[(int) (heartbeats % connections)];
+                    if (conn.alive) {
+                        try {
+                            send(conn, heartbeat());
+                        } catch (IOException e) {
+                            connected -= fail(conn);
+                            failed++;
+                        }
+                    }
+                }
+                for (; probes < (now - start) / PROBE_NANOS; probes++) {
+                    Conn conn = conns[(int) (probes * 7919 % connections)];
+                    if (conn.alive) {
+                        try {
+                            send(conn, REQUEST);
+                        } catch (IOException e) {
+                            connected -= fail(conn);
+                            failed++;
+                        }
+                    }
+                }
+            }
+            if (now >= nextReport) {
+                System.out.printf("  %2ds: %d kết nối, %d phản hồi%s%n", (now - start) / 1_000_000_000L, connected, replies,
+                        serverStats(serverPid));
+                nextReport += 5_000_000_000L;
+            }
+        }
+        double measuredSeconds = (deadline - Math.max(warmupEnd, start)) / 1e9;
+        long[] sorted = Arrays.copyOf(rtt, samples);
+        Arrays.sort(sorted);
+        System.out.printf("Kết nối: %d/%d giữ được (%d lỗi)%n", connected, connections, failed);
+        if (idle) {
+            System.out.printf("Heartbeat đã gửi: %d (%.0f/sec)%s%n", heartbeats, heartbeats / (seconds * 1.0), serverStats(serverPid));
+        } else {
+            System.out.printf("Throughput: %.0f messages/sec (request + phản hồi = 1)%n", measuredReplies / measuredSeconds);
+        }
+        if (samples > 0) {
+            System.out.printf("Round trip: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                    sorted[samples / 2] / 1e6, sorted[samples * 99 / 100] / 1e6, sorted[samples - 1] / 1e6);
+        }
+        selector.close();
+    }
+
+    private static byte[] heartbeat() {
+        return ("{\"type\":\"HEARTBEAT\",\"timestamp\":" + System.currentTimeMillis() + "}\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ghi thêm data vào sau phần còn chờ trong out. Heartbeat không có phản hồi nên không đổi sentAt.
+     */
+    private static void send(Conn conn, byte[] data) throws IOException {
+        conn.out.compact();
+        conn.out.put(data).flip();
+        if (data == REQUEST) {
+            conn.sentAt = System.nanoTime();
+        }
+        flush(conn, conn.key);
+    }
+
+    private static void flush(Conn conn, SelectionKey key) throws IOException {
+        conn.channel.write(conn.out);
+        key.interestOps(conn.out.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Đóng kết nối lỗi. Trả về 1 nếu kết nối đã được tính là đang giữ (chưa kết nối được thì không tính:
+     * server hết fd / backlog đầy)
+     */
+    private static int fail(Conn conn) throws IOException {
+        int wasAlive = conn.alive ? 1 : 0;
+        conn.alive = false;
+        conn.key.cancel();
+        conn.channel.close();
+        return wasAlive;
+    }
+
+    /**
+     * Số thread và RSS của process server, đọc từ /proc/&lt;pid&gt;/status (chỉ Linux, không có pid thì bỏ qua)
+     */
+    private static String serverStats(String pid) {
+        if (pid == null) {
+            return "";
+        }
+        try {
+            String threads = "?";
+            String rss = "?";
+            for (String line : Files.readAllLines(Path.of("/proc", pid, "status"))) {
+                if (line.startsWith("Threads:")) {
+                    threads = line.substring(8).trim();
+                } else if (line.startsWith("VmRSS:")) {
+                    rss = line.substring(6).trim();
+                }
+            }
+            return ", server: " + threads + " threads, RSS " + rss;
+        } catch (IOException e) {
+            return ", server: không đọc được /proc/" + pid;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package shared;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark nén deflate (FrameCompression) cho các message lớn: tỉ lệ nén và thời gian nén / giải nén mỗi message.
+ * Dữ liệu giả cùng hình dạng với message thật của server: ONLINE_USERS_UPDATE, snapshot GET_ALL_USERS
+ * (có seq + room_info), LEADERBOARD_DATA top 100, HISTORY_DATA 50 trận. Kiểm tra giải nén ra đúng bản gốc.
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" shared.FrameCompressionBench [users] [iterations]
+ */
+public class FrameCompressionBench {
+    private static final String[] STATUSES = {"online", "waiting", "playing"};
+    private static volatile Object sink; // Chặn JIT bỏ kết quả
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+        Random random = new Random(5);
+
+        String[][] cases = {
+            {"ONLINE_USERS_UPDATE (" + users + ")", onlineUsers(random, users, false).toString()},
+            {"GET_ALL_USERS (" + users + ")", onlineUsers(random, users, true).toString()},
+            {"LEADERBOARD_DATA (top 100)", leaderboard(random, 100).toString()},
+            {"HISTORY_DATA (50 trận)", history(random, 50).toString()},
+        };
+
+        System.out.printf("%-30s %10s %10s %8s %14s %14s%n", "Message", "JSON B", "deflate B", "tỉ lệ", "nén us", "giải nén us");
+        for (String[] c : cases) {
+            byte[] plain = (c[1] + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] frame = FrameCompression.compress(plain);
+            if (frame == null) {
+                System.out.printf("%-30s %10d %10s%n", c[0], plain.length, "không nhỏ hơn");
+                continue;
+            }
+            byte[] restored = FrameCompression.decompress(frame, WireCodec.HEADER_SIZE,
+                    frame.length - WireCodec.HEADER_SIZE, Integer.MAX_VALUE);
+            if (!Arrays.equals(restored, Arrays.copyOf(plain, plain.length - 1))) {
+                throw new IllegalStateException(c[0] + ": giải nén không ra bản gốc");
+            }
+            double compressUs = time(iterations, () -> sink = FrameCompression.compress(plain));
+            double decompressUs = time(iterations, () -> sink = FrameCompression.decompress(frame, WireCodec.HEADER_SIZE,
+                    frame.length - WireCodec.HEADER_SIZE, Integer.MAX_VALUE));
+            System.out.printf("%-30s %10d %10d %7.1fx %14.1f %14.1f%n", c[0], plain.length, frame.length,
+                    plain.length / (double) frame.length, compressUs, decompressUs);
+        }
+    }
+
+    /**
+     * @return us trung bình mỗi lần, sau 1 vòng warm-up cùng số lần
+     */
+    private static double time(int iterations, Runnable op) {
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / 1e3 / iterations;
+    }
+
+    private static JSONObject onlineUsers(Random random, int count, boolean snapshot) {
+        JSONArray list = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            String status = STATUSES[random.nextInt(STATUSES.length)];
+            JSONObject user = new JSONObject();
+            user.put("user_id", random.nextInt());
+            user.put("username", "player" + random.nextInt(100_000));
+            user.put("total_score", random.nextInt(50_000));
+            user.put("status", status);
+            if (snapshot && status.equals("waiting")) {
+                JSONObject roomInfo = new JSONObject();
+                roomInfo.put("room_id", "ROOM_" + Long.toHexString(random.nextLong()));
+                roomInfo.put("players_count", 1);
+                roomInfo.put("max_players", 2);
+                roomInfo.put("can_join", true);
+                user.put("room_info", roomInfo);
+            }
+            list.put(user);
+        }
+        JSONObject response = new JSONObject();
+        response.put("type", Protocol.ONLINE_USERS_UPDATE);
+        if (snapshot) {
+            response.put("seq", 12345);
+        }
+        response.put("users", list);
+        return response;
+    }
+
+    private static JSONObject leaderboard(Random random, int count) {
+        JSONArray rankings = new JSONArray();
+        int score = 100_000;
+        for (int i = 0; i < count; i++) {
+            score -= random.nextInt(500);
+            int wins = random.nextInt(500);
+            int losses = random.nextInt(500);
+            JSONObject user = new JSONObject();
+            user.put("username", "player" + random.nextInt(100_000));
+            user.put("total_score", score);
+            user.put("total_wins", wins);
+            user.put("total_losses", losses);
+            user.put("total_draws", random.nextInt(50));
+            user.put("win_rate", wins * 100.0 / Math.max(1, wins + losses));
+            rankings.put(user);
+        }
+        JSONObject response = new JSONObject();
+        response.put("type", Protocol.LEADERBOARD_DATA);
+        response.put("rankings", rankings);
+        return response;
+    }
+
+    private static JSONObject history(Random random, int count) {
+        JSONArray matches = new JSONArray();
+        long createdAt = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            createdAt -= random.nextInt(3_600_000);
+            JSONObject match = new JSONObject();
+            match.put("player1_name", "player" + random.nextInt(100_000));
+            match.put("player2_name", "player" + random.nextInt(100_000));
+            match.put("player1_score", random.nextInt(200));
+            match.put("player2_score", random.nextInt(200));
+            match.put("created_at", createdAt);
+            matches.put(match);
+        }
+        JSONObject response = new JSONObject();
+        response.put("type", Protocol.HISTORY_DATA);
+        response.put("has_more", true);
+        response.put("next_cursor", new JSONObject().put("before_ts", createdAt).put("before_id", "652f1c0e9a1b2c3d4e5f6789"));
+        response.put("matches", matches);
+        return response;
+    }
+}
@@ -0,0 +1,107 @@
+package shared;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark frame nhị phân (WireCodec) so với JSON cho các message hay gửi nhất:
+ * số byte mỗi message, thời gian encode, thời gian decode (JSON: parse thành JSONObject;
+ * frame: WireDecoder tách frame, và đổi frame về chuỗi JSON như client làm với message không nóng).
+ * Chạy: java -cp "build/classes:build/test-classes:lib/*" shared.WireCodecBench [iterations]
+ */
+public class WireCodecBench {
+    private static volatile Object sink; // Chặn JIT bỏ kết quả
+
+    private static final class Case {
+        final String name;
+        final JSONObject packet;
+        final Supplier<byte[]> binary;
+
+        Case(String name, JSONObject packet, Supplier<byte[]> binary) {
+            this.name = name;
+            this.packet = packet;
+            this.binary = binary;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        long now = System.currentTimeMillis();
+        long seed = 123456789L;
+        GrainStore grains = BoardGenerator.generate(seed, 38, 37);
+        Case[] cases = {
+            new Case("HEARTBEAT", new JSONObject().put("type", Protocol.HEARTBEAT).put("timestamp", now),
+                    () -> WireCodec.heartbeat(now)),
+            new Case("SCORE_UPDATE", new JSONObject().put("type", Protocol.SCORE_UPDATE).put("new_score", 137),
+                    () -> WireCodec.scoreUpdate(137)),
+            new Case("OPPONENT_SCORE", new JSONObject().put("type", Protocol.OPPONENT_SCORE).put("opponent_score", 137),
+                    () -> WireCodec.opponentScore(137)),
+            new Case("GRAIN_DROP", new JSONObject().put("type", Protocol.GRAIN_DROP).put("grain_id", 42)
+                    .put("basket", GrainStore.RICE),
+                    () -> WireCodec.grainDrop(42, GrainStore.RICE)),
+            new Case("GAME_START (75 hạt)", new JSONObject().put("type", Protocol.GAME_START).put("grains", grains.toJson())
+                    .put("duration", 120).put("total_grains", 75).put("opponent_username", "player2"),
+                    () -> WireCodec.gameStart(grains, 120, 75, "player2")),
+            new Case("GAME_START (seed)", new JSONObject().put("type", Protocol.GAME_START).put("seed", seed)
+                    .put("board_version", BoardGenerator.VERSION).put("rice_count", 38).put("paddy_count", 37)
+                    .put("duration", 120).put("total_grains", 75).put("opponent_username", "player2"),
+                    () -> WireCodec.gameStartSeeded(seed, BoardGenerator.VERSION, 38, 37, 120, "player2")),
+        };
+
+        System.out.printf("%-20s %12s %12s %14s %14s %14s %14s %14s%n", "Message", "JSON bytes", "frame bytes",
+                "JSON enc ns", "frame enc ns", "JSON dec ns", "frame dec ns", "frame->JSON ns");
+        for (Case c : cases) {
+            byte[] json = (c.packet.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+            byte[] frame = c.binary.get();
+            if (!new JSONObject(WireCodec.toJson(frame[1] & 0xFF, frame, WireCodec.HEADER_SIZE,
+                    frame.length - WireCodec.HEADER_SIZE)).similar(c.packet)) {
+                throw new IllegalStateException(c.name + ": frame decode không khớp JSON gốc");
+            }
+            WireDecoder decoder = new WireDecoder(1 << 20);
+            WireDecoder.Sink frameSink = new WireDecoder.Sink() {
+                @Override
+                public void onLine(byte[] buf, int offset, int length) {
+                    sink = buf;
+                }
+
+                @Override
+                public void onFrame(int type, byte[] buf, int offset, int length) {
+                    sink = buf;
+                }
+            };
+
+            double jsonEncode = time(iterations, () -> sink = (c.packet.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            double frameEncode = time(iterations, () -> sink = c.binary.get());
+            double jsonDecode = time(iterations, () -> sink = new JSONObject(new String(json, 0, json.length - 1,
+                    StandardCharsets.UTF_8)));
+            double frameDecode = time(iterations, () -> decoder.feed(ByteBuffer.wrap(frame), frameSink));
+            double frameToJson = time(iterations, () -> sink = WireCodec.toJson(frame[1] & 0xFF, frame,
+                    WireCodec.HEADER_SIZE, frame.length - WireCodec.HEADER_SIZE));
+            System.out.printf("%-20s %12d %12d %14.0f %14.0f %14.0f %14.0f %14.0f%n", c.name, json.length, frame.length,
+                    jsonEncode, frameEncode, jsonDecode, frameDecode, frameToJson);
+        }
+    }
+
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    /**
+     * @return ns trung bình mỗi lần, sau 1 vòng warm-up cùng số lần
+     */
+    private static double time(int iterations, Op op) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / (double) iterations;
+    }
+}